@@ -21,6 +21,8 @@ import android.widget.ListView;
 import android.widget.Toast;
 import android.app.ListActivity;
 
+import com.github.pimsturm.commandmessenger.Transport.ReceiveBuffer;
+
 public class ActivityMCU  extends ListActivity{
 	
 	private cBluetooth bl = null;
@@ -169,9 +171,12 @@ public class ActivityMCU  extends ListActivity{
 	            	activity.finish();
 	                break;
 	            case cBluetooth.RECEIVE_MESSAGE:								// if message is received
-	            	byte[] readBuf = (byte[]) msg.obj;
-	            	String strIncom = new String(readBuf, 0, msg.arg1);
-	            	sb.append(strIncom);										// append string
+	            	ReceiveBuffer readBuf = (ReceiveBuffer) msg.obj;
+	            	byte[] data = readBuf.getData();
+	            	for (int i = 0; i < readBuf.getLength(); i++) {
+	            		sb.append((char) (data[i] & 0xFF));						// append the received characters
+	            	}
+	            	readBuf.release();											// the buffer goes back to the pool
 	            	
 	            	int FDataLineIndex = sb.indexOf("FData:");					// string with Flash-data
 	            	int FWOKLineIndex = sb.indexOf("FWOK");						// string with the message of the successful record in Flash
@@ -204,6 +209,8 @@ public class ActivityMCU  extends ListActivity{
 	            	}
 	            	break;    
 	            }
+            } else if (msg.obj instanceof ReceiveBuffer) {
+            	((ReceiveBuffer) msg.obj).release();						// the activity is gone, return the buffer
             }
     	}
     }
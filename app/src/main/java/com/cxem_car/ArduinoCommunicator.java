@@ -10,7 +10,9 @@ import com.github.pimsturm.commandmessenger.IEventHandler;
 import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
 import com.github.pimsturm.commandmessenger.ReceivedCommand;
 import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.SendPriority;
 import com.github.pimsturm.commandmessenger.EventHandler;
+import com.github.pimsturm.commandmessenger.Queue.SetpointChannels;
 
 enum Command {
     kLeftMotor,
@@ -33,9 +35,20 @@ public final class ArduinoCommunicator {
     private static final int PWM_MOTOR_LEFT = 255;
     private static final int PWM_MOTOR_RIGHT = 255;
 
+    // Motor setpoints are sent at most this often (ms), and dropped when they are older than the deadline (ms)
+    private static final int MOTOR_FLUSH_INTERVAL = 50;
+    private static final int MOTOR_DEADLINE = 200;
+
     private CmdMessenger cmdMessenger;
 
+    // Latest-value-wins motor channels, only the newest setpoints are sent
+    private SetpointChannels motorChannels;
+    private SetpointChannels.Channel leftMotorChannel;
+    private SetpointChannels.Channel rightMotorChannel;
+    private final SendCommand stopMotorCommand = new SendCommand(Command.kStopMotor.ordinal());
+
     private ArduinoCommunicator() {
+        stopMotorCommand.setPriority(SendPriority.Emergency);
     }
 
     public static synchronized ArduinoCommunicator getInstance() {
@@ -57,6 +70,11 @@ public final class ArduinoCommunicator {
         // Attach the callbacks to the Command Messenger
         AttachCommandCallBacks();
 
+        motorChannels = cmdMessenger.createSetpointChannels(MOTOR_FLUSH_INTERVAL, MOTOR_DEADLINE);
+        leftMotorChannel = motorChannels.AddChannel(Command.kLeftMotor.ordinal());
+        rightMotorChannel = motorChannels.AddChannel(Command.kRightMotor.ordinal());
+        motorChannels.Start();
+
         // Attach to NewLinesReceived for logging purposes
         cmdMessenger.newLineReceived = new NewLineReceived();
 
@@ -113,68 +131,56 @@ public final class ArduinoCommunicator {
         cmdMessenger.sendCommand(command);
     }
 
+    /**
+     * Set the speed of both motors. The setpoints are sent together with the next flush of the motor channels,
+     * newer setpoints replace the ones that have not been sent yet.
+     *
+     * @param left  PWM setpoint of the left motor, negative to move backward
+     * @param right PWM setpoint of the right motor, negative to move backward
+     */
+    public synchronized void SetMotors(int left, int right) {
+        leftMotorChannel.Set(left);
+        rightMotorChannel.Set(right);
+    }
+
     /**
      * Send commands to make the car move straight ahead
      */
     public void MotorForward() {
-        SendCommand command = new SendCommand(Command.kLeftMotor.ordinal());
-        command.addArgument(PWM_MOTOR_LEFT);
-        cmdMessenger.sendCommand(command);
-
-        command = new SendCommand(Command.kRightMotor.ordinal());
-        command.addArgument(PWM_MOTOR_RIGHT);
-        cmdMessenger.sendCommand(command);
-
+        SetMotors(PWM_MOTOR_LEFT, PWM_MOTOR_RIGHT);
     }
 
     /**
      * Send commands to make the car move backward
      */
     public void MotorBackward() {
-        SendCommand command = new SendCommand(Command.kLeftMotor.ordinal());
-        command.addArgument(-PWM_MOTOR_LEFT);
-        cmdMessenger.sendCommand(command);
-
-        command = new SendCommand(Command.kRightMotor.ordinal());
-        command.addArgument(-PWM_MOTOR_RIGHT);
-        cmdMessenger.sendCommand(command);
-
+        SetMotors(-PWM_MOTOR_LEFT, -PWM_MOTOR_RIGHT);
     }
 
     /**
      * Send a command to stop the car
      */
-    public void MotorStop() {
-        SendCommand command = new SendCommand(Command.kStopMotor.ordinal());
-        cmdMessenger.sendCommand(command);
+    public synchronized void MotorStop() {
+        // Setpoints that have not been sent must not restart the motors
+        motorChannels.Clear();
+        cmdMessenger.clearSendQueue(SendPriority.Control);
+        // The emergency lane goes ahead of the queued commands, and after the batch the queue is writing,
+        // so no setpoint follows the stop on the wire
+        cmdMessenger.queueCommand(stopMotorCommand);
     }
 
     /**
      * Send commands to make the car move to the left
      */
     public void MotorToLeft() {
-        SendCommand command = new SendCommand(Command.kLeftMotor.ordinal());
-        command.addArgument(-PWM_MOTOR_LEFT);
-        cmdMessenger.sendCommand(command);
-
-        command = new SendCommand(Command.kRightMotor.ordinal());
-        command.addArgument(PWM_MOTOR_RIGHT);
-        cmdMessenger.sendCommand(command);
-
+        SetMotors(-PWM_MOTOR_LEFT, PWM_MOTOR_RIGHT);
     }
 
     /**
      * Send commands to make the car move to the right
      */
     public void MotorToRight() {
-        SendCommand command = new SendCommand(Command.kLeftMotor.ordinal());
-        command.addArgument(PWM_MOTOR_LEFT);
-        cmdMessenger.sendCommand(command);
-
-        command = new SendCommand(Command.kRightMotor.ordinal());
-        command.addArgument(-PWM_MOTOR_RIGHT);
-        cmdMessenger.sendCommand(command);
-
+        SetMotors(PWM_MOTOR_LEFT, -PWM_MOTOR_RIGHT);
     }
 
     /// Attach command call backs.
@@ -237,6 +243,8 @@ public final class ArduinoCommunicator {
      * Exit function
      */
     public void Exit() {
+        if (motorChannels != null) motorChannels.Dispose();
+
         if (cmdMessenger.getConnectionManager() != null)
             cmdMessenger.getConnectionManager().stopConnectionManager();
 
@@ -22,6 +22,9 @@ import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
 
+import com.github.pimsturm.commandmessenger.Transport.ReceiveBuffer;
+import com.github.pimsturm.commandmessenger.Transport.ReceiveBufferPool;
+
 public class cBluetooth{
 	
 	public final static String TAG = "BL_4WD";
@@ -41,7 +44,10 @@ public class cBluetooth{
     public final static int BL_INCORRECT_ADDRESS = 2;		// incorrect MAC-address
     public final static int BL_REQUEST_ENABLE = 3;			// request enable Bluetooth
     public final static int BL_SOCKET_FAILED = 4;			// socket error
-    public final static int RECEIVE_MESSAGE = 5;			// receive message
+    public final static int RECEIVE_MESSAGE = 5;			// receive message, obj is a ReceiveBuffer the handler must release
+
+    // Buffers the incoming data is read into, each read goes into its own buffer
+    private final ReceiveBufferPool mBufferPool = new ReceiveBufferPool(256, 8);
       
     cBluetooth(Context context, Handler handler){
     	btAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -185,18 +191,25 @@ public class cBluetooth{
     	}
 		 
     	public void run() {
-    		byte[] buffer = new byte[256];  // buffer store for the stream
     		int bytes; 						// bytes returned from read()
 
     		// Keep listening to the InputStream until an exception occurs
     		while (true) {
+    			// The handler owns the buffer once it is posted, so the next read can not overwrite it
+    			ReceiveBuffer buffer = mBufferPool.obtain();
     			try {
     				// read from the InputStream
-    				bytes = mmInStream.read(buffer);
-    				mHandler.obtainMessage(RECEIVE_MESSAGE, bytes, -1, buffer).sendToTarget();
+    				bytes = mmInStream.read(buffer.getData());
     			} catch (IOException e) {
+    				buffer.release();
+    				break;
+    			}
+    			if (bytes < 0) {
+    				buffer.release();
     				break;
     			}
+    			buffer.setLength(bytes);
+    			mHandler.obtainMessage(RECEIVE_MESSAGE, bytes, -1, buffer).sendToTarget();
     		}
     	}
     }
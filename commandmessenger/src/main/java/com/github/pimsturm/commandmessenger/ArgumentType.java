@@ -0,0 +1,57 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Type of a received argument, used in the schema of a received command.
+ */
+public enum ArgumentType {
+    Int16(false, false, 0),
+    UInt16(false, false, 0),
+    Int32(false, false, 0),
+    UInt32(false, false, 0),
+    Float(false, true, 0),
+    Double(false, true, 0),
+    Bool(false, false, 0),
+    String(false, false, 0),
+    BinInt16(true, false, 2),
+    BinUInt16(true, false, 2),
+    BinInt32(true, false, 4),
+    BinUInt32(true, false, 4),
+    BinFloat(true, true, 4),
+    BinDouble(true, true, 8),   // 4 bytes on a 16 bit board
+    BinBool(true, false, 1),
+    BinString(true, false, 0);
+
+    private final boolean binary;
+    private final boolean floatingPoint;
+    private final int size;
+
+    ArgumentType(boolean binary, boolean floatingPoint, int size) {
+        this.binary = binary;
+        this.floatingPoint = floatingPoint;
+        this.size = size;
+    }
+
+    /**
+     * Indicates if the argument is sent as escaped binary bytes.
+     * @return true for binary arguments.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Indicates if the argument is a float or double.
+     * @return true for floating point arguments.
+     */
+    public boolean isFloatingPoint() {
+        return floatingPoint;
+    }
+
+    /**
+     * Gets the number of bytes of a binary number.
+     * @return The number of bytes, 0 for text and strings.
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Parses decimal integers from received ASCII text without allocating,
+ * for the command ID and the numeric arguments of received commands.
+ * Accepts an optional sign followed by the digits 0-9, like Long.parseLong on ASCII input,
+ * but reports malformed input with a return value instead of an exception.
+ */
+public final class AsciiDecoder {
+    /**
+     * Returned when the text is not a decimal integer or does not fit in a long.
+     * Long.MIN_VALUE itself can therefore not be parsed.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    // The value is accumulated negatively, as the negative range is the larger one
+    private static final long MULTIPLY_LIMIT = Long.MIN_VALUE / 10;
+
+    private AsciiDecoder() {
+    }
+
+    /**
+     * Parses a decimal integer from bytes.
+     * @param buffer The bytes.
+     * @param offset Offset of the first byte.
+     * @param length Number of bytes.
+     * @return The value, or INVALID.
+     */
+    public static long parseLong(byte[] buffer, int offset, int length) {
+        if (length <= 0) return INVALID;
+        int pos = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (buffer[pos] == '-' || buffer[pos] == '+') {
+            negative = buffer[pos] == '-';
+            if (++pos == end) return INVALID;
+        }
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = buffer[pos] - '0';
+            if (digit < 0 || digit > 9 || value < MULTIPLY_LIMIT) return INVALID;
+            value *= 10;
+            if (value < Long.MIN_VALUE + digit) return INVALID;
+            value -= digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parses a decimal integer from text.
+     * @param text The text.
+     * @return The value, or INVALID if text is null or not a decimal integer.
+     */
+    public static long parseLong(CharSequence text) {
+        return text == null ? INVALID : parseLong(text, 0, text.length());
+    }
+
+    /**
+     * Parses a decimal integer from a part of a text.
+     * @param text The text.
+     * @param start Index of the first character.
+     * @param end Index after the last character.
+     * @return The value, or INVALID.
+     */
+    public static long parseLong(CharSequence text, int start, int end) {
+        if (end <= start) return INVALID;
+        int pos = start;
+        boolean negative = false;
+        char first = text.charAt(pos);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++pos == end) return INVALID;
+        }
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = text.charAt(pos) - '0';
+            if (digit < 0 || digit > 9 || value < MULTIPLY_LIMIT) return INVALID;
+            value *= 10;
+            if (value < Long.MIN_VALUE + digit) return INVALID;
+            value -= digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parses a decimal integer that has to be within a range.
+     * @param text The text.
+     * @param min The minimum value.
+     * @param max The maximum value.
+     * @return The value, or INVALID if the text is not a decimal integer or is out of range.
+     */
+    public static long parseInRange(CharSequence text, long min, long max) {
+        long value = parseLong(text);
+        return value == INVALID || value < min || value > max ? INVALID : value;
+    }
+
+    /**
+     * Parses a decimal integer from bytes that has to be within a range.
+     * @param buffer The bytes.
+     * @param offset Offset of the first byte.
+     * @param length Number of bytes.
+     * @param min The minimum value.
+     * @param max The maximum value.
+     * @return The value, or INVALID if the bytes are not a decimal integer or it is out of range.
+     */
+    public static long parseInRange(byte[] buffer, int offset, int length, long min, long max) {
+        long value = parseLong(buffer, offset, length);
+        return value == INVALID || value < min || value > max ? INVALID : value;
+    }
+}
@@ -5,8 +5,11 @@ import android.util.Log;
 public class AsyncWorker {
 
     private static final String TAG = "AsyncWorker";
-    private boolean isFaulted;
+    private volatile boolean isFaulted;
 
+    // State changes are requested by start/stop/suspend/resume and applied by the worker thread
+    // between jobs. Both fields are guarded by stateLock, the worker notifies it when it applies a state.
+    private final Object stateLock = new Object();
     private volatile WorkerState workerState = WorkerState.Stopped;
     private volatile WorkerState requestedState = WorkerState.Stopped;
 
@@ -21,9 +24,8 @@ public class AsyncWorker {
         return name;
     }
 
-    private WorkerState state;
     public WorkerState getState() {
-        return state;
+        return workerState;
     }
 
     public boolean isRunning() {
@@ -47,39 +49,39 @@ public class AsyncWorker {
     public void start() {
         synchronized (this) {
             if (workerState == WorkerState.Stopped) {
-                requestedState = workerState = WorkerState.Running;
+                synchronized (stateLock) {
+                    requestedState = workerState = WorkerState.Running;
+                }
+                isFaulted = false;
                 eventWaiter.reset();
 
                 workerTask = new Thread(new Runnable() {
                     @Override
                     public void run() {
                         while (true) {
-                            if (workerState == WorkerState.Stopped) break;
+                            // Apply the requested state and tell the thread waiting for it
+                            WorkerState state = applyRequestedState();
+                            if (state == WorkerState.Stopped) break;
 
                             boolean haveMoreWork = false;
-                            if (workerState == WorkerState.Running) {
+                            if (state == WorkerState.Running) {
                                 try {
                                     haveMoreWork = workerJob.execute();
                                 } catch (Exception e)
                                 {
-                                    requestedState = workerState = WorkerState.Stopped;
+                                    synchronized (stateLock) {
+                                        requestedState = WorkerState.Stopped;
+                                    }
                                     isFaulted = true;
                                     Log.d(TAG,"WorkerJob interrupted");
-                                    //throw new InterruptedException("WorkerJob interrupted");
-                                }
-
-                                // Check if state has been changed in workerJob thread.
-                                if (requestedState != workerState && requestedState == WorkerState.Stopped) {
-                                    workerState = requestedState;
-                                    break;
+                                    continue;
                                 }
                             }
 
                             try {
                                 // 0 = infinity
-                                if (!haveMoreWork || workerState == WorkerState.Suspended)
+                                if (!haveMoreWork || state == WorkerState.Suspended)
                                     eventWaiter.waitOne(0);
-                                workerState = requestedState;
                             } catch (InterruptedException e) {
                                 Log.d(TAG, e.getMessage());
                             }
@@ -91,13 +93,6 @@ public class AsyncWorker {
                 workerTask.setDaemon(true);   // IsBackground
 
                 workerTask.start();
-//                SpinWait.SpinUntil(() -> workerTask.isAlive());
-                while(!workerTask.isAlive()) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                    Log.d(TAG, e.getMessage());}
-                }
             } else {
                 throw new IllegalStateException("The worker is already started.");
             }
@@ -110,10 +105,12 @@ public class AsyncWorker {
         {
             if (workerState == WorkerState.Running || workerState == WorkerState.Suspended)
             {
-                requestedState = WorkerState.Stopped;
+                synchronized (stateLock) {
+                    requestedState = WorkerState.Stopped;
+                }
 
                 // Prevent deadlock by checking is we stopping from worker task or not.
-                if (Thread.currentThread().getId() != workerTask.getId()) //.ManagedThreadId
+                if (!isWorkerThread())
                 {
                     eventWaiter.set();
                     try {
@@ -131,22 +128,17 @@ public class AsyncWorker {
         }
     }
 
+    /**
+     * Suspends the worker. Returns when the worker has finished its current job.
+     * Only stateLock is held, which the wait releases, so start and stop are not blocked meanwhile.
+     */
     public void suspend()
     {
-        synchronized(this)
+        synchronized (stateLock)
         {
             if (workerState == WorkerState.Running)
             {
-                requestedState = WorkerState.Suspended;
-                eventWaiter.set();
-                //SpinWait.SpinUntil(() -> requestedState == workerState);
-                while(requestedState == workerState) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        Log.d(TAG, e.getMessage());
-                    }
-                }
+                changeState(WorkerState.Suspended);
             }
             else
             {
@@ -156,22 +148,16 @@ public class AsyncWorker {
         }
     }
 
+    /**
+     * Resumes the worker. Returns when the worker has picked up the state change.
+     */
     public void resume()
     {
-        synchronized(this)
+        synchronized (stateLock)
         {
             if (workerState == WorkerState.Suspended)
             {
-                requestedState = WorkerState.Running;
-                eventWaiter.set();
-                //SpinWait.SpinUntil(() -> requestedState == workerState);
-                while(requestedState == workerState) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        Log.d(TAG, e.getMessage());
-                    }
-                }
+                changeState(WorkerState.Running);
             }
             else
             {
@@ -188,4 +174,60 @@ public class AsyncWorker {
     {
         if (isRunning()) eventWaiter.set();
     }
+
+    /**
+     * Requests a state change and waits until the worker thread has applied it.
+     * When called from the worker thread itself, the state is applied directly.
+     * @param newState The requested state.
+     */
+    private void changeState(WorkerState newState)
+    {
+        synchronized (stateLock)
+        {
+            requestedState = newState;
+            if (isWorkerThread())
+            {
+                workerState = newState;
+                return;
+            }
+
+            eventWaiter.set();
+            while (workerState != newState && workerState != WorkerState.Stopped
+                    && requestedState == newState)
+            {
+                try {
+                    stateLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the worker thread between jobs.
+     * @return The state the worker is in now.
+     */
+    private WorkerState applyRequestedState()
+    {
+        synchronized (stateLock)
+        {
+            if (workerState != requestedState)
+            {
+                workerState = requestedState;
+                stateLock.notifyAll();
+            }
+            return workerState;
+        }
+    }
+
+    /**
+     * Indicates if the calling thread is the worker thread.
+     * @return true when called from the worker job.
+     */
+    public boolean isWorkerThread()
+    {
+        return Thread.currentThread() == workerTask;
+    }
 }
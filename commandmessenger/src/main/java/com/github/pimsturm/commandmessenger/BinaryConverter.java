@@ -1,11 +1,12 @@
 package com.github.pimsturm.commandmessenger;
 
-import android.util.Log;
-
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
+/**
+ * Converts binary arguments to and from escaped strings. Values are little-endian, like on the Arduino.
+ */
 public class BinaryConverter {
-    private static final String TAG = "BinaryConverter";
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
     /***** from binary value to string ****/
 
@@ -16,15 +17,7 @@ public class BinaryConverter {
      */
     public static String toString(float value)
     {
-        try
-        {
-            byte[] byteArray = BitConverter.getBytes(value);
-            return bytesToEscapedString(byteArray);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return toEscapedString(Float.floatToRawIntBits(value), 4);
     }
 
     /**
@@ -34,15 +27,17 @@ public class BinaryConverter {
      */
     public static String toString(Double value)
     {
-        try
-        {
-            byte[] byteArray = BitConverter.getBytes(value);
-            return bytesToEscapedString(byteArray);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return value == null ? null : toString(value.doubleValue());
+    }
+
+    /**
+     * Convert a double into a string representation.
+     * @param value The value to be converted.
+     * @return A string representation of this object.
+     */
+    public static String toString(double value)
+    {
+        return toEscapedString(Double.doubleToRawLongBits(value), 8);
     }
 
     /**
@@ -52,15 +47,7 @@ public class BinaryConverter {
      */
     public static String toString(int value)
     {
-        try
-        {
-            byte[] byteArray = BitConverter.getBytes(value);
-            return bytesToEscapedString(byteArray);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return toEscapedString(value, 4);
     }
 
     /**
@@ -70,15 +57,7 @@ public class BinaryConverter {
      */
     public static String toString(UInt32 value)     // uint
     {
-        try
-        {
-            byte[] byteArray = BitConverter.getBytes(value);
-            return bytesToEscapedString(byteArray);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return value == null ? null : toEscapedString(value.longValue(), 4);
     }
 
     /**
@@ -88,15 +67,7 @@ public class BinaryConverter {
      */
     public static String toString(short value)
     {
-        try
-        {
-            byte[] byteArray = BitConverter.getBytes(value);
-            return bytesToEscapedString(byteArray);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return toEscapedString(value, 2);
     }
 
     /**
@@ -106,15 +77,7 @@ public class BinaryConverter {
      */
     public static String toString(UInt16 value)     //ushort
     {
-        try
-        {
-            byte[] byteArray = BitConverter.getBytes(value);
-            return bytesToEscapedString(byteArray);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return value == null ? null : toEscapedString(value.longValue(), 2);
     }
 
     /**
@@ -124,14 +87,7 @@ public class BinaryConverter {
      */
     public static String toString(byte value)
     {
-        try
-        {
-            return bytesToEscapedString(new byte[]{value});
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return toEscapedString(value, 1);
     }
 
 
@@ -144,19 +100,8 @@ public class BinaryConverter {
      */
     public static Float toFloat(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            if (bytes.length < 4)
-            {
-                return null;
-            }
-            return BitConverter.toSingle(bytes, 0);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 4 ? BitConverter.getFloat(bytes, 0) : null;
     }
 
     /**
@@ -166,15 +111,8 @@ public class BinaryConverter {
      */
     public static Double toDouble(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            return BitConverter.toDouble(bytes, 0);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 8 ? BitConverter.getDouble(bytes, 0) : null;
     }
 
     /**
@@ -184,15 +122,8 @@ public class BinaryConverter {
      */
     public static Integer toInt32(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            return BitConverter.toInt32(bytes, 0);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 4 ? BitConverter.getInt32(bytes, 0) : null;
     }
 
     /**
@@ -202,15 +133,8 @@ public class BinaryConverter {
      */
     public static UInt32 toUInt32(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            return BitConverter.toUInt32(bytes, 0);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 4 ? new UInt32(BitConverter.getUInt32(bytes, 0)) : null;
     }
 
     /**
@@ -220,15 +144,8 @@ public class BinaryConverter {
      */
     public static UInt16 toUInt16(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            return BitConverter.toUInt16(bytes, 0);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 2 ? new UInt16(BitConverter.getUInt16(bytes, 0)) : null;
     }
 
     /**
@@ -238,15 +155,8 @@ public class BinaryConverter {
      */
     public static Short toInt16(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            return BitConverter.toInt16(bytes, 0);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 2 ? BitConverter.getInt16(bytes, 0) : null;
     }
 
     /**
@@ -256,35 +166,84 @@ public class BinaryConverter {
      */
     public static Byte toByte(String value)
     {
-        try
-        {
-            byte[] bytes = escapedStringToBytes(value);
-            return bytes[0];
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        byte[] bytes = new byte[8];
+        return unescape(value, bytes) == 1 ? bytes[0] : null;
     }
 
     /***** conversion functions ****/
 
     /**
-     * Converts a byte array to escaped string.
-     * @param byteArray Array of bytes.
-     * @return input value as an escaped string.
+     * Writes the lowest bytes of a value little-endian, escaping them inline.
+     * The buffer needs room for twice the number of bytes.
+     * @param buffer The buffer.
+     * @param offset Offset to write to.
+     * @param bits The value, floating point numbers as raw bits.
+     * @param size Number of bytes of the value.
+     * @return The offset after the escaped value.
+     */
+    public static int putEscaped(byte[] buffer, int offset, long bits, int size)
+    {
+        final byte escapeCharacter = (byte) Escaping.getEscapeCharacter();
+        for (int i = 0; i < size; i++)
+        {
+            byte b = (byte) (bits >>> (8 * i));
+            if (Escaping.needsEscape((char) (b & 0xFF))) buffer[offset++] = escapeCharacter;
+            buffer[offset++] = b;
+        }
+        return offset;
+    }
+
+    /**
+     * Unescapes a binary argument into a buffer. Bytes that do not fit are counted but not written.
+     * @param value The escaped argument.
+     * @param bytes The buffer for the unescaped bytes.
+     * @return The number of unescaped bytes, or -1 if value is null.
      */
-    private static String bytesToEscapedString(byte[] byteArray)
+    public static int unescape(String value, byte[] bytes)
     {
-        try
+        if (value == null) return -1;
+        final char escapeCharacter = Escaping.getEscapeCharacter();
+        int count = 0;
+        for (int i = 0; i < value.length(); i++)
         {
-            String stringValue = byteArray.toString();
-            return Escaping.escape(stringValue);
+            if (value.charAt(i) == escapeCharacter && i + 1 < value.length()) i++;
+            if (count < bytes.length) bytes[count] = (byte) value.charAt(i);
+            count++;
         }
-        catch (Exception e)
+        return count;
+    }
+
+    /**
+     * Unescapes a binary argument that is still in the received bytes into a buffer.
+     * Bytes that do not fit are counted but not written.
+     * @param value The received bytes.
+     * @param offset Offset of the escaped argument in value.
+     * @param length Length of the escaped argument.
+     * @param bytes The buffer for the unescaped bytes.
+     * @return The number of unescaped bytes.
+     */
+    public static int unescape(byte[] value, int offset, int length, byte[] bytes)
+    {
+        final byte escapeCharacter = (byte) Escaping.getEscapeCharacter();
+        final int end = offset + length;
+        int count = 0;
+        for (int i = offset; i < end; i++)
         {
-            return null;
+            if (value[i] == escapeCharacter && i + 1 < end) i++;
+            if (count < bytes.length) bytes[count] = value[i];
+            count++;
         }
+        return count;
+    }
+
+    /**
+     * Converts a value to an escaped string of its little-endian bytes.
+     */
+    private static String toEscapedString(long bits, int size)
+    {
+        byte[] buffer = new byte[size * 2];
+        int length = putEscaped(buffer, 0, bits, size);
+        return new String(buffer, 0, length, ISO_8859_1);
     }
 
     /**
@@ -294,15 +253,7 @@ public class BinaryConverter {
      */
     public static byte[] escapedStringToBytes(String value)
     {
-        try
-        {
-            String unEscapedValue = Escaping.unescape(value);
-            return unEscapedValue.getBytes("ISO-8859-1");
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return value == null ? null : Escaping.unescape(value).getBytes(ISO_8859_1);
     }
 
     /**
@@ -312,12 +263,7 @@ public class BinaryConverter {
      */
     public static byte[] stringToBytes(String value)
     {
-        try {
-            return value.getBytes("ISO-8859-1");
-        } catch (UnsupportedEncodingException e) {
-            Log.d(TAG, e.getLocalizedMessage());
-        }
-        return null;
+        return value == null ? null : value.getBytes(ISO_8859_1);
     }
 
     /**
@@ -327,11 +273,6 @@ public class BinaryConverter {
      */
     public static byte[] charsToBytes(char[] value)
     {
-        try {
-            return value.toString().getBytes("ISO-8859-1");
-        } catch (UnsupportedEncodingException e) {
-            Log.d(TAG, e.getLocalizedMessage());
-        }
-        return null;
+        return value == null ? null : new String(value).getBytes(ISO_8859_1);
     }
 }
@@ -3,10 +3,123 @@ package com.github.pimsturm.commandmessenger;
 // http://www.se7ensins.com/forums/threads/java-c-s-bitconverter-in-java.486271/
 // http://www.dotnetframework.org/default.aspx/DotNET/DotNET/8@0/untmp/whidbey/REDBITS/ndp/clr/src/BCL/System/BitConverter@cs/1/BitConverter@cs
 
-import java.lang.Exception;
-
+/**
+ * Converts primitives to and from bytes. Bytes are little-endian, like on the Arduino.
+ * The put and get methods work on a caller-supplied buffer at an offset, so no arrays are allocated.
+ */
 public class BitConverter
 {
+    /***** into a caller-supplied buffer, return the offset after the value ****/
+
+    public static int putBoolean(byte[] buffer, int offset, boolean x)
+    {
+        buffer[offset] = (byte) (x ? 1 : 0);
+        return offset + 1;
+    }
+
+    public static int putInt16(byte[] buffer, int offset, short x)
+    {
+        return putLittleEndian(buffer, offset, x, 2);
+    }
+
+    public static int putInt32(byte[] buffer, int offset, int x)
+    {
+        return putLittleEndian(buffer, offset, x, 4);
+    }
+
+    public static int putInt64(byte[] buffer, int offset, long x)
+    {
+        return putLittleEndian(buffer, offset, x, 8);
+    }
+
+    public static int putFloat(byte[] buffer, int offset, float x)
+    {
+        return putLittleEndian(buffer, offset, Float.floatToRawIntBits(x), 4);
+    }
+
+    public static int putDouble(byte[] buffer, int offset, double x)
+    {
+        return putLittleEndian(buffer, offset, Double.doubleToRawLongBits(x), 8);
+    }
+
+    /**
+     * Writes the lowest bytes of a value, least significant byte first.
+     * @param buffer The buffer.
+     * @param offset Offset to write to.
+     * @param bits The value.
+     * @param size Number of bytes to write.
+     * @return The offset after the value.
+     */
+    public static int putLittleEndian(byte[] buffer, int offset, long bits, int size)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            buffer[offset + i] = (byte) (bits >>> (8 * i));
+        }
+        return offset + size;
+    }
+
+    /***** from a buffer ****/
+
+    public static boolean getBoolean(byte[] buffer, int offset)
+    {
+        return buffer[offset] != 0;
+    }
+
+    public static short getInt16(byte[] buffer, int offset)
+    {
+        return (short) getLittleEndian(buffer, offset, 2);
+    }
+
+    public static int getUInt16(byte[] buffer, int offset)
+    {
+        return (int) getLittleEndian(buffer, offset, 2);
+    }
+
+    public static int getInt32(byte[] buffer, int offset)
+    {
+        return (int) getLittleEndian(buffer, offset, 4);
+    }
+
+    public static long getUInt32(byte[] buffer, int offset)
+    {
+        return getLittleEndian(buffer, offset, 4);
+    }
+
+    public static long getInt64(byte[] buffer, int offset)
+    {
+        return getLittleEndian(buffer, offset, 8);
+    }
+
+    public static float getFloat(byte[] buffer, int offset)
+    {
+        return Float.intBitsToFloat(getInt32(buffer, offset));
+    }
+
+    public static double getDouble(byte[] buffer, int offset)
+    {
+        return Double.longBitsToDouble(getInt64(buffer, offset));
+    }
+
+    /**
+     * Reads a value, least significant byte first. Values of less than 8 bytes are not sign extended.
+     * @param buffer The buffer.
+     * @param offset Offset of the first byte.
+     * @param size Number of bytes.
+     * @return The value.
+     */
+    public static long getLittleEndian(byte[] buffer, int offset, int size)
+    {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--)
+        {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /***** into new arrays ****/
+
     public static byte[] getBytes(boolean x)
     {
         return new byte[]{
@@ -29,34 +142,23 @@ public class BitConverter
 
     public static byte[] getBytes(short x)
     {
-        return new byte[] {
-                (byte)(x >>> 8),
-                (byte)x
-        };
+        byte[] bytes = new byte[2];
+        putInt16(bytes, 0, x);
+        return bytes;
     }
 
     public static byte[] getBytes(int x)
     {
-        return new byte[] {
-                (byte)(x >>> 24),
-                (byte)(x >>> 16),
-                (byte)(x >>> 8),
-                (byte)x
-        };
+        byte[] bytes = new byte[4];
+        putInt32(bytes, 0, x);
+        return bytes;
     }
 
     public static byte[] getBytes(long x)
     {
-        return new byte[] {
-                (byte)(x >>> 56),
-                (byte)(x >>> 48),
-                (byte)(x >>> 40),
-                (byte)(x >>> 32),
-                (byte)(x >>> 24),
-                (byte)(x >>> 16),
-                (byte)(x >>> 8),
-                (byte)x
-        };
+        byte[] bytes = new byte[8];
+        putInt64(bytes, 0, x);
+        return bytes;
     }
 
     public static byte[] getBytes(float x)
@@ -85,96 +187,76 @@ public class BitConverter
 
     public static double int64BitsToDouble(long x)
     {
-        return (double)x;
+        return Double.longBitsToDouble(x);
     }
 
-    public static boolean toBoolean(byte[] bytes, int index) throws Exception
+    /***** from arrays, checking the length ****/
+
+    public static boolean toBoolean(byte[] bytes, int index)
     {
-        if(bytes.length != 1)
-            throw new Exception("The length of the byte array must be at least 1 byte long.");
-        return bytes[index] != 0;
+        checkLength(bytes, index, 1);
+        return getBoolean(bytes, index);
     }
 
-    public static char toChar(byte[] bytes, int index) throws Exception
+    public static char toChar(byte[] bytes, int index)
     {
-        if(bytes.length != 2)
-            throw new Exception("The length of the byte array must be at least 2 bytes long.");
-        return (char)(
-                (0xff & bytes[index]) << 8   |
-                        (0xff & bytes[index + 1]) << 0
-        );
+        checkLength(bytes, index, 2);
+        return (char) getUInt16(bytes, index);
     }
 
-    public static double toDouble(byte[] bytes, int index) throws Exception
+    public static double toDouble(byte[] bytes, int index)
     {
-        if(bytes.length != 8)
-            throw new Exception("The length of the byte array must be at least 8 bytes long.");
-        return Double.longBitsToDouble(
-                toInt64(bytes, index));
+        checkLength(bytes, index, 8);
+        return getDouble(bytes, index);
     }
 
-    public static short toInt16(byte[] bytes, int index) throws Exception
+    public static short toInt16(byte[] bytes, int index)
     {
-        if(bytes.length != 8)
-            throw new Exception("The length of the byte array must be at least 8 bytes long.");
-        return (short)(
-                (0xff & bytes[index]) << 8   |
-                        (0xff & bytes[index + 1]) << 0
-        );
+        checkLength(bytes, index, 2);
+        return getInt16(bytes, index);
     }
 
-    public static int toInt32(byte[] bytes, int index) throws Exception
+    public static int toInt32(byte[] bytes, int index)
     {
-        if(bytes.length != 4)
-            throw new Exception("The length of the byte array must be at least 4 bytes long.");
-        return (int)(
-                (int)(0xff & bytes[index]) << 56  |
-                        (int)(0xff & bytes[index + 1]) << 48  |
-                        (int)(0xff & bytes[index + 2]) << 40  |
-                        (int)(0xff & bytes[index + 3]) << 32
-        );
+        checkLength(bytes, index, 4);
+        return getInt32(bytes, index);
     }
 
-    public static UInt16 toUInt16(byte[] bytes, int index) throws Exception
+    public static UInt16 toUInt16(byte[] bytes, int index)
     {
-        return new UInt16(toInt16(bytes, index));
+        checkLength(bytes, index, 2);
+        return new UInt16(getUInt16(bytes, index));
     }
 
-    public static UInt32 toUInt32(byte[] bytes, int index) throws Exception
+    public static UInt32 toUInt32(byte[] bytes, int index)
     {
-        return new UInt32(toInt32(bytes, index));
+        checkLength(bytes, index, 4);
+        return new UInt32(getUInt32(bytes, index));
     }
 
-    public static long toInt64(byte[] bytes, int index) throws Exception
+    public static long toInt64(byte[] bytes, int index)
     {
-        if(bytes.length != 8)
-            throw new Exception("The length of the byte array must be at least 8 bytes long.");
-        return (long)(
-                (long)(0xff & bytes[index]) << 56  |
-                        (long)(0xff & bytes[index + 1]) << 48  |
-                        (long)(0xff & bytes[index + 2]) << 40  |
-                        (long)(0xff & bytes[index + 3]) << 32  |
-                        (long)(0xff & bytes[index + 4]) << 24  |
-                        (long)(0xff & bytes[index + 5]) << 16  |
-                        (long)(0xff & bytes[index + 6]) << 8   |
-                        (long)(0xff & bytes[index + 7]) << 0
-        );
+        checkLength(bytes, index, 8);
+        return getInt64(bytes, index);
     }
 
-    public static float toSingle(byte[] bytes, int index) throws Exception
+    public static float toSingle(byte[] bytes, int index)
     {
-        if(bytes.length != 4)
-            throw new Exception("The length of the byte array must be at least 4 bytes long.");
-        return Float.intBitsToFloat(
-                toInt32(bytes, index));
+        checkLength(bytes, index, 4);
+        return getFloat(bytes, index);
     }
 
-    public static String toString(byte[] bytes) throws Exception
+    public static String toString(byte[] bytes)
     {
         if(bytes == null)
-            throw new Exception("The byte array must have at least 1 byte.");
+            throw new NullPointerException("bytes");
         return new String(bytes);
     }
-}
-
 
+    private static void checkLength(byte[] bytes, int index, int size)
+    {
+        if (bytes == null) throw new NullPointerException("bytes");
+        if (index < 0 || bytes.length - index < size)
+            throw new IllegalArgumentException("The byte array must hold " + size + " bytes from index " + index + ".");
+    }
+}
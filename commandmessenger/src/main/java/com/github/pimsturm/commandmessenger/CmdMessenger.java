@@ -5,8 +5,13 @@ import com.github.pimsturm.commandmessenger.Queue.CommandStrategy;
 import com.github.pimsturm.commandmessenger.Queue.GeneralStrategy;
 import com.github.pimsturm.commandmessenger.Queue.ReceiveCommandQueue;
 import com.github.pimsturm.commandmessenger.Queue.SendCommandQueue;
+import com.github.pimsturm.commandmessenger.Queue.SetpointChannels;
+import com.github.pimsturm.commandmessenger.Transport.BinaryFrame;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+import com.github.pimsturm.commandmessenger.Transport.FrameIntegrity;
 import com.github.pimsturm.commandmessenger.Transport.Bluetooth.BluetoothConnectionManager;
 import com.github.pimsturm.commandmessenger.Transport.ITransport;
+import com.github.pimsturm.commandmessenger.Transport.ITransportFactory;
 import com.github.pimsturm.commandmessenger.Transport.ReceiveHandler;
 
 
@@ -21,7 +26,8 @@ public class CmdMessenger {
     private ITransport connectionManager;               // The connection manager
     private SendCommandQueue sendCommandQueue;                          // The queue of commands to be sent
     private ReceiveCommandQueue receiveCommandQueue;                    // The queue of commands to be processed
-    private ReceiveHandler mReceiveHandler = new ReceiveHandler();      // Handles the received commands
+    private ReceiveHandler mReceiveHandler = new ReceiveHandler();      // Handler of the main looper
+    private CommandReceiver commandReceiver = new CommandReceiver(mReceiveHandler);   // Decodes the received commands
 
     /**
      * Get an object with all the settings for cmdMessenger.
@@ -32,13 +38,21 @@ public class CmdMessenger {
     }
 
     /**
-     * Gets the handler for received commands
+     * Gets the handler of the main looper, which runs the callbacks on the main thread.
      * @return mReceiveHandler
      */
     public ReceiveHandler getmReceiveHandler() {
         return mReceiveHandler;
     }
 
+    /**
+     * Gets the receiver that the transports hand the received data to.
+     * @return The command receiver.
+     */
+    public CommandReceiver getCommandReceiver() {
+        return commandReceiver;
+    }
+
     public ITransport getConnectionManager() {
         return connectionManager;
     }
@@ -53,18 +67,36 @@ public class CmdMessenger {
     public IEventHandler newLineSent;
 
     /**
-     * Constructor.
+     * Constructor. Commands are sent over Bluetooth.
      */
     public CmdMessenger()
+    {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * @param transportFactory Creates the transport, null for the default Bluetooth transport.
+     */
+    public CmdMessenger(ITransportFactory transportFactory)
     {
         //Logger.open(@"sendCommands.txt");
         Logger.setDirectFlush(true);
 
         settings = Settings.getInstance();
-        connectionManager = connectionManagerFactory();
+        connectionManager = transportFactory != null ? transportFactory.createTransport(this) : connectionManagerFactory();
 
-        receiveCommandQueue = new ReceiveCommandQueue(mReceiveHandler);
+        receiveCommandQueue = new ReceiveCommandQueue(commandReceiver);
+        commandReceiver.setReceiveCommandQueue(receiveCommandQueue);
         communicationManager = new CommunicationManager(connectionManager, receiveCommandQueue);
+        commandReceiver.setFrameIntegrity(communicationManager.getFrameIntegrity());
+        commandReceiver.setFrameIntegrityEnabled(communicationManager.isFrameIntegrityEnabled());
+        commandReceiver.setConnectionFound(new IEventHandler<Object>() {
+            @Override
+            public void invokeEvent(Object sender, Object e) {
+                communicationManager.connectionFound();
+            }
+        });
         sendCommandQueue = new SendCommandQueue(communicationManager, 255);
 
         receiveCommandQueue.NewLineReceived = new EventHandler <CommandEventArgs>() {
@@ -103,7 +135,7 @@ public class CmdMessenger {
      */
     public void attach(IMessengerCallbackFunction newFunction)
     {
-        mReceiveHandler.attach(newFunction);
+        commandReceiver.attach(newFunction);
     }
 
     /**
@@ -113,7 +145,127 @@ public class CmdMessenger {
      */
     public void attach(int messageId, IMessengerCallbackFunction newFunction)
     {
-        mReceiveHandler.attach(messageId, newFunction);
+        commandReceiver.attach(messageId, newFunction);
+    }
+
+    /**
+     * Sets the argument types of a received command, so its arguments are decoded without parsing text
+     * when they are read.
+     * @param cmdId Command ID.
+     * @param schema The argument types, in the order they are sent.
+     */
+    public void setReceiveSchema(int cmdId, ArgumentType... schema)
+    {
+        commandReceiver.setSchema(cmdId, schema);
+    }
+
+    /**
+     * Sets the thread on which the received data of this messenger is cut into commands and decoded.
+     * The default is taken from Settings.getDecodeThread.
+     * @param decodeThread The decode thread.
+     */
+    public void setDecodeThread(DecodeThread decodeThread)
+    {
+        commandReceiver.setDecodeThread(decodeThread);
+    }
+
+    /**
+     * Sets whether the attached callbacks and the listeners of the futures of this messenger are called
+     * on the main thread. When false, they are called on the decode thread.
+     * The default is taken from Settings.getCallbacksOnMainThread.
+     * @param callbacksOnMainThread true to call the callbacks on the main thread.
+     */
+    public void setCallbacksOnMainThread(boolean callbacksOnMainThread)
+    {
+        commandReceiver.setCallbacksOnMainThread(callbacksOnMainThread);
+    }
+
+    /**
+     * Sets whether the commands of this messenger carry a rolling sequence number and a CRC, in both directions.
+     * The default is taken from Settings.getFrameIntegrity. Both sides must have it enabled.
+     * @param frameIntegrityEnabled true to add and check sequence numbers and CRCs.
+     */
+    public void setFrameIntegrityEnabled(boolean frameIntegrityEnabled)
+    {
+        communicationManager.setFrameIntegrityEnabled(frameIntegrityEnabled);
+        commandReceiver.setFrameIntegrityEnabled(frameIntegrityEnabled);
+    }
+
+    public boolean isFrameIntegrityEnabled()
+    {
+        return communicationManager.isFrameIntegrityEnabled();
+    }
+
+    /**
+     * Sets whether the binary frames sent by this messenger carry a CRC, negotiateFrameMode tells the device.
+     * The default is taken from Settings.getFrameCrc.
+     * @param frameCrc true to add a CRC to binary frames.
+     */
+    public void setFrameCrc(boolean frameCrc)
+    {
+        communicationManager.setFrameCrc(frameCrc);
+    }
+
+    public boolean getFrameCrc()
+    {
+        return communicationManager.getFrameCrc();
+    }
+
+    /**
+     * Gets the sequence numbers and the counters of missing and corrupted received commands,
+     * used when frame integrity is enabled.
+     * @return The frame integrity.
+     */
+    public FrameIntegrity getFrameIntegrity()
+    {
+        return communicationManager.getFrameIntegrity();
+    }
+
+    /**
+     * Gets the estimated rate of the link, which the send queue adapts its batch size and pacing to.
+     * @return The link throughput.
+     */
+    public LinkThroughput getLinkThroughput()
+    {
+        return communicationManager.getLinkThroughput();
+    }
+
+    /**
+     * Negotiates how commands are framed with the device. The request carries the frame mode
+     * (0 = text, 1 = binary), the binary frame layout version and whether binary frames carry a CRC.
+     * The device answers with the acknowledge command, with the frame mode it switched to as first argument.
+     * Sent commands of this messenger switch to the new mode once the acknowledge is received. Received binary frames are
+     * always accepted, so the device may switch right after sending the acknowledge.
+     * @param frameMode The requested frame mode.
+     * @param requestCmdId Command ID of the request.
+     * @param ackCmdId Command ID of the acknowledge.
+     * @param timeOut time-out in ms.
+     * @return true if the device switched to the requested frame mode.
+     */
+    public boolean negotiateFrameMode(FrameMode frameMode, int requestCmdId, int ackCmdId, int timeOut)
+    {
+        SendCommand request = new SendCommand(requestCmdId, ackCmdId, timeOut);
+        request.addArgument(frameMode == FrameMode.Binary ? 1 : 0);
+        request.addArgument(BinaryFrame.VERSION);
+        request.addArgument(communicationManager.getFrameCrc());
+
+        ReceivedCommand ack = sendCommand(request, SendQueue.WaitForEmptyQueue, ReceiveQueue.Default);
+        if (!ack.getOk()) return false;
+        int acceptedMode = ack.readInt32Arg();
+        if (acceptedMode != (frameMode == FrameMode.Binary ? 1 : 0)) return false;
+
+        communicationManager.setFrameMode(frameMode);
+        return true;
+    }
+
+    /**
+     * Gets how the commands of this messenger are framed: Settings.getFrameMode,
+     * until another frame mode has been negotiated.
+     * @return The frame mode.
+     */
+    public FrameMode getFrameMode()
+    {
+        return communicationManager.getFrameMode();
     }
 
     /**
@@ -173,7 +325,7 @@ public class CmdMessenger {
     public void sendCommand(SendCommand sendCommand)
     {
         sendCommand.initArguments();
-        connectionManager.write(sendCommand.commandString());
+        communicationManager.writeCommand(sendCommand);
     }
 
     /**
@@ -187,10 +339,14 @@ public class CmdMessenger {
      * @param receiveQueueState Property to optionally clear/wait the receive queue
      * @param useQueue Property to optionally bypass the queue
      * @return A received command. The received command will only be valid if the ReqAc of the command is true.
+     *         When a requested wait for an empty queue times out the command is not sent, and the returned
+     *         command is not ok.
      */
     public ReceivedCommand sendCommand(SendCommand sendCommand, SendQueue sendQueueState, ReceiveQueue receiveQueueState, UseQueue useQueue)
     {
         boolean synchronizedSend = (sendCommand.getReqAc() || useQueue == UseQueue.BypassQueue);
+        // Only an explicitly requested wait for the receive queue has to succeed
+        boolean receiveWaitRequested = receiveQueueState == ReceiveQueue.WaitForEmptyQueue;
 
         // When waiting for an acknowledge, it is typically best to wait for the ReceiveQueue to be empty
         // This is thus the default state
@@ -216,27 +372,15 @@ public class CmdMessenger {
                 (synchronizedSend && sendQueueState == SendQueue.AtEndQueue)
                 )
         {
-            boolean isEmpty = false;
-            synchronized (this){
-               while (!isEmpty) {
-                     try {
-                        wait(100);
-                       } catch(InterruptedException e){}
-                   isEmpty = sendCommandQueue.getIsEmpty();
-               }
-            }
+            // Sending now would not put the command at the end of the queue
+            if (!sendCommandQueue.WaitForEmpty(settings.getEmptyQueueTimeout())) return new ReceivedCommand();
         }
 
         if (receiveQueueState == ReceiveQueue.WaitForEmptyQueue)
         {
-            boolean isEmpty = false;
-            synchronized (this){
-                while (!isEmpty) {
-                    try {
-                        wait(100);
-                    } catch(InterruptedException e){}
-                    isEmpty = receiveCommandQueue.getIsEmpty();
-                }
+            if (!receiveCommandQueue.WaitForEmpty(settings.getEmptyQueueTimeout()) && receiveWaitRequested)
+            {
+                return new ReceivedCommand();
             }
         }
 
@@ -258,6 +402,21 @@ public class CmdMessenger {
         return new ReceivedCommand();
     }
 
+    /**
+     * Sends a command without blocking the caller.
+     * If a command acknowledge is requested, the returned future completes when the acknowledge command
+     * has been received, or with an empty command when the timeout of the command expires.
+     * Listeners of the future are called on the main thread when setCallbacksOnMainThread is set.
+     * @param sendCommand The command to sent.
+     * @return A future for the acknowledge command.
+     */
+    public CommandFuture sendCommandAsync(SendCommand sendCommand)
+    {
+        CommandFuture future = communicationManager.executeSendCommandAsync(sendCommand, commandReceiver);
+        invokeNewLineEvent(newLineSent, new CommandEventArgs(sendCommand));
+        return future;
+    }
+
     /**
      * Synchronized send a command.
      * @param sendCommand The command to sent.
@@ -267,8 +426,6 @@ public class CmdMessenger {
     public ReceivedCommand sendCommandSync(SendCommand sendCommand, SendQueue sendQueueState)
     {
         // Directly call execute command
-        connectionManager.write(sendCommand.commandString());
-
         ReceivedCommand resultSendCommand = communicationManager.executeSendCommand(sendCommand, sendQueueState);
         invokeNewLineEvent(newLineSent, new CommandEventArgs(sendCommand));
         return resultSendCommand;
@@ -292,6 +449,18 @@ public class CmdMessenger {
         sendCommandQueue.QueueCommand(commandStrategy);
     }
 
+    /**
+     * Creates latest-value-wins channels for control setpoints, which are flushed to the send queue together.
+     * Call Start on them to begin flushing, and Dispose when done.
+     * @param flushInterval Time between flushes in ms.
+     * @param deadline Maximum age in ms of a setpoint when it is flushed or sent, older setpoints are dropped.
+     * @return The setpoint channels.
+     */
+    public SetpointChannels createSetpointChannels(long flushInterval, long deadline)
+    {
+        return new SetpointChannels(sendCommandQueue, flushInterval, deadline);
+    }
+
     /**
      * Adds a general command strategy to the receive queue. This will be executed on every enqueued and dequeued command.
      * @param generalStrategy The general strategy for the receive queue.
@@ -301,6 +470,16 @@ public class CmdMessenger {
         receiveCommandQueue.AddGeneralStrategy(generalStrategy);
     }
 
+    /**
+     * Collapses received commands with this command ID on the receive queue.
+     * When the callbacks lag behind, only the latest of these commands is processed.
+     * @param cmdId The command ID, for example of a sensor report.
+     */
+    public void collapseReceivedCommand(int cmdId)
+    {
+        receiveCommandQueue.AddCollapsibleCommand(cmdId);
+    }
+
     /**
      *  Adds a general command strategy to the send queue. This will be executed on every enqueued and dequeued command.
      * @param generalStrategy The general strategy for the send queue.
@@ -326,6 +505,53 @@ public class CmdMessenger {
         sendCommandQueue.Clear();
     }
 
+    /**
+     * Clears one priority lane of the send queue, for instance the control setpoints after an emergency stop.
+     * @param priority The lane to clear.
+     */
+    public void clearSendQueue(SendPriority priority)
+    {
+        sendCommandQueue.ClearLane(priority);
+    }
+
+    /**
+     * Sets what happens to a new command when the send queue has reached its maximum length.
+     * @param overflow Block the caller, fail fast or drop the oldest command.
+     */
+    public void setSendQueueOverflow(QueueOverflow overflow)
+    {
+        sendCommandQueue.setOverflow(overflow);
+    }
+
+    /**
+     * Sets the maximum number of commands on the send queue.
+     * @param maxQueueLength The maximum number of commands.
+     */
+    public void setMaxSendQueueLength(int maxQueueLength)
+    {
+        sendCommandQueue.setMaxQueueLength(maxQueueLength);
+    }
+
+    /**
+     * Waits until the send queue is empty.
+     * @param timeOut Time-out in ms, zero = infinity.
+     * @return true if the queue is empty, false on time-out.
+     */
+    public boolean waitForEmptySendQueue(long timeOut)
+    {
+        return sendCommandQueue.WaitForEmpty(timeOut);
+    }
+
+    /**
+     * Waits until all received commands have been processed.
+     * @param timeOut Time-out in ms, zero = infinity.
+     * @return true if the queue is empty, false on time-out.
+     */
+    public boolean waitForEmptyReceiveQueue(long timeOut)
+    {
+        return receiveCommandQueue.WaitForEmpty(timeOut);
+    }
+
     /**
      * Helper function to call an event.
      * @param newLineHandler The event handler.
@@ -343,9 +569,10 @@ public class CmdMessenger {
     {
         if (disposing)
         {
-//            communicationManager.dispose();
+            communicationManager.dispose();
             sendCommandQueue.Dispose();
             receiveCommandQueue.Dispose();
+            commandReceiver.stop();
         }
     }
 }
@@ -37,6 +37,25 @@ public class Command {
         return cmdArgs.toArray(new String[cmdArgs.size()]);
     }
 
+    /**
+     * Gets the number of command arguments.
+     * @return The number of arguments.
+     */
+    public int getArgumentCount()
+    {
+        return cmdArgs.size();
+    }
+
+    /**
+     * Gets a command argument, without copying the argument list.
+     * @param index Index of the argument.
+     * @return The argument.
+     */
+    public String getArgument(int index)
+    {
+        return cmdArgs.get(index);
+    }
+
     private long timeStamp;
 
     /**
@@ -62,7 +81,7 @@ public class Command {
     {
         cmdId = -1;
         cmdArgs = new ArrayList<String>();
-        timeStamp = TimeUtils.millis;
+        timeStamp = TimeUtils.millis();
         settings = Settings.getInstance();
     }
 
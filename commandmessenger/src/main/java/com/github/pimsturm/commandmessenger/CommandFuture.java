@@ -0,0 +1,270 @@
+package com.github.pimsturm.commandmessenger;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronously sent command: the acknowledge command.
+ * A future completes once, with the acknowledge, with a time-out or by cancellation.
+ * On time-out the result is an empty command, like the result of a synchronous send that timed out.
+ * Listeners are called through the callback executor, by default on the main thread.
+ */
+public class CommandFuture implements Future<ReceivedCommand> {
+    private final Executor callbackExecutor;
+    private ArrayList<ICommandFutureListener> listeners;
+    private Runnable cancelHandler;
+    private Future<?> timeoutTask;
+    private ReceivedCommand result;
+    private boolean done;
+    private boolean cancelled;
+    private boolean timedOut;
+
+    /**
+     * Constructor.
+     * @param callbackExecutor Executes the listeners, null to call them on the completing thread.
+     */
+    public CommandFuture(Executor callbackExecutor)
+    {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Creates a future that has already completed.
+     * @param result The result.
+     * @param callbackExecutor Executes the listeners, null to call them on the calling thread.
+     * @return The completed future.
+     */
+    public static CommandFuture completed(ReceivedCommand result, Executor callbackExecutor)
+    {
+        CommandFuture future = new CommandFuture(callbackExecutor);
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Completes the future with a result. Only the first completion counts.
+     * @param receivedCommand The received command.
+     * @return true if this call completed the future.
+     */
+    public boolean complete(ReceivedCommand receivedCommand)
+    {
+        return finish(receivedCommand, false, false);
+    }
+
+    /**
+     * Completes the future with an empty command, because the acknowledge did not arrive in time.
+     * @return true if this call completed the future.
+     */
+    public boolean timeOut()
+    {
+        return finish(new ReceivedCommand(), true, false);
+    }
+
+    /**
+     * Cancels the future. A pending acknowledge request is unregistered.
+     * @param mayInterruptIfRunning Not used, no thread is waiting on behalf of the future.
+     * @return true if this call cancelled the future.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return finish(null, false, true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * Indicates if the acknowledge did not arrive in time.
+     * @return true on time-out.
+     */
+    public synchronized boolean isTimedOut()
+    {
+        return timedOut;
+    }
+
+    @Override
+    public synchronized ReceivedCommand get() throws InterruptedException
+    {
+        while (!done) wait();
+        return getResult();
+    }
+
+    @Override
+    public synchronized ReceivedCommand get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done)
+        {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            wait(remaining / 1000000L, (int) (remaining % 1000000L));
+        }
+        return getResult();
+    }
+
+    /**
+     * Adds a listener that is called when the future completes.
+     * If the future has already completed, the listener is called right away.
+     * @param listener The listener.
+     * @return This future.
+     */
+    public CommandFuture addListener(ICommandFutureListener listener)
+    {
+        synchronized (this)
+        {
+            if (!done)
+            {
+                if (listeners == null) listeners = new ArrayList<ICommandFutureListener>(2);
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Continues with a next command once the acknowledge of this one has arrived.
+     * When this future times out, the continuation is still called, with the empty command.
+     * Cancelling the returned future cancels the step that is still pending.
+     * @param continuation Sends the next command for the acknowledge.
+     * @return A future for the acknowledge of the next command.
+     */
+    public CommandFuture then(final ICommandContinuation continuation)
+    {
+        final CommandFuture next = new CommandFuture(callbackExecutor);
+        final CommandFuture previous = this;
+        next.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                previous.cancel(false);
+            }
+        });
+        addListener(new ICommandFutureListener() {
+            @Override
+            public void onComplete(CommandFuture future) {
+                if (future.isCancelled())
+                {
+                    next.cancel(false);
+                    return;
+                }
+                final CommandFuture step = continuation.continueWith(future.result);
+                next.setCancelHandler(new Runnable() {
+                    @Override
+                    public void run() {
+                        step.cancel(false);
+                    }
+                });
+                step.addListener(new ICommandFutureListener() {
+                    @Override
+                    public void onComplete(CommandFuture future) {
+                        if (future.isCancelled()) next.cancel(false);
+                        else next.finish(future.result, future.timedOut, false);
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Sets the action that undoes the pending request when the future is cancelled.
+     * If the future has already been cancelled, the action is run right away.
+     */
+    void setCancelHandler(Runnable cancelHandler)
+    {
+        synchronized (this)
+        {
+            if (!cancelled)
+            {
+                this.cancelHandler = cancelHandler;
+                return;
+            }
+        }
+        cancelHandler.run();
+    }
+
+    /**
+     * Sets the scheduled task that times out the future. It is cancelled when the future completes
+     * in another way, so it does not hold on to the future until its delay has passed.
+     * If the future has already completed, the task is cancelled right away.
+     */
+    void setTimeoutTask(Future<?> timeoutTask)
+    {
+        synchronized (this)
+        {
+            if (!done)
+            {
+                this.timeoutTask = timeoutTask;
+                return;
+            }
+        }
+        timeoutTask.cancel(false);
+    }
+
+    private ReceivedCommand getResult()
+    {
+        if (cancelled) throw new CancellationException();
+        return result;
+    }
+
+    private boolean finish(ReceivedCommand receivedCommand, boolean isTimeOut, boolean isCancel)
+    {
+        ArrayList<ICommandFutureListener> toNotify;
+        Runnable onCancel;
+        Future<?> timeout;
+        synchronized (this)
+        {
+            if (done) return false;
+            done = true;
+            result = receivedCommand;
+            timedOut = isTimeOut;
+            cancelled = isCancel;
+            toNotify = listeners;
+            listeners = null;
+            onCancel = isCancel ? cancelHandler : null;
+            cancelHandler = null;
+            timeout = timeoutTask;
+            timeoutTask = null;
+            notifyAll();
+        }
+
+        if (timeout != null) timeout.cancel(false);
+        if (onCancel != null) onCancel.run();
+        if (toNotify != null)
+        {
+            for (int i = 0; i < toNotify.size(); i++) notifyListener(toNotify.get(i));
+        }
+        return true;
+    }
+
+    private void notifyListener(final ICommandFutureListener listener)
+    {
+        if (callbackExecutor == null)
+        {
+            listener.onComplete(this);
+            return;
+        }
+        final CommandFuture future = this;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(future);
+            }
+        });
+    }
+}
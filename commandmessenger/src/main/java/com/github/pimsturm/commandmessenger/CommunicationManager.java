@@ -3,19 +3,33 @@ package com.github.pimsturm.commandmessenger;
 import android.util.Log;
 
 import com.github.pimsturm.commandmessenger.Queue.ReceiveCommandQueue;
+import com.github.pimsturm.commandmessenger.Transport.CommandEncoder;
+import com.github.pimsturm.commandmessenger.Transport.FrameIntegrity;
 import com.github.pimsturm.commandmessenger.Transport.ITransport;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manager for data over transport layer.
  */
 public class CommunicationManager {
     private static final String TAG = "communicationManager";
-    private final Object sendCommandDataLock = new Object();        // The process serial data lock
+    private final Object sendCommandDataLock = new Object();        // Serialises writes to the transport
     private final ReceiveCommandQueue receiveCommandQueue;
 
     private ITransport transport;
+    private final CommandEncoder encoder = new CommandEncoder();    // Reused under sendCommandDataLock
+    private final FrameIntegrity frameIntegrity = new FrameIntegrity();  // Sequence numbers of both directions
+    private final LinkThroughput linkThroughput = new LinkThroughput();  // Measured by the transport
+    private ScheduledExecutorService timeoutScheduler;              // Times out all asynchronous requests
+    private volatile FrameMode frameMode;                           // How sent commands are framed
+    private volatile boolean frameIntegrityEnabled;                 // Sent commands carry a sequence number and CRC
+    private volatile boolean frameCrc;                              // Sent binary frames carry a CRC
 
 
     /**
@@ -28,9 +42,102 @@ public class CommunicationManager {
         this.transport = transport;
 
         this.receiveCommandQueue = receiveCommandQueue;
+        transport.setLinkThroughput(linkThroughput);
+        encoder.setFrameIntegrity(frameIntegrity);
+        Settings settings = Settings.getInstance();
+        frameMode = settings.getFrameMode();
+        frameIntegrityEnabled = settings.getFrameIntegrity();
+        frameCrc = settings.getFrameCrc();
+    }
 
+    /**
+     * Sets how the commands sent over this transport are framed, Settings.getFrameMode by default.
+     * Every encoder that writes to the transport must take the frame mode from here, see configureEncoder.
+     * @param frameMode The frame mode.
+     */
+    public void setFrameMode(FrameMode frameMode)
+    {
+        if (frameMode == null) throw new NullPointerException("frameMode");
+        this.frameMode = frameMode;
     }
 
+    public FrameMode getFrameMode()
+    {
+        return frameMode;
+    }
+
+    /**
+     * Sets whether the commands sent over this transport carry a sequence number and a CRC,
+     * Settings.getFrameIntegrity by default.
+     * @param frameIntegrityEnabled true to add the sequence numbers and CRCs.
+     */
+    public void setFrameIntegrityEnabled(boolean frameIntegrityEnabled)
+    {
+        this.frameIntegrityEnabled = frameIntegrityEnabled;
+    }
+
+    public boolean isFrameIntegrityEnabled()
+    {
+        return frameIntegrityEnabled;
+    }
+
+    /**
+     * Sets whether the binary frames sent over this transport carry a CRC, Settings.getFrameCrc by default.
+     * @param frameCrc true to add a CRC to binary frames.
+     */
+    public void setFrameCrc(boolean frameCrc)
+    {
+        this.frameCrc = frameCrc;
+    }
+
+    public boolean getFrameCrc()
+    {
+        return frameCrc;
+    }
+
+    /**
+     * Sets how an encoder that writes to the transport frames its next commands:
+     * the frame mode, the frame integrity and the CRC of this transport.
+     * @param encoder The encoder.
+     */
+    public void configureEncoder(CommandEncoder encoder)
+    {
+        encoder.setFrameMode(frameMode);
+        encoder.setFrameIntegrityEnabled(frameIntegrityEnabled);
+        encoder.setFrameCrc(frameCrc);
+    }
+
+    /**
+     * Gets the sequence numbers and counters of the frame integrity checks.
+     * Every encoder that writes to the transport must take its sequence numbers from it, they are assigned
+     * when the encoded commands are sealed under sendCommandDataLock, so they go out on the wire in order.
+     * @return The frame integrity.
+     */
+    public FrameIntegrity getFrameIntegrity()
+    {
+        return frameIntegrity;
+    }
+
+
+    /**
+     * Gets the estimated link rate, measured by the transport from how long its writes to the link take.
+     * @return The link throughput.
+     */
+    public LinkThroughput getLinkThroughput()
+    {
+        return linkThroughput;
+    }
+
+    /**
+     * Resets the state kept per connection, called when a connection has been made or remade.
+     * The sequence numbers restart, like they do on the other side, and the link rate is measured anew,
+     * the new link may be faster or slower.
+     */
+    public void connectionFound()
+    {
+        frameIntegrity.reset();
+        linkThroughput.reset();
+    }
 
     /**
      * Writes a string to the transport layer.
@@ -51,42 +158,142 @@ public class CommunicationManager {
         transport.write(value);
     }
 
+    /**
+     * Writes bytes to the transport layer.
+     * @param data The bytes to write.
+     * @param offset Offset of the first byte in data.
+     * @param length Number of bytes to write.
+     */
+    public void write(byte[] data, int offset, int length)
+    {
+        transport.write(data, offset, length);
+    }
+
+    /**
+     * Encodes a command into the reused buffer and writes it to the transport layer.
+     * @param sendCommand The command to write, its arguments must have been initialized.
+     */
+    public void writeCommand(SendCommand sendCommand)
+    {
+        synchronized (sendCommandDataLock)
+        {
+            encoder.clear();
+            configureEncoder(encoder);
+            encoder.encode(sendCommand);
+            encoder.seal();
+            transport.write(encoder.getBuffer(), 0, encoder.length());
+        }
+    }
+
+    /**
+     * Directly executes the send operation of commands that were encoded together.
+     * The commands get their sequence numbers under the write lock, just before they are written.
+     * @param commands The encoded commands, its integrity fields are filled in.
+     */
+    public void executeSendCommands(CommandEncoder commands)
+    {
+        synchronized (sendCommandDataLock)
+        {
+            commands.seal();
+            transport.write(commands.getBuffer(), 0, commands.length());
+        }
+    }
+
     /**
      * Directly executes the send command operation.
+     * Several commands can wait for their acknowledge at the same time, only the write itself is serialised.
      * @param sendCommand The command to send.
      * @param sendQueueState Property to optionally clear the send and receive queues.
      * @return The received command will only be valid if the ReqAc of the command is true.
      */
     public ReceivedCommand executeSendCommand(SendCommand sendCommand, SendQueue sendQueueState)
     {
-        // Disable listening, all callbacks are disabled until after command was sent
+        sendCommand.initArguments();
 
-        ReceivedCommand ackCommand;
-        synchronized (sendCommandDataLock)
+        if (!sendCommand.getReqAc())
         {
-            sendCommand.initArguments();
+            writeCommand(sendCommand);
+            return new ReceivedCommand();
+        }
 
-            if (sendCommand.getReqAc())
-            {
-                // Stop processing receive queue before sending. Wait until receive queue is actually done
-                receiveCommandQueue.Suspend();
-            }
+        // Register before sending, so an acknowledge arriving before the wait starts is not lost.
+        // The receive queue keeps processing other commands, the acknowledge is taken off it when it arrives.
+        ReceivedCommandSignal.PendingAck pendingAck = receiveCommandQueue.RegisterAck(
+                sendCommand.getAckCmdId(), sendCommand.getAckSequence(), sendQueueState);
+        writeCommand(sendCommand);
+        return blockedTillReply(pendingAck, sendCommand.getTimeout());
+    }
 
-//            if (printLfCr)
-//                writeLine(sendCommand.commandString());
-//            else
-                write(sendCommand.commandString());
+    /**
+     * Executes the send command operation without waiting for the acknowledge.
+     * The receive queue keeps running, the acknowledge is taken off it when it arrives.
+     * Time-outs are handled by one scheduler thread for all requests.
+     * @param sendCommand The command to send.
+     * @param callbackExecutor Executes the listeners of the future.
+     * @return A future for the acknowledge, it completes right away if the command does not request one.
+     */
+    public CommandFuture executeSendCommandAsync(SendCommand sendCommand, Executor callbackExecutor)
+    {
+        sendCommand.initArguments();
+
+        if (!sendCommand.getReqAc())
+        {
+            writeCommand(sendCommand);
+            return CommandFuture.completed(new ReceivedCommand(), callbackExecutor);
+        }
+
+        final CommandFuture future = new CommandFuture(callbackExecutor);
+        final ReceivedCommandSignal.PendingAck pendingAck = receiveCommandQueue.RegisterAck(
+                sendCommand.getAckCmdId(), sendCommand.getAckSequence(), future);
+        future.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                receiveCommandQueue.CancelAck(pendingAck);
+            }
+        });
 
-            ackCommand = sendCommand.getReqAc() ? blockedTillReply(sendCommand.getAckCmdId(), sendCommand.getTimeout(), sendQueueState) : new ReceivedCommand();
+        if (sendCommand.getTimeout() > 0)
+        {
+            // Cancelled when the acknowledge arrives or the future is cancelled
+            future.setTimeoutTask(getTimeoutScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    receiveCommandQueue.CancelAck(pendingAck);
+                    future.timeOut();
+                }
+            }, sendCommand.getTimeout(), TimeUnit.MILLISECONDS));
         }
 
-        if (sendCommand.getReqAc())
+        writeCommand(sendCommand);
+        return future;
+    }
+
+    /**
+     * Stops the time-out scheduler.
+     */
+    public void dispose()
+    {
+        synchronized (this)
         {
-            // Stop processing receive queue before sending
-            receiveCommandQueue.Resume();
+            if (timeoutScheduler != null) timeoutScheduler.shutdownNow();
+            timeoutScheduler = null;
         }
+    }
 
-        return ackCommand;
+    private synchronized ScheduledExecutorService getTimeoutScheduler()
+    {
+        if (timeoutScheduler == null)
+        {
+            timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CmdMessengerTimeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timeoutScheduler;
     }
 
     /**
@@ -113,15 +320,14 @@ public class CommunicationManager {
 
     /**
      * Blocks until acknowledgement reply has been received.
-     * @param ackCmdId acknowledgement command ID
+     * @param pendingAck The registered acknowledge request.
      * @param timeout Timeout on acknowledge command.
-     * @param sendQueueState
      * @return A received command.
      */
-    private ReceivedCommand blockedTillReply(int ackCmdId, int timeout, SendQueue sendQueueState)
+    private ReceivedCommand blockedTillReply(ReceivedCommandSignal.PendingAck pendingAck, int timeout)
     {
         // Wait for matching command
-        ReceivedCommand receivedCommand = receiveCommandQueue.WaitForCmd(timeout, ackCmdId, sendQueueState);
+        ReceivedCommand receivedCommand = receiveCommandQueue.WaitForAck(pendingAck, timeout);
         if (receivedCommand == null)
         {
             return new ReceivedCommand();
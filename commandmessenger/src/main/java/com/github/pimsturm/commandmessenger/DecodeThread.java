@@ -0,0 +1,10 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * The thread on which received data is cut into commands and decoded.
+ */
+public enum DecodeThread {
+    MainThread,     // The Android main looper, shared with the UI
+    DecoderThread,  // A dedicated background thread
+    ReaderThread    // The thread that reads from the transport
+}
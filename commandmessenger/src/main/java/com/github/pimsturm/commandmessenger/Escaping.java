@@ -1,7 +1,6 @@
 package com.github.pimsturm.commandmessenger;
 
 import java.util.ArrayList;
-import java.util.Collections;
 
 /**
  * Utility class providing escaping functions
@@ -44,18 +43,21 @@ public final class Escaping
      */
     public static String remove(String input, char removeChar, char escapeChar)
     {
-        String output = "";
-        IsEscaped escaped = new IsEscaped();
+        if (input.indexOf(removeChar) < 0) return input;
+
+        char[] output = new char[input.length()];
+        int length = 0;
+        boolean escaped = false;
         for (int i = 0; i < input.length(); i++)
         {
             char inputChar = input.charAt(i);
-            boolean isEscaped = escaped.isEscapedChar(inputChar);
-            if (inputChar != removeChar || isEscaped)
+            if (inputChar != removeChar || escaped)
             {
-                output += inputChar;
+                output[length++] = inputChar;
             }
+            escaped = !escaped && inputChar == escapeChar;
         }
-        return output;
+        return new String(output, 0, length);
     }
 
     // Split String on separator character unless it is escaped by escapeChar
@@ -66,59 +68,92 @@ public final class Escaping
      * @param separator The Separator
      * @param escapeCharacter The escape character.
      * @param removeEmptyEntries Options for controlling the string split.
-     * @return
+     * @return The words, escape characters are kept.
      */
     public static String[] split(String input, char separator, char escapeCharacter,
                                  Boolean removeEmptyEntries)
     {
-        String word = "";
         ArrayList<String> result = new ArrayList<String>();
+        int wordStart = 0;
         for (int i = 0; i < input.length(); i++)
         {
             char t = input.charAt(i);
             if (t == separator)
             {
-                result.add(word);
-                word = "";
+                addWord(result, input, wordStart, i, removeEmptyEntries);
+                wordStart = i + 1;
             }
-            else
+            else if (t == escapeCharacter)
             {
-                if (t == escapeCharacter)
-                {
-                    word += t;
-                    if (i < input.length() - 1) t = input.charAt(++i);
-                }
-                word += t;
+                // The escaped character is part of the word
+                i++;
             }
         }
-        result.add(word);
-        if (removeEmptyEntries) {
-            result.removeAll(Collections.singleton(""));
-        }
+        addWord(result, input, wordStart, Math.max(wordStart, input.length()), removeEmptyEntries);
 
         String[] resultArr = new String[result.size()];
 
         return result.toArray(resultArr);
     }
 
+    private static void addWord(ArrayList<String> result, String input, int start, int end, boolean removeEmptyEntries)
+    {
+        if (end > start || !removeEmptyEntries) result.add(input.substring(start, end));
+    }
+
     /**
-     *
+     * Escapes the escape character, the separators and the null character.
      * @param input The unescaped input string.
      * @return Escaped output string.
      */
     public static String escape(String input)
     {
-        String[] escapeChars = new String[]
-                {
-                        String.valueOf(escapeCharacter),
-                        String.valueOf(fieldSeparator),
-                        String.valueOf(commandSeparator),
-                        "\0"
-                };
-//        input = escapeChars.Aggregate(input,
-//                (current, escapeChar) =>
-//        current.Replace(escapeChar, escapeCharacter + escapeChar));
-        return input;
+        int count = 0;
+        for (int i = 0; i < input.length(); i++)
+        {
+            if (needsEscape(input.charAt(i))) count++;
+        }
+        if (count == 0) return input;
+
+        StringBuilder output = new StringBuilder(input.length() + count);
+        escape(input, output);
+        return output.toString();
+    }
+
+    /**
+     * Escapes the escape character, the separators and the null character, appending to a reusable builder.
+     * @param input The unescaped input.
+     * @param output The builder the escaped input is appended to.
+     */
+    public static void escape(CharSequence input, StringBuilder output)
+    {
+        for (int i = 0; i < input.length(); i++)
+        {
+            char c = input.charAt(i);
+            if (needsEscape(c)) output.append(escapeCharacter);
+            output.append(c);
+        }
+    }
+
+    /**
+     * Escapes bytes into a buffer. The buffer needs room for twice the number of input bytes.
+     * @param input The unescaped bytes.
+     * @param offset Offset of the first byte in input.
+     * @param length Number of bytes.
+     * @param output The buffer the escaped bytes are written to.
+     * @param outputOffset Offset in output to write to.
+     * @return Number of bytes written.
+     */
+    public static int escape(byte[] input, int offset, int length, byte[] output, int outputOffset)
+    {
+        int pos = outputOffset;
+        for (int i = offset; i < offset + length; i++)
+        {
+            byte b = input[i];
+            if (needsEscape((char) (b & 0xFF))) output[pos++] = (byte) escapeCharacter;
+            output[pos++] = b;
+        }
+        return pos - outputOffset;
     }
 
     /**
@@ -128,16 +163,52 @@ public final class Escaping
      */
     public static String unescape(String input)
     {
-        String output = "";
+        int first = input.indexOf(escapeCharacter);
+        if (first < 0) return input;
+
+        char[] output = new char[input.length()];
+        input.getChars(0, first, output, 0);
+        int length = first;
         // Move unescaped characters right
-        for (char fromChar = 0; fromChar < input.length(); fromChar++)
+        for (int i = first; i < input.length(); i++)
         {
-            if (input.charAt(fromChar) == escapeCharacter)
+            if (input.charAt(i) == escapeCharacter && i + 1 < input.length())
             {
-                fromChar++;
+                i++;
             }
-            output += input.charAt(fromChar);
+            output[length++] = input.charAt(i);
+        }
+        return new String(output, 0, length);
+    }
+
+    /**
+     * Unescapes bytes into a buffer. The output may be the input buffer itself, at the same offset.
+     * @param input The escaped bytes.
+     * @param offset Offset of the first byte in input.
+     * @param length Number of bytes.
+     * @param output The buffer the unescaped bytes are written to, needs room for length bytes.
+     * @param outputOffset Offset in output to write to.
+     * @return Number of bytes written.
+     */
+    public static int unescape(byte[] input, int offset, int length, byte[] output, int outputOffset)
+    {
+        final byte escape = (byte) escapeCharacter;
+        int pos = outputOffset;
+        for (int i = offset; i < offset + length; i++)
+        {
+            if (input[i] == escape && i + 1 < offset + length) i++;
+            output[pos++] = input[i];
         }
-        return output;
+        return pos - outputOffset;
+    }
+
+    /**
+     * Indicates if a character has to be escaped.
+     * @param c The character.
+     * @return true for the escape character, the separators and the null character.
+     */
+    public static boolean needsEscape(char c)
+    {
+        return c == escapeCharacter || c == fieldSeparator || c == commandSeparator || c == '\0';
     }
 }
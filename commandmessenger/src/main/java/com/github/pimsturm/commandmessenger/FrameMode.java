@@ -0,0 +1,9 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * How commands are framed on the wire.
+ */
+public enum FrameMode {
+    Text,   // Separated fields and commands, with escaped separators
+    Binary  // Length-prefixed binary frames, negotiated with the device
+}
@@ -0,0 +1,5 @@
+package com.github.pimsturm.commandmessenger;
+
+public interface ICommandContinuation {
+    CommandFuture continueWith(ReceivedCommand receivedCommand);
+}
@@ -0,0 +1,173 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Map from a primitive int key to an object, using open addressing with linear probing.
+ * Unlike a HashMap, lookups do not box the key. Not thread-safe.
+ */
+public class IntObjectMap<V> {
+    private int[] keys;
+    private Object[] values;    // null marks a free slot
+    private int size;
+    private int mask;
+
+    /**
+     * Creates an empty map.
+     */
+    public IntObjectMap() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty map.
+     * @param capacity The number of entries the map holds before it grows.
+     */
+    public IntObjectMap(int capacity) {
+        int tableSize = 4;
+        while (tableSize < capacity * 2) tableSize <<= 1;
+        keys = new int[tableSize];
+        values = new Object[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Gets the number of entries.
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the value for a key.
+     * @param key The key.
+     * @return The value, or null if the key is not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) return (V) values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces the value for a key.
+     * @param key The key.
+     * @param value The value, may not be null.
+     * @return The previous value, or null if the key was not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) throw new NullPointerException("value");
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V old = (V) values[slot];
+                values[slot] = value;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) grow();
+        return null;
+    }
+
+    /**
+     * Removes the value for a key.
+     * @param key The key.
+     * @return The removed value, or null if the key was not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V old = (V) values[slot];
+                closeGap(slot);
+                size--;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        if (size == 0) return;
+        for (int i = 0; i < values.length; i++) values[i] = null;
+        size = 0;
+    }
+
+    /**
+     * Gets the value stored in a slot of the table, used to iterate over all entries.
+     * @param slot The slot, from 0 to capacity() - 1.
+     * @return The value, or null if the slot is free.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * Gets the key stored in a slot of the table. Only valid if valueAt(slot) is not null.
+     * @param slot The slot, from 0 to capacity() - 1.
+     * @return The key.
+     */
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Gets the number of slots in the table.
+     * @return The number of slots.
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * Shifts entries of the same probe chain back into a freed slot, so lookups never stop early.
+     */
+    private void closeGap(int free) {
+        int slot = free;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null) break;
+            int home = hash(keys[slot]) & mask;
+            // Move the entry if its home slot is not between the free slot and its current slot
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                keys[free] = keys[slot];
+                values[free] = values[slot];
+                free = slot;
+            }
+        }
+        values[free] = null;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
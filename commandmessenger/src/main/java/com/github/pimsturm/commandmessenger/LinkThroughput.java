@@ -0,0 +1,148 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Estimates how fast the link drains written bytes, from the achieved bytes per second and the time
+ * the writes to the link block. The transport registers its writes, a transport that queues the bytes for
+ * a writer thread registers the writes of that thread, which is where the link holds them up. The send queue uses the estimate to size its batches and to pace
+ * its writes slightly below the link rate, so the transport buffers stay short and commands do not
+ * wait seconds behind a weak connection.
+ * <p>
+ * Writes are measured in windows of WINDOW_NANOS. A window in which the writes blocked for at least half
+ * of the time is saturated: the link is the bottleneck and the achieved rate is its capacity. In a window
+ * that was held back by pacing without blocking, the estimate is raised a little to probe for more capacity.
+ * Until the first saturated window the rate is unknown and the writes are not paced.
+ * Thread-safe.
+ */
+public class LinkThroughput
+{
+    public static final long WINDOW_NANOS = 250000000L;
+    private static final double SATURATED_FRACTION = 0.5;
+    private static final double SMOOTHING = 0.3;            // Weight of a new saturated window
+    private static final double PROBE_FACTOR = 1.1;         // Raise per unsaturated paced window
+    private static final double PACING_FACTOR = 0.9;        // Pace below the estimate, so the buffers drain
+    private static final long BATCH_NANOS = 50000000L;      // A batch holds what the link drains in 50 ms
+    private static final int MIN_BATCH_SIZE = 32;
+
+    private boolean windowOpen;
+    private long windowStart;
+    private long windowBytes;
+    private long windowBlocked;
+    private boolean windowPaced;
+    private double bytesPerSecond;      // 0 while unknown
+    private double blockedFraction;
+    private boolean saturated;
+    private long nextWrite = Long.MIN_VALUE;    // Earliest time of the next paced write
+
+    /**
+     * Registers a write to the link.
+     * @param bytes Number of bytes written.
+     * @param startNanos System.nanoTime before the write.
+     * @param endNanos System.nanoTime after the write.
+     */
+    public synchronized void recordWrite(int bytes, long startNanos, long endNanos)
+    {
+        if (!windowOpen)
+        {
+            windowOpen = true;
+            windowStart = startNanos;
+        }
+        windowBytes += bytes;
+        windowBlocked += endNanos - startNanos;
+
+        if (bytesPerSecond > 0)
+        {
+            nextWrite = Math.max(nextWrite, startNanos) + (long) (bytes * 1e9 / (bytesPerSecond * PACING_FACTOR));
+        }
+
+        long elapsed = endNanos - windowStart;
+        if (elapsed >= WINDOW_NANOS) closeWindow(elapsed);
+    }
+
+    private void closeWindow(long elapsed)
+    {
+        double rate = windowBytes * 1e9 / elapsed;
+        blockedFraction = Math.min(1.0, (double) windowBlocked / elapsed);
+        saturated = blockedFraction >= SATURATED_FRACTION;
+        if (saturated)
+        {
+            bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + SMOOTHING * (rate - bytesPerSecond);
+        }
+        else if (bytesPerSecond > 0)
+        {
+            if (windowPaced) bytesPerSecond *= PROBE_FACTOR;
+            bytesPerSecond = Math.max(bytesPerSecond, rate);
+        }
+        windowOpen = false;
+        windowBytes = 0;
+        windowBlocked = 0;
+        windowPaced = false;
+    }
+
+    /**
+     * Gets how long the next write must wait to keep to the link rate.
+     * @param nowNanos The current System.nanoTime.
+     * @return The delay in ns, 0 to write right away.
+     */
+    public synchronized long getPacingDelay(long nowNanos)
+    {
+        if (bytesPerSecond == 0 || nextWrite == Long.MIN_VALUE) return 0;
+        long delay = nextWrite - nowNanos;
+        if (delay <= 0) return 0;
+        windowPaced = true;
+        return delay;
+    }
+
+    /**
+     * Gets the number of bytes to combine into one write.
+     * @param maxBatchSize The maximum number of bytes.
+     * @return What the link drains in 50 ms, between 32 bytes and the maximum, or the maximum while the rate is unknown.
+     */
+    public synchronized int getBatchSize(int maxBatchSize)
+    {
+        if (bytesPerSecond == 0) return maxBatchSize;
+        long size = (long) (bytesPerSecond * BATCH_NANOS / 1e9);
+        return (int) Math.min(maxBatchSize, Math.max(MIN_BATCH_SIZE, size));
+    }
+
+    /**
+     * Gets the estimated link rate.
+     * @return The rate in bytes per second, 0 while unknown.
+     */
+    public synchronized double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Gets the fraction of the last window that was spent blocked in writes.
+     * @return The fraction, from 0 to 1.
+     */
+    public synchronized double getBlockedFraction()
+    {
+        return blockedFraction;
+    }
+
+    /**
+     * Indicates if the link was the bottleneck in the last window.
+     * @return true if the writes blocked for at least half of the window.
+     */
+    public synchronized boolean isSaturated()
+    {
+        return saturated;
+    }
+
+    /**
+     * Forgets the estimate, for instance after a reconnect.
+     */
+    public synchronized void reset()
+    {
+        windowOpen = false;
+        windowBytes = 0;
+        windowBlocked = 0;
+        windowPaced = false;
+        bytesPerSecond = 0;
+        blockedFraction = 0;
+        saturated = false;
+        nextWrite = Long.MIN_VALUE;
+    }
+}
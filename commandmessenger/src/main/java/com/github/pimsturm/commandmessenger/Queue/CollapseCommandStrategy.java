@@ -1,6 +1,7 @@
 package com.github.pimsturm.commandmessenger.Queue;
 
 import com.github.pimsturm.commandmessenger.Command;
+import com.github.pimsturm.commandmessenger.SendCommand;
 
 /// <summary> Collapse command strategy.
 /// 		  The purpose of the strategy is to avoid duplicates of a certain command on the queue
@@ -14,30 +15,25 @@ public class CollapseCommandStrategy extends CommandStrategy{
     public void Enqueue()
     {
         // find if there already is a command with the same CmdId
-        int index = getIndex(getCommand().getCmdId());
-        if (index < 0)
+        CommandStrategy queued = getCommandQueue().GetCollapsible(getCommand().getCmdId());
+        if (queued == null)
         {
             // if not, add to the back of the queue
-            getCommandQueue().Enqueue(this);
+            getCommandQueue().EnqueueCollapsible(this);
         }
         else
         {
             // if on the queue, replace with new command
-            getCommandQueue().set(index, this);
+            Command replaced = queued.getCommand();
+            queued.setCommand(getCommand());
+            // The replaced command is never sent, a pooled one goes back to the pool
+            if (replaced instanceof SendCommand && replaced != getCommand()) ((SendCommand) replaced).recycle();
         }
     }
 
-    private int getIndex(int cmdId)
+    /// <summary> Indicates if Enqueue will take up a new slot on the command queue. </summary>
+    public boolean GrowsQueue()
     {
-        for (int i = 0; i < getCommandQueue().size(); i++)
-        {
-            CommandStrategy commandStrategy = getCommandQueue().get(i);
-            if (cmdId == commandStrategy.getCommand().getCmdId())
-            {
-                return i;
-            }
-        }
-
-        return -1;
+        return getCommandQueue().GetCollapsible(getCommand().getCmdId()) == null;
     }
 }
@@ -9,7 +9,7 @@ import java.util.ArrayList;
 public abstract class CommandQueue {
     private final AsyncWorker _worker;
 
-    protected final ListQueue<CommandStrategy> Queue = new ListQueue<CommandStrategy>();   // Buffer for commands
+    protected final CommandStrategyQueue Queue = new CommandStrategyQueue();   // Buffer for commands
     protected final ArrayList<GeneralStrategy> GeneralStrategies = new ArrayList<GeneralStrategy>(); // Buffer for command independent strategies
 
     private boolean IsRunning;
@@ -17,24 +17,99 @@ public abstract class CommandQueue {
     private boolean IsSuspended;
     public boolean getIsSuspended() { return _worker.isSuspended(); }
 
-    /// <summary>Gets count of records in queue. NOT THREAD-SAFE.</summary>
+    private int _drainWaiters;      // Number of threads waiting for the queue to drain
+
+    /// <summary>Gets count of records in queue.</summary>
     private int Count;
     public int getCount()
     {
-        return Queue.size();
+        synchronized (Queue) { return Queue.size(); }
     }
 
-    /// <summary>Gets is queue is empty. NOT THREAD-SAFE.</summary>
+    /// <summary>Gets is queue is empty.</summary>
     private boolean IsEmpty;
     public boolean getIsEmpty()
     {
-        return Queue.size() == 0;
+        synchronized (Queue) { return Queue.isEmpty(); }
+    }
+
+    /// <summary> Waits until the queue has drained. The wait ends as soon as the queue signals
+    /// 		  that it is drained, there is no polling. </summary>
+    /// <param name="timeOut"> Time-out in ms, zero = infinity. </param>
+    /// <returns> true if the queue has drained, false on time-out or interrupt. </returns>
+    public boolean WaitForEmpty(long timeOut)
+    {
+        long deadline = System.nanoTime() + timeOut * 1000000L;
+        synchronized (Queue)
+        {
+            // The worker cannot wait for itself to drain the queue
+            if (IsWorkerThread()) return IsDrained();
+
+            _drainWaiters++;
+            try
+            {
+                while (!IsDrained())
+                {
+                    if (timeOut <= 0)
+                    {
+                        Queue.wait();
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return false;
+                    Queue.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                }
+                return true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally
+            {
+                _drainWaiters--;
+            }
+        }
+    }
+
+    /// <summary> Indicates if the queue has drained. Called while holding the queue lock. </summary>
+    protected boolean IsDrained()
+    {
+        return Queue.isEmpty();
+    }
+
+    /// <summary> Wakes up the threads waiting for the queue to drain, if it has.
+    /// 		  Must be called while holding the queue lock. </summary>
+    protected void SignalDrained()
+    {
+        if (_drainWaiters > 0 && IsDrained()) Queue.notifyAll();
+    }
+
+    /// <summary> Indicates if the calling thread is the worker thread of the queue. </summary>
+    protected boolean IsWorkerThread()
+    {
+        return _worker.isWorkerThread();
     }
 
-    /// <summary> Clears the queue. </summary>
+    /// <summary> Drops a command from the queue without processing it. The dequeue strategies run and threads
+    /// 		  waiting for the queue to drain are woken up. Must be called while holding the queue lock. </summary>
+    /// <param name="commandStrategy"> The command strategy to drop. </param>
+    protected void Drop(CommandStrategy commandStrategy)
+    {
+        commandStrategy.DeQueue();
+        for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnDequeue(); }
+        SignalDrained();
+    }
+
+    /// <summary> Clears the queue. Threads waiting for room on the queue or for the queue to drain are released. </summary>
     public void Clear()
     {
-        synchronized (Queue) {Queue.clear();}
+        synchronized (Queue)
+        {
+            Queue.clear();
+            Queue.notifyAll();
+        }
     }
 
     protected CommandQueue()
@@ -48,10 +123,14 @@ public abstract class CommandQueue {
     /// <param name="generalStrategy"> The general strategy. </param>
     public void AddGeneralStrategy(GeneralStrategy generalStrategy)
     {
-        // Give strategy access to queue
-        generalStrategy.setCommandQueue(Queue);
-        // Add to general strategy list
-        GeneralStrategies.add(generalStrategy);
+        synchronized (Queue)
+        {
+            // Give strategy access to queue
+            generalStrategy.setCommandQueue(Queue);
+            generalStrategy.setOwner(this);
+            // Add to general strategy list
+            GeneralStrategies.add(generalStrategy);
+        }
     }
 
     /// <summary>
@@ -1,6 +1,8 @@
 package com.github.pimsturm.commandmessenger.Queue;
 
 import com.github.pimsturm.commandmessenger.Command;
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.SendPriority;
 
 /// <summary> Base command strategy.  </summary>
 public class CommandStrategy {
@@ -9,15 +11,23 @@ public class CommandStrategy {
     public CommandStrategy(Command command)
     {
         Command = command;
+        Priority = command instanceof SendCommand ? ((SendCommand) command).getPriority() : SendPriority.Request;
+    }
+
+    /// <summary> Gets the lane of the queue the strategy is queued in, taken from the command when the
+    /// 		  strategy is created. A command collapsing into the strategy does not move it. </summary>
+    private final SendPriority Priority;
+    public SendPriority getPriority() {
+        return Priority;
     }
 
     /// <summary> Gets or sets the command queue. </summary>
     /// <value> A Queue of commands. </value>
-    private ListQueue<CommandStrategy> CommandQueue;
-    public ListQueue<CommandStrategy> getCommandQueue() {
+    private CommandStrategyQueue CommandQueue;
+    public CommandStrategyQueue getCommandQueue() {
         return CommandQueue;
     }
-    public void setCommandQueue(ListQueue<CommandStrategy> commandQueue) {
+    public void setCommandQueue(CommandStrategyQueue commandQueue) {
         CommandQueue = commandQueue;
     }
 
@@ -27,6 +37,9 @@ public class CommandStrategy {
     public Command getCommand() {
         return Command;
     }
+    protected void setCommand(Command command) {
+        Command = command;
+    }
 
     /// <summary> Add command (strategy) to command queue. </summary>
     public  void Enqueue()
@@ -34,6 +47,24 @@ public class CommandStrategy {
         CommandQueue.Enqueue(this);
     }
 
+    /// <summary> Indicates if Enqueue will take up a new slot on the command queue. </summary>
+    public boolean GrowsQueue()
+    {
+        return true;
+    }
+
+    /// <summary> Indicates if the command has passed its deadline and must be dropped instead of sent. </summary>
+    /// <param name="now"> The current time in ms. </param>
+    public boolean IsExpired(long now)
+    {
+        return false;
+    }
+
+    /// <summary> Called when the send queue has dropped the command because it expired. </summary>
+    public void OnExpired()
+    {
+    }
+
     /// <summary> Remove this command (strategy) from command queue. </summary>
     public  void DeQueue()
     {
@@ -0,0 +1,117 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.Command;
+import com.github.pimsturm.commandmessenger.IntObjectMap;
+import com.github.pimsturm.commandmessenger.SendPriority;
+
+import java.util.Arrays;
+
+/// <summary> Queue of command strategies.
+/// 		  The queue is divided into priority lanes, see SendPriority. The lanes follow each other
+/// 		  in priority order, so the front of the queue is the front of the highest non-empty lane.
+/// 		  Enqueue adds to the back of the lane of the strategy, EnqueueFront to the front of it.
+/// 		  Keeps an index from CmdId to the queued strategy that later commands with the same
+/// 		  CmdId collapse into, so collapsing does not have to scan the queue. </summary>
+public class CommandStrategyQueue extends ListQueue<CommandStrategy> {
+    private static final SendPriority[] PRIORITIES = SendPriority.values();
+
+    private final IntObjectMap<CommandStrategy> collapseIndex = new IntObjectMap<CommandStrategy>();
+    private final int[] laneCounts = new int[PRIORITIES.length];
+
+    /// <summary> Creates a queue without a practical maximum length. </summary>
+    public CommandStrategyQueue()
+    {
+        super();
+    }
+
+    /// <summary> Finds the queued strategy that commands with this CmdId collapse into. </summary>
+    /// <param name="cmdId"> The command ID. </param>
+    /// <returns> The queued strategy, or null if there is none. </returns>
+    public CommandStrategy GetCollapsible(int cmdId)
+    {
+        return collapseIndex.get(cmdId);
+    }
+
+    /// <summary> Adds a strategy to the back of its lane and indexes it by CmdId. </summary>
+    /// <param name="commandStrategy"> The strategy to queue. </param>
+    public void EnqueueCollapsible(CommandStrategy commandStrategy)
+    {
+        Enqueue(commandStrategy);
+        collapseIndex.put(commandStrategy.getCommand().getCmdId(), commandStrategy);
+    }
+
+    /// <summary> Adds a strategy to the back of its lane. </summary>
+    /// <param name="commandStrategy"> The strategy to queue. </param>
+    @Override
+    public void Enqueue(CommandStrategy commandStrategy)
+    {
+        insert(LaneEnd(commandStrategy.getPriority()), commandStrategy);
+    }
+
+    /// <summary> Adds a strategy to the front of its lane. </summary>
+    /// <param name="commandStrategy"> The strategy to queue. </param>
+    @Override
+    public void EnqueueFront(CommandStrategy commandStrategy)
+    {
+        insert(LaneStart(commandStrategy.getPriority()), commandStrategy);
+    }
+
+    /// <summary> Gets the number of strategies in a lane. </summary>
+    /// <param name="priority"> The lane. </param>
+    public int LaneCount(SendPriority priority)
+    {
+        return laneCounts[priority.ordinal()];
+    }
+
+    /// <summary> Gets the position of the first strategy of a lane. </summary>
+    /// <param name="priority"> The lane. </param>
+    public int LaneStart(SendPriority priority)
+    {
+        int start = 0;
+        for (int lane = 0; lane < priority.ordinal(); lane++) start += laneCounts[lane];
+        return start;
+    }
+
+    private int LaneEnd(SendPriority priority)
+    {
+        return LaneStart(priority) + laneCounts[priority.ordinal()];
+    }
+
+    /// <summary> Gets the oldest strategy of the lowest non-empty lane, the one to drop to make room.
+    /// 		  The strategy is left on the queue, so it can be dropped through its own DeQueue. </summary>
+    /// <returns> The strategy, or null if the queue is empty. </returns>
+    public CommandStrategy PeekLowest()
+    {
+        for (int lane = PRIORITIES.length - 1; lane >= 0; lane--)
+        {
+            if (laneCounts[lane] > 0) return get(LaneStart(PRIORITIES[lane]));
+        }
+        return null;
+    }
+
+    /// <summary> Removes all items from the queue and the index. </summary>
+    @Override
+    public void clear()
+    {
+        super.clear();
+        collapseIndex.clear();
+        Arrays.fill(laneCounts, 0);
+    }
+
+    @Override
+    protected void onAdded(CommandStrategy commandStrategy)
+    {
+        laneCounts[commandStrategy.getPriority().ordinal()]++;
+    }
+
+    @Override
+    protected void onRemoved(CommandStrategy commandStrategy)
+    {
+        laneCounts[commandStrategy.getPriority().ordinal()]--;
+        Command command = commandStrategy.getCommand();
+        if (command != null && collapseIndex.get(command.getCmdId()) == commandStrategy)
+        {
+            collapseIndex.remove(command.getCmdId());
+        }
+    }
+}
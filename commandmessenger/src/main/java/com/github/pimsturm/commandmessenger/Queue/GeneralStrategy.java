@@ -4,14 +4,29 @@ package com.github.pimsturm.commandmessenger.Queue;
 public class GeneralStrategy {
     /// <summary> Gets or sets the command queue. </summary>
     /// <value> A Queue of commands. </value>
-    private ListQueue<CommandStrategy> CommandQueue;
-    public ListQueue<CommandStrategy> getCommandQueue() {
+    private CommandStrategyQueue CommandQueue;
+    public CommandStrategyQueue getCommandQueue() {
         return CommandQueue;
     }
-    public void setCommandQueue(ListQueue<CommandStrategy> commandQueue) {
+    public void setCommandQueue(CommandStrategyQueue commandQueue) {
         CommandQueue = commandQueue;
     }
 
+    /// <summary> The queue the strategy was added to, it drops the commands. </summary>
+    private CommandQueue Owner;
+    void setOwner(CommandQueue owner) {
+        Owner = owner;
+    }
+
+    /// <summary> Drops a command through the queue the strategy was added to, so pooled commands are recycled
+    /// 		  and waiting threads are woken up. Without such a queue the command is only removed. </summary>
+    /// <param name="commandStrategy"> The command strategy to drop. </param>
+    protected void Drop(CommandStrategy commandStrategy)
+    {
+        if (Owner != null) Owner.Drop(commandStrategy);
+        else commandStrategy.DeQueue();
+    }
+
     /// <summary> GenerAdd command (strategy) to command queue. </summary>
     public void OnEnqueue()
     {
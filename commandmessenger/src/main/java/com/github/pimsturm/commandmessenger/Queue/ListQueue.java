@@ -1,30 +1,111 @@
 package com.github.pimsturm.commandmessenger.Queue;
 
-import java.util.ArrayList;
-
-/// <summary> Queue class.  </summary>
+/// <summary> Queue class. Bounded ring buffer with O(1) insertion at both ends.
+/// 		  The queue is not synchronized, callers lock on the queue instance. </summary>
 /// <typeparam name="T"> Type of object to queue. </typeparam>
-public class ListQueue<T> extends ArrayList<T> {
+public class ListQueue<T> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] items;
+    private int head;       // Slot of the item at the front of the queue
+    private int count;      // Number of items in the queue
+    private int maxLength;  // Maximum number of items in the queue
+
+    /// <summary> Creates a queue without a practical maximum length. </summary>
+    public ListQueue()
+    {
+        this(Integer.MAX_VALUE);
+    }
+
+    /// <summary> Creates a queue with a maximum length. </summary>
+    /// <param name="maxLength"> The maximum number of items in the queue. </param>
+    public ListQueue(int maxLength)
+    {
+        setMaxLength(maxLength);
+        items = new Object[Math.min(INITIAL_CAPACITY, maxLength)];
+    }
+
+    /// <summary> Gets the maximum number of items in the queue. </summary>
+    public int getMaxLength() { return maxLength; }
+
+    /// <summary> Sets the maximum number of items in the queue. Items already queued are kept. </summary>
+    /// <param name="maxLength"> The maximum number of items in the queue. </param>
+    public void setMaxLength(int maxLength)
+    {
+        if (maxLength < 1) throw new IllegalArgumentException("maxLength must be at least 1.");
+        this.maxLength = maxLength;
+    }
+
+    /// <summary> Gets the number of items in the queue. </summary>
+    public final int size() { return count; }
+
+    /// <summary> Indicates if the queue is empty. </summary>
+    public final boolean isEmpty() { return count == 0; }
+
+    /// <summary> Indicates if the queue has reached its maximum length. </summary>
+    public final boolean isFull() { return count >= maxLength; }
+
     /// <summary> Adds item to front of queue. </summary>
     /// <param name="item"> The item to queue. </param>
-    public final void EnqueueFront(T item)
+    public void EnqueueFront(T item)
     {
-        add(size(), item);
+        ensureRoom();
+        head = head == 0 ? items.length - 1 : head - 1;
+        items[head] = item;
+        count++;
+        onAdded(item);
     }
 
     /// <summary> Adds item to back of queue. </summary>
     /// <param name="item"> The item to queue. </param>
-    public final void Enqueue(T item)
+    public void Enqueue(T item)
     {
-        add(item);
+        ensureRoom();
+        items[slot(count)] = item;
+        count++;
+        onAdded(item);
+    }
+
+    /// <summary> Inserts an item at a position in the queue, 0 is the front.
+    /// 		  The shortest side of the ring is shifted, so insertion at either end is O(1). </summary>
+    /// <param name="index"> The position in the queue, from 0 to size. </param>
+    /// <param name="item"> The item to insert. </param>
+    public final void insert(int index, T item)
+    {
+        if (index < 0 || index > count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        ensureRoom();
+        if (index < count / 2)
+        {
+            // Shift the items in front of index one position to the front
+            head = head == 0 ? items.length - 1 : head - 1;
+            for (int i = 0; i < index; i++)
+            {
+                items[slot(i)] = items[slot(i + 1)];
+            }
+        }
+        else
+        {
+            // Shift the items from index one position to the back
+            for (int i = count; i > index; i--)
+            {
+                items[slot(i)] = items[slot(i - 1)];
+            }
+        }
+        items[slot(index)] = item;
+        count++;
+        onAdded(item);
     }
 
     /// <summary> fetches item from front of queue. </summary>
     /// <returns> The item to dequeue. </returns>
     public final T Dequeue()
     {
-        T t = this.get(0);
-        remove(0);
+        T t = Peek();
+        items[head] = null;
+        head = slot(1);
+        count--;
+        onRemoved(t);
         return t;
     }
 
@@ -32,6 +113,140 @@ public class ListQueue<T> extends ArrayList<T> {
     /// <returns> The item to peek at. </returns>
     public final T Peek()
     {
-        return this.get(0);
+        if (count == 0) throw new IndexOutOfBoundsException("The queue is empty.");
+        return get(0);
+    }
+
+    /// <summary> Gets the item at a position in the queue, 0 is the front. </summary>
+    /// <param name="index"> The position in the queue. </param>
+    /// <returns> The item. </returns>
+    @SuppressWarnings("unchecked")
+    public final T get(int index)
+    {
+        checkIndex(index);
+        return (T) items[slot(index)];
+    }
+
+    /// <summary> Replaces the item at a position in the queue, 0 is the front. </summary>
+    /// <param name="index"> The position in the queue. </param>
+    /// <param name="item"> The new item. </param>
+    /// <returns> The replaced item. </returns>
+    public final T set(int index, T item)
+    {
+        T old = get(index);
+        items[slot(index)] = item;
+        if (old != item)
+        {
+            onRemoved(old);
+            onAdded(item);
+        }
+        return old;
+    }
+
+    /// <summary> Removes the item at a position in the queue, 0 is the front.
+    /// 		  The shortest side of the ring is shifted, so removal at either end is O(1). </summary>
+    /// <param name="index"> The position in the queue. </param>
+    /// <returns> The removed item. </returns>
+    public final T remove(int index)
+    {
+        T old = get(index);
+        if (index < count / 2)
+        {
+            // Shift the items in front of index one position back
+            for (int i = index; i > 0; i--)
+            {
+                items[slot(i)] = items[slot(i - 1)];
+            }
+            items[head] = null;
+            head = slot(1);
+        }
+        else
+        {
+            // Shift the items behind index one position forward
+            for (int i = index; i < count - 1; i++)
+            {
+                items[slot(i)] = items[slot(i + 1)];
+            }
+            items[slot(count - 1)] = null;
+        }
+        count--;
+        onRemoved(old);
+        return old;
+    }
+
+    /// <summary> Removes the first occurrence of an item, compared with equals like List.remove. </summary>
+    /// <param name="item"> The item to remove. </param>
+    /// <returns> true if the item was found and removed. </returns>
+    public final boolean remove(Object item)
+    {
+        int index = indexOf(item);
+        if (index < 0) return false;
+        remove(index);
+        return true;
+    }
+
+    /// <summary> Finds the position of an item, compared with equals like List.indexOf. </summary>
+    /// <param name="item"> The item to find. </param>
+    /// <returns> The position in the queue, or -1 if not found. </returns>
+    public final int indexOf(Object item)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Object queued = items[slot(i)];
+            if (item == null ? queued == null : item.equals(queued)) return i;
+        }
+        return -1;
+    }
+
+    /// <summary> Removes all items from the queue. </summary>
+    public void clear()
+    {
+        for (int i = 0; i < count; i++)
+        {
+            items[slot(i)] = null;
+        }
+        head = 0;
+        count = 0;
+    }
+
+    /// <summary> Called after an item has been put on the queue by Enqueue, EnqueueFront, insert or set. </summary>
+    /// <param name="item"> The added item. </param>
+    protected void onAdded(T item)
+    {
+    }
+
+    /// <summary> Called after an item has been taken off the queue by Dequeue, remove or set.
+    /// 		  Not called for clear. </summary>
+    /// <param name="item"> The removed item. </param>
+    protected void onRemoved(T item)
+    {
+    }
+
+    private int slot(int index)
+    {
+        int slot = head + index;
+        return slot >= items.length ? slot - items.length : slot;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+    }
+
+    private void ensureRoom()
+    {
+        if (isFull()) throw new IllegalStateException("The queue is full.");
+        if (count < items.length) return;
+
+        // Grow the ring, but never beyond the maximum length
+        int capacity = (int) Math.min((long) items.length * 2, (long) maxLength);
+        Object[] grown = new Object[capacity];
+        for (int i = 0; i < count; i++)
+        {
+            grown[i] = items[slot(i)];
+        }
+        items = grown;
+        head = 0;
     }
 }
@@ -1,12 +1,16 @@
 package com.github.pimsturm.commandmessenger.Queue;
 
 import com.github.pimsturm.commandmessenger.CommandEventArgs;
+import com.github.pimsturm.commandmessenger.CommandFuture;
 import com.github.pimsturm.commandmessenger.IAsyncWorkerJob;
 import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.IntObjectMap;
 import com.github.pimsturm.commandmessenger.SendQueue;
 import com.github.pimsturm.commandmessenger.ReceivedCommand;
 import com.github.pimsturm.commandmessenger.ReceivedCommandSignal;
-import com.github.pimsturm.commandmessenger.Transport.ReceiveHandler;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+
+import java.util.ArrayList;
 
 /// <summary> Queue of received commands.  </summary>
 public class ReceiveCommandQueue extends CommandQueue {
@@ -14,10 +18,18 @@ public class ReceiveCommandQueue extends CommandQueue {
     //public event handleMessage<CommandEventArgs> newLineReceived;
     public IEventHandler NewLineReceived;
 
-    private ReceiveHandler _receivedCommandHandler;
-    private final ReceivedCommandSignal _receivedCommandSignal = new ReceivedCommandSignal();
+    private static final int BATCH_SIZE = 32;   // Maximum number of commands processed per wake-up
 
-    public ReceiveCommandQueue(ReceiveHandler receivedCommandHandler)
+    private CommandReceiver _receivedCommandHandler;
+    private final ReceivedCommandSignal _receivedCommandSignal = new ReceivedCommandSignal();
+    private final IntObjectMap<Boolean> _collapsibleCmdIds = new IntObjectMap<Boolean>();
+    private final ArrayList<ReceivedCommand> _batch = new ArrayList<ReceivedCommand>(BATCH_SIZE);
+    private boolean _processing;    // The worker is processing a batch
+    private final Object _suspendLock = new Object();          // Guards the suspend count
+    private final Object _transitionLock = new Object();       // Serialises the suspends and resumes of the worker
+    private int _suspendCount;
+
+    public ReceiveCommandQueue(CommandReceiver receivedCommandHandler)
     {
         super();
         _receivedCommandHandler = receivedCommandHandler;
@@ -42,39 +54,156 @@ public class ReceiveCommandQueue extends CommandQueue {
     public class ProcessQueue implements IAsyncWorkerJob {
         @Override
         public boolean execute() {
-            ReceivedCommand dequeueCommand;
             boolean hasMoreWork;
 
+            // Take a batch of commands off the queue in one go
+            _batch.clear();
             synchronized (Queue) {
-                dequeueCommand = DequeueCommandInternal();
+                while (_batch.size() < BATCH_SIZE) {
+                    ReceivedCommand dequeueCommand = DequeueCommandInternal();
+                    if (dequeueCommand == null) break;
+                    _batch.add(dequeueCommand);
+                }
                 hasMoreWork = !getIsEmpty();
+                _processing = !_batch.isEmpty();
             }
 
-            if (dequeueCommand != null) {
-                //_receivedCommandHandler.processCommand(dequeueCommand);
+            // Process the batch outside the lock
+            if (!_batch.isEmpty()) {
+                try {
+                    _receivedCommandHandler.processCommands(_batch);
+                } finally {
+                    synchronized (Queue) {
+                        _processing = false;
+                        SignalDrained();
+                    }
+                }
             }
 
             return hasMoreWork;
         }
     }
 
+    /// <summary> The queue has drained when it is empty and the last batch has been processed. </summary>
+    @Override
+    protected boolean IsDrained()
+    {
+        return Queue.isEmpty() && (!_processing || IsWorkerThread());
+    }
+
+    /// <summary> Collapses received commands with this CmdId: if such a command is still on the queue,
+    /// 		  it is replaced by the newer one, so only the latest one is processed. </summary>
+    /// <param name="cmdId"> The command ID. </param>
+    public void AddCollapsibleCommand(int cmdId)
+    {
+        synchronized (Queue)
+        {
+            _collapsibleCmdIds.put(cmdId, Boolean.TRUE);
+        }
+    }
+
     public ReceivedCommand WaitForCmd(int timeOut, int cmdId, SendQueue sendQueueState)
     {
         return _receivedCommandSignal.waitForCmd(timeOut, cmdId, sendQueueState);
     }
 
+    /// <summary> Registers a request for an acknowledge, before the command is sent. </summary>
+    /// <param name="cmdId"> The acknowledge command ID. </param>
+    /// <param name="sequence"> The sequence value the acknowledge carries as first argument, or null. </param>
+    /// <param name="sendQueueState"> ClearQueue drops other received commands while waiting. </param>
+    /// <returns> The pending request. </returns>
+    public ReceivedCommandSignal.PendingAck RegisterAck(int cmdId, String sequence, SendQueue sendQueueState)
+    {
+        return _receivedCommandSignal.register(cmdId, sequence, sendQueueState);
+    }
+
+    /// <summary> Registers a request for an acknowledge that completes a future. </summary>
+    /// <param name="cmdId"> The acknowledge command ID. </param>
+    /// <param name="sequence"> The sequence value the acknowledge carries as first argument, or null. </param>
+    /// <param name="future"> The future to complete with the acknowledge. </param>
+    /// <returns> The pending request. </returns>
+    public ReceivedCommandSignal.PendingAck RegisterAck(int cmdId, String sequence, CommandFuture future)
+    {
+        return _receivedCommandSignal.register(cmdId, sequence, SendQueue.Default, future);
+    }
+
+    /// <summary> Unregisters a request for an acknowledge, if it is still pending. </summary>
+    /// <param name="pendingAck"> The pending request. </param>
+    public void CancelAck(ReceivedCommandSignal.PendingAck pendingAck)
+    {
+        _receivedCommandSignal.cancel(pendingAck);
+    }
+
+    /// <summary> Waits for the acknowledge of a registered request. </summary>
+    /// <param name="pendingAck"> The pending request. </param>
+    /// <param name="timeOut"> Time-out in ms, zero = infinity. </param>
+    /// <returns> The acknowledge command, or null on time-out. </returns>
+    public ReceivedCommand WaitForAck(ReceivedCommandSignal.PendingAck pendingAck, int timeOut)
+    {
+        return _receivedCommandSignal.await(pendingAck, timeOut);
+    }
+
+    /// <summary> Suspends processing of the queue. Calls are counted, so several threads can suspend
+    /// 		  the queue at the same time. Returns when the worker has finished its current batch.
+    /// 		  Called from a callback on the worker thread it does nothing, the worker is busy anyway. </summary>
+    @Override
+    public void Suspend()
+    {
+        if (IsWorkerThread()) return;
+        synchronized (_suspendLock)
+        {
+            _suspendCount++;
+        }
+        ApplySuspendCount();
+    }
+
+    /// <summary> Resumes processing of the queue when the last suspender resumes. </summary>
+    @Override
+    public void Resume()
+    {
+        if (IsWorkerThread()) return;
+        synchronized (_suspendLock)
+        {
+            if (_suspendCount == 0) return;
+            _suspendCount--;
+        }
+        ApplySuspendCount();
+    }
+
+    /// <summary> Brings the worker in the state the suspend count asks for. The count is read under
+    /// 		  _suspendLock, the wait for the worker happens outside it, so suspenders and resumers are
+    /// 		  never blocked on a thread that is waiting for the worker. </summary>
+    private void ApplySuspendCount()
+    {
+        synchronized (_transitionLock)
+        {
+            boolean suspend;
+            synchronized (_suspendLock)
+            {
+                suspend = _suspendCount > 0;
+            }
+            if (suspend && getIsRunning()) super.Suspend();
+            else if (!suspend && getIsSuspended()) super.Resume();
+        }
+    }
+
     /// <summary> Queue the received command. </summary>
     /// <param name="receivedCommand"> The received command. </param>
     public void QueueCommand(ReceivedCommand receivedCommand)
     {
-        QueueCommand(new CommandStrategy(receivedCommand));
+        boolean collapse;
+        synchronized (Queue)
+        {
+            collapse = _collapsibleCmdIds.get(receivedCommand.getCmdId()) != null;
+        }
+        QueueCommand(collapse ? new CollapseCommandStrategy(receivedCommand) : new CommandStrategy(receivedCommand));
     }
 
     /// <summary> Queue the command wrapped in a command strategy. </summary>
     /// <param name="commandStrategy"> The command strategy. </param>
     public void QueueCommand(CommandStrategy commandStrategy)
     {
-        if (getIsSuspended())
+        if (getIsSuspended() || _receivedCommandSignal.hasPending())
         {
             // Directly send this command to waiting thread
             boolean addToQueue = _receivedCommandSignal.processCommand((ReceivedCommand) commandStrategy.getCommand());
@@ -84,8 +213,11 @@ public class ReceiveCommandQueue extends CommandQueue {
 
         synchronized (Queue)
         {
+            // Process commandStrategy enqueue associated with command
+            commandStrategy.setCommandQueue(Queue);
+            commandStrategy.Enqueue();
+
             // Process all generic enqueue strategies
-            Queue.Enqueue(commandStrategy);
             for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnEnqueue(); }
         }
 
@@ -103,7 +235,8 @@ public class ReceiveCommandQueue extends CommandQueue {
         if (!getIsEmpty())
         {
             for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnDequeue(); }
-            CommandStrategy commandStrategy = Queue.Dequeue();
+            CommandStrategy commandStrategy = Queue.Peek();
+            commandStrategy.DeQueue();
             receivedCommand = (ReceivedCommand)commandStrategy.getCommand();
         }
         return receivedCommand;
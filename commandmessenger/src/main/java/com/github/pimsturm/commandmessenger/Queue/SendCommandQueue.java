@@ -1,35 +1,61 @@
 package com.github.pimsturm.commandmessenger.Queue;
 
-import com.github.pimsturm.commandmessenger.Command;
 import com.github.pimsturm.commandmessenger.CommandEventArgs;
 import com.github.pimsturm.commandmessenger.CommunicationManager;
 import com.github.pimsturm.commandmessenger.IAsyncWorkerJob;
 import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.LinkThroughput;
+import com.github.pimsturm.commandmessenger.QueueOverflow;
 import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.SendPriority;
 import com.github.pimsturm.commandmessenger.SendQueue;
+import com.github.pimsturm.commandmessenger.TimeUtils;
+import com.github.pimsturm.commandmessenger.Transport.CommandEncoder;
+
+import java.util.List;
 
 public class SendCommandQueue extends CommandQueue {
     public IEventHandler NewLineSent;
 
+    private static final long MAX_PACING_SLEEP = 100000000L;    // ns, the worker rechecks its state in between
+
     private CommunicationManager _communicationManager;
+    private LinkThroughput _linkThroughput;
     private int _sendBufferMaxLength = 62;
-    private String _sendBuffer = "";
+    private final CommandEncoder _sendBuffer = new CommandEncoder();   // Commands combined into one write
     private int _commandCount;
+    private int _waitingProducers;      // Number of threads blocked on a full queue
+    private boolean _sending;           // Commands have been dequeued but not yet written
+
+    /// <summary> Gets or sets the maximum number of commands on the queue. </summary>
+    public int getMaxQueueLength() { return Queue.getMaxLength(); }
+    public void setMaxQueueLength(int maxQueueLength)
+    {
+        synchronized (Queue)
+        {
+            Queue.setMaxLength(maxQueueLength);
+            Queue.notifyAll();
+        }
+    }
 
-    private int MaxQueueLength; //uint
-    public int getMaxQueueLength() { return MaxQueueLength; }
-    public void setMaxQueueLength(int maxQueueLength) {MaxQueueLength = maxQueueLength;}
+    /// <summary> Gets or sets what happens to a new command when the queue is full. </summary>
+    private QueueOverflow Overflow = QueueOverflow.Block;
+    public QueueOverflow getOverflow() { return Overflow; }
+    public void setOverflow(QueueOverflow overflow) { Overflow = overflow; }
 
     /// <summary> send command queue constructor. </summary>
     /// <param name="communicationManager">The communication manager instance</param>
-    /// <param name="sendBufferMaxLength">Length of the send buffer</param>
+    /// <param name="sendBufferMaxLength">Maximum number of bytes combined into one write. The batches are
+    /// 								   made smaller when the measured link rate is low. </param>
     public SendCommandQueue(CommunicationManager communicationManager, int sendBufferMaxLength)
     {
         super();
-        MaxQueueLength = 5000;
+        Queue.setMaxLength(5000);
 
         _communicationManager = communicationManager;
         _sendBufferMaxLength = sendBufferMaxLength;
+        _sendBuffer.setFrameIntegrity(communicationManager.getFrameIntegrity());
+        _linkThroughput = communicationManager.getLinkThroughput();
     }
 
     @Override
@@ -49,91 +75,184 @@ public class SendCommandQueue extends CommandQueue {
     }
 
     /// <summary> Sends the commands from queue. All commands will be combined until either
-    /// 		   the SendBufferMaxLength  has been reached or if a command requires an acknowledge
-    /// 		   </summary>
+    /// 		   the batch size has been reached or if a command requires an acknowledge.
+    /// 		   Commands are taken in lane order, see SendPriority. An emergency command is written
+    /// 		   on its own right away, after the batch assembled so far, and is not paced.
+    /// 		   Commands that have expired are dropped.
+    /// 		   Writes are paced to the measured link rate, the batch size follows from it as well,
+    /// 		   see LinkThroughput. Commands keep collapsing on the queue while the worker waits. </summary>
     private void SendCommandsFromQueue()
     {
-        _commandCount = 0;
-        _sendBuffer = "";
-        CommandStrategy eventCommandStrategy = null;
-
-        // while maximum buffer string is not reached, and command in queue
-        while (_sendBuffer.length() < _sendBufferMaxLength && Queue.size() > 0)
+        long pacingDelay = _linkThroughput.getPacingDelay(System.nanoTime());
+        if (pacingDelay > 0)
         {
             synchronized (Queue)
             {
-                CommandStrategy commandStrategy = !getIsEmpty() ? Queue.Peek() : null;
-                if (commandStrategy != null)
+                if (Queue.LaneCount(SendPriority.Emergency) == 0)
                 {
-                    if (commandStrategy.getCommand() != null)
+                    try
                     {
-                        SendCommand sendCommand = (SendCommand)commandStrategy.getCommand();
-
-                        if (sendCommand.getReqAc())
-                        {
-                            if (_commandCount > 0)
-                            {
-                                break;
-                            }
-                            SendSingleCommandFromQueue(commandStrategy);
-                        }
-                        else
-                        {
-                            eventCommandStrategy = commandStrategy;
-                            AddToCommandString(commandStrategy);
-                        }
+                        // Queuing an emergency command ends the wait
+                        long wait = Math.min(pacingDelay, MAX_PACING_SLEEP);
+                        Queue.wait(wait / 1000000L, (int) (wait % 1000000L));
                     }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    // Check again, the wait may have been cut short
+                    return;
                 }
             }
-            // event callback outside lock for performance
-            if (eventCommandStrategy != null)
+        }
+
+        try
+        {
+            SendBatchFromQueue();
+        }
+        finally
+        {
+            synchronized (Queue)
             {
-                if (NewLineSent != null) NewLineSent.invokeEvent(this, new CommandEventArgs(eventCommandStrategy.getCommand()));
-                eventCommandStrategy = null;
+                // Everything that was dequeued has been written
+                _sending = false;
+                SignalDrained();
             }
         }
+    }
 
-        // Now check if a command string has been filled
-        if (_sendBuffer.length() > 0)
+    /// <summary> Sends one batch of commands from the queue. Commands are taken off the queue under its lock,
+    /// 		  they are written and their acknowledges are awaited outside it, so producers are not blocked meanwhile. </summary>
+    private void SendBatchFromQueue()
+    {
+        _commandCount = 0;
+        _sendBuffer.clear();
+        _communicationManager.configureEncoder(_sendBuffer);
+        final long now = TimeUtils.millis();
+        final int batchSize = _linkThroughput.getBatchSize(_sendBufferMaxLength);
+
+        // while maximum buffer string is not reached, and command in queue
+        while (_sendBuffer.length() < batchSize)
         {
-            _communicationManager.executeSendString(_sendBuffer, SendQueue.InFrontQueue);
+            CommandStrategy commandStrategy;
+            boolean expired = false;
+            synchronized (Queue)
+            {
+                commandStrategy = !getIsEmpty() ? Queue.Peek() : null;
+                if (commandStrategy == null) break;
+                SendCommand sendCommand = (SendCommand) commandStrategy.getCommand();
+                if (sendCommand == null)
+                {
+                    Drop(commandStrategy);
+                    continue;
+                }
+                if (commandStrategy.IsExpired(now))
+                {
+                    Drop(commandStrategy);
+                    expired = true;
+                }
+                else if (commandStrategy.getPriority() != SendPriority.Emergency && sendCommand.getReqAc() && _commandCount > 0)
+                {
+                    // The batch is written first
+                    break;
+                }
+                else
+                {
+                    Dequeue(commandStrategy);
+                }
+            }
+
+            if (expired)
+            {
+                commandStrategy.OnExpired();
+                continue;
+            }
+            SendCommand sendCommand = (SendCommand) commandStrategy.getCommand();
+            if (commandStrategy.getPriority() == SendPriority.Emergency)
+            {
+                // The batch assembled so far is written first, so nothing sent before the emergency command follows it
+                WriteCommandString();
+                SendSingleCommand(sendCommand);
+            }
+            else if (sendCommand.getReqAc())
+            {
+                SendSingleCommand(sendCommand);
+            }
+            else
+            {
+                AddToCommandString(sendCommand);
+            }
         }
+
+        WriteCommandString();
     }
 
-    /// <summary> Sends a float command from the queue. </summary>
+    /// <summary> Indicates if the queue has drained: it is empty and every command taken off it has been written.
+    /// 		  Called while holding the queue lock. </summary>
+    @Override
+    protected boolean IsDrained()
+    {
+        return Queue.isEmpty() && (!_sending || IsWorkerThread());
+    }
+
+    /// <summary> Takes a command off the queue to send it. Must be called while holding the queue lock. </summary>
     /// <param name="commandStrategy"> The command strategy to send. </param>
-    private void SendSingleCommandFromQueue(CommandStrategy commandStrategy)
+    private void Dequeue(CommandStrategy commandStrategy)
     {
-        // Dequeue
-        synchronized (Queue)
-        {
-            commandStrategy.DeQueue();
-            // Process all generic dequeue strategies
-            for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnDequeue(); }
-        }
-        // Send command
-        if (commandStrategy.getCommand() != null)
-            _communicationManager.executeSendCommand((SendCommand) commandStrategy.getCommand(), SendQueue.InFrontQueue);
+        commandStrategy.DeQueue();
+        // Process all generic dequeue strategies
+        for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnDequeue(); }
+        _sending = true;
+        // Wake up producers waiting for room, the queue has drained only after the write
+        if (_waitingProducers > 0) Queue.notifyAll();
+    }
+
+    /// <summary> Drops a command from the queue without sending it. The command goes through the same
+    /// 		  dequeue path as a sent one: the dequeue strategies run, producers waiting for room and threads
+    /// 		  waiting for the queue to drain are woken up, and a pooled command is recycled.
+    /// 		  Must be called while holding the queue lock. </summary>
+    /// <param name="commandStrategy"> The command strategy to drop. </param>
+    @Override
+    protected void Drop(CommandStrategy commandStrategy)
+    {
+        commandStrategy.DeQueue();
+        for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnDequeue(); }
+        if (_waitingProducers > 0) Queue.notifyAll();
+        else SignalDrained();
+        if (commandStrategy.getCommand() != null) ((SendCommand) commandStrategy.getCommand()).recycle();
     }
 
-    /// <summary> Adds a commandStrategy to the commands string.  </summary>
-    /// <param name="commandStrategy"> The command strategy to add. </param>
-    private void AddToCommandString(CommandStrategy commandStrategy)
+    /// <summary> Sends a command that was taken off the queue on its own, waiting for its acknowledge if it requests one. </summary>
+    /// <param name="sendCommand"> The command to send. </param>
+    private void SendSingleCommand(SendCommand sendCommand)
     {
-        // Dequeue
-        synchronized (Queue)
-        {
-            commandStrategy.DeQueue();
-            // Process all generic dequeue strategies
-            for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnDequeue(); }
-        }
-        // Add command
-        if (commandStrategy.getCommand() != null)
+        _communicationManager.executeSendCommand(sendCommand, SendQueue.InFrontQueue);
+        sendCommand.recycle();
+    }
+
+    /// <summary> Adds a command that was taken off the queue to the commands string. </summary>
+    /// <param name="sendCommand"> The command to add. </param>
+    private void AddToCommandString(SendCommand sendCommand)
+    {
+        _commandCount++;
+        _sendBuffer.encode(sendCommand);
+        if (NewLineSent != null)
         {
-            _commandCount++;
-            _sendBuffer += commandStrategy.getCommand().commandString();
-//            if (_communicationManager.getPrintLfCr()) { _sendBuffer += "\r\n"; }
+            // Listeners may keep the command, a pooled one is reused after this so they get a copy
+            SendCommand eventCommand = sendCommand.isRecyclable() ? sendCommand.copy() : sendCommand;
+            NewLineSent.invokeEvent(this, new CommandEventArgs(eventCommand));
         }
+        // The command has been encoded, a pooled command can be reused
+        sendCommand.recycle();
+    }
+
+    /// <summary> Writes the commands string, if it holds any commands, and starts a new one. </summary>
+    private void WriteCommandString()
+    {
+        if (_sendBuffer.length() == 0) return;
+        _communicationManager.executeSendCommands(_sendBuffer);
+        _sendBuffer.clear();
+        _commandCount = 0;
     }
 
     /// <summary> Sends a command. Note that the command is put at the front of the queue </summary>
@@ -155,24 +274,102 @@ public class SendCommandQueue extends CommandQueue {
     /// <param name="commandStrategy"> The command strategy. </param>
     public void QueueCommand(CommandStrategy commandStrategy)
     {
-        while (Queue.size() > MaxQueueLength)
-        {
-            Thread.yield();
-        }
-
         synchronized (Queue)
         {
-            // Process commandStrategy enqueue associated with command
             commandStrategy.setCommandQueue(Queue);
-            Command command = commandStrategy.getCommand();
+
+            // Apply the overflow policy if there is no room for the command.
+            // A command that collapses into a queued one does not need room.
+            if (commandStrategy.GrowsQueue() && !MakeRoom(commandStrategy.getPriority())) return;
+
+            // Process commandStrategy enqueue associated with command
             ((SendCommand)commandStrategy.getCommand()).initArguments();
 
             commandStrategy.Enqueue();
 
             // Process all generic enqueue strategies
             for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnEnqueue(); }
+
+            // Wake up the worker if it is pacing its writes
+            if (commandStrategy.getPriority() == SendPriority.Emergency) Queue.notifyAll();
         }
 
         SignalWorker();
     }
+
+    /// <summary> Queues several commands at once, so the worker finds them together and combines
+    /// 		  them into one write. </summary>
+    /// <param name="commandStrategies"> The command strategies. </param>
+    public void QueueCommands(List<CommandStrategy> commandStrategies)
+    {
+        synchronized (Queue)
+        {
+            for (int i = 0; i < commandStrategies.size(); i++)
+            {
+                CommandStrategy commandStrategy = commandStrategies.get(i);
+                commandStrategy.setCommandQueue(Queue);
+                if (commandStrategy.GrowsQueue() && !MakeRoom(commandStrategy.getPriority())) break;
+
+                ((SendCommand)commandStrategy.getCommand()).initArguments();
+                commandStrategy.Enqueue();
+                for (GeneralStrategy generalStrategy : GeneralStrategies) { generalStrategy.OnEnqueue(); }
+                if (commandStrategy.getPriority() == SendPriority.Emergency) Queue.notifyAll();
+            }
+        }
+
+        SignalWorker();
+    }
+
+    /// <summary> Removes the commands of a lane, for instance the control setpoints after an emergency stop.
+    /// 		  The commands are dropped like expired ones, see Drop. </summary>
+    /// <param name="priority"> The lane. </param>
+    public void ClearLane(SendPriority priority)
+    {
+        synchronized (Queue)
+        {
+            while (Queue.LaneCount(priority) > 0) Drop(Queue.get(Queue.LaneStart(priority)));
+        }
+    }
+
+    /// <summary> Makes room for one more command on the queue, according to the overflow policy.
+    /// 		  The oldest command of the lowest lane is dropped. Emergency commands never wait or fail,
+    /// 		  room is always made for them. Must be called while holding the queue lock. </summary>
+    /// <param name="priority"> The lane of the new command. </param>
+    /// <returns> false if the thread was interrupted while waiting for room. </returns>
+    private boolean MakeRoom(SendPriority priority)
+    {
+        while (Queue.isFull())
+        {
+            if (priority == SendPriority.Emergency)
+            {
+                Drop(Queue.PeekLowest());
+                continue;
+            }
+            switch (Overflow)
+            {
+                case FailFast:
+                    throw new IllegalStateException("The send queue is full.");
+                case DropOldest:
+                    Drop(Queue.PeekLowest());
+                    break;
+                default:
+                    _waitingProducers++;
+                    try
+                    {
+                        Queue.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    finally
+                    {
+                        _waitingProducers--;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
 }
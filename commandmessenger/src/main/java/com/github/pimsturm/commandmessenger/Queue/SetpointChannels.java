@@ -0,0 +1,194 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.SendPriority;
+import com.github.pimsturm.commandmessenger.TimeUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/// <summary> Latest-value-wins channels for control setpoints, like the speed of a motor.
+/// 		  A channel only holds its newest setpoint, which is queued in the Control lane. At a fixed rate the changed channels are queued
+/// 		  together, so they are written in one go, and setpoints older than the deadline are dropped.
+/// 		  Setpoints that are still queued are replaced by newer ones, see CollapseCommandStrategy,
+/// 		  and are dropped from the queue as well when they pass the deadline. A channel is only sent
+/// 		  again after its next Set. This keeps the control latency bounded when the link is slower than the sensors. </summary>
+public class SetpointChannels
+{
+    private final SendCommandQueue _sendCommandQueue;
+    private final ArrayList<Channel> _channels = new ArrayList<Channel>();     // Guarded by itself
+    private final ArrayList<CommandStrategy> _flushed = new ArrayList<CommandStrategy>();   // Used by Flush only
+    private long _flushInterval;
+    private long _deadline;
+    private long _droppedSetpoints;
+    private ScheduledExecutorService _scheduler;
+    private ScheduledFuture<?> _flushTask;
+
+    /// <summary> A control channel, sent as a command with the setpoint as its only argument. </summary>
+    public final class Channel
+    {
+        private final int _cmdId;
+        private int _setpoint;
+        private long _timeStamp;
+        private boolean _dirty;
+
+        private Channel(int cmdId) { _cmdId = cmdId; }
+
+        public int getCmdId() { return _cmdId; }
+
+        /// <summary> Sets the newest setpoint, it replaces the setpoint that has not been flushed yet. </summary>
+        /// <param name="setpoint"> The setpoint. </param>
+        public void Set(int setpoint)
+        {
+            synchronized (_channels)
+            {
+                _setpoint = setpoint;
+                _timeStamp = TimeUtils.millis();
+                _dirty = true;
+            }
+        }
+    }
+
+    /// <summary> Collapses a setpoint into the queued setpoint of its channel, and expires it at the deadline. </summary>
+    private final class SetpointStrategy extends CollapseCommandStrategy
+    {
+        private final long _deadline;
+
+        private SetpointStrategy(SendCommand command, long deadline)
+        {
+            super(command);
+            _deadline = deadline;
+        }
+
+        // The command may have been replaced by a newer setpoint, so its own time stamp counts
+        @Override
+        public boolean IsExpired(long now) { return now - getCommand().getTimeStamp() > _deadline; }
+
+        @Override
+        public void OnExpired()
+        {
+            synchronized (_channels) { _droppedSetpoints++; }
+        }
+    }
+
+    /// <summary> Setpoint channels. </summary>
+    /// <param name="sendCommandQueue"> The queue the setpoints are flushed to. </param>
+    /// <param name="flushInterval"> Time between flushes in ms. </param>
+    /// <param name="deadline"> Maximum age in ms of a setpoint when it is flushed. </param>
+    public SetpointChannels(SendCommandQueue sendCommandQueue, long flushInterval, long deadline)
+    {
+        _sendCommandQueue = sendCommandQueue;
+        _flushInterval = flushInterval;
+        _deadline = deadline;
+    }
+
+    /// <summary> Adds a control channel. </summary>
+    /// <param name="cmdId"> The command ID the setpoints are sent with. </param>
+    /// <returns> The channel. </returns>
+    public Channel AddChannel(int cmdId)
+    {
+        Channel channel = new Channel(cmdId);
+        synchronized (_channels) { _channels.add(channel); }
+        return channel;
+    }
+
+    /// <summary> Gets or sets the time between flushes in ms. A new interval takes effect on the next Start. </summary>
+    public synchronized long getFlushInterval() { return _flushInterval; }
+    public synchronized void setFlushInterval(long flushInterval) { _flushInterval = flushInterval; }
+
+    /// <summary> Gets or sets the maximum age in ms of a setpoint when it is flushed or sent. </summary>
+    public long getDeadline() { synchronized (_channels) { return _deadline; } }
+    public void setDeadline(long deadline) { synchronized (_channels) { _deadline = deadline; } }
+
+    /// <summary> Gets the number of setpoints that were dropped because they passed the deadline. </summary>
+    public long getDroppedSetpoints() { synchronized (_channels) { return _droppedSetpoints; } }
+
+    /// <summary> Starts flushing the channels at the flush interval. </summary>
+    public synchronized void Start()
+    {
+        if (_flushTask != null) return;
+        if (_scheduler == null)
+        {
+            _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CmdMessengerSetpoints");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        _flushTask = _scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Flush();
+            }
+        }, _flushInterval, _flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /// <summary> Stops flushing the channels, setpoints that have not been flushed are kept. </summary>
+    public synchronized void Stop()
+    {
+        if (_flushTask != null) _flushTask.cancel(false);
+        _flushTask = null;
+    }
+
+    /// <summary> Stops flushing and ends the flush thread. </summary>
+    public synchronized void Dispose()
+    {
+        Stop();
+        if (_scheduler != null) _scheduler.shutdownNow();
+        _scheduler = null;
+    }
+
+    /// <summary> Discards the setpoints that have not been flushed, for instance before an emergency stop. </summary>
+    public void Clear()
+    {
+        synchronized (_channels)
+        {
+            for (int i = 0; i < _channels.size(); i++) _channels.get(i)._dirty = false;
+        }
+    }
+
+    /// <summary> Queues the changed channels together. Called at the flush interval. </summary>
+    public void Flush()
+    {
+        synchronized (_flushed)
+        {
+            _flushed.clear();
+            Collect(TimeUtils.millis(), _flushed);
+            if (!_flushed.isEmpty()) _sendCommandQueue.QueueCommands(_flushed);
+        }
+    }
+
+    /// <summary> Takes the changed channels that are within the deadline as commands. </summary>
+    /// <param name="now"> The current time in ms. </param>
+    /// <param name="commandStrategies"> Receives the commands. </param>
+    void Collect(long now, List<CommandStrategy> commandStrategies)
+    {
+        synchronized (_channels)
+        {
+            for (int i = 0; i < _channels.size(); i++)
+            {
+                Channel channel = _channels.get(i);
+                if (!channel._dirty) continue;
+                channel._dirty = false;
+                if (now - channel._timeStamp > _deadline)
+                {
+                    _droppedSetpoints++;
+                    continue;
+                }
+                SendCommand command = SendCommand.obtain(channel._cmdId);
+                command.setPriority(SendPriority.Control);
+                command.addArgument(channel._setpoint);
+                command.setTimeStamp(channel._timeStamp);
+                commandStrategies.add(new SetpointStrategy(command, _deadline));
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.github.pimsturm.commandmessenger.TimeUtils;
 /// <summary> Stale strategy. Any command older than the time-out is removed from the queue</summary>
 public class StaleGeneralStrategy extends GeneralStrategy{
     private final long _commandTimeOut;
+    private boolean _dropping;      // Dropping a command runs OnDequeue again
 
     /// <summary> Stale strategy. Any command older than the time-out is removed from the queue</summary>
     /// <param name="commandTimeOut"> The time-out for any commands on the queue. </param>
@@ -16,21 +17,23 @@ public class StaleGeneralStrategy extends GeneralStrategy{
     /// <summary> Remove this command (strategy) from command queue. </summary>
     public void OnDequeue()
     {
-        // Remove commands that have gone stale
-        long currentTime = TimeUtils.millis;
-        // Work from oldest to newest
-        for (int item = 0; item < getCommandQueue().size(); item++)
+        if (_dropping) return;
+        // Remove commands that have gone stale. The lanes are not ordered by age, commands can be put at
+        // the front of their lane, so every command is checked. The last command is left for the dequeue.
+        long currentTime = TimeUtils.millis();
+        CommandStrategyQueue queue = getCommandQueue();
+        _dropping = true;
+        try
         {
-            long age = currentTime - getCommandQueue().get(item).getCommand().getTimeStamp();
-            if (age > _commandTimeOut && getCommandQueue().size() > 1 )
+            for (int i = queue.size() - 1; i >= 0 && queue.size() > 1; i--)
             {
-                getCommandQueue().remove(item);
-            }
-            else
-            {
-                // From here on commands are newer, so we can stop
-                break;
+                CommandStrategy commandStrategy = queue.get(i);
+                if (currentTime - commandStrategy.getCommand().getTimeStamp() > _commandTimeOut) Drop(commandStrategy);
             }
         }
+        finally
+        {
+            _dropping = false;
+        }
     }
 }
@@ -2,9 +2,9 @@ package com.github.pimsturm.commandmessenger.Queue;
 
 import com.github.pimsturm.commandmessenger.Command;
 
-/// <summary>  Top strategy. The command is added to the front of the queue</summary>
+/// <summary>  Top strategy. The command is added to the front of its priority lane</summary>
 public class TopCommandStrategy extends CommandStrategy {
-    /// <summary>  Top strategy. The command is added to the front of the queue</summary>
+    /// <summary>  Top strategy. The command is added to the front of its priority lane</summary>
     /// <param name="command"> The command to add to the front of the queue. </param>
     public TopCommandStrategy(Command command)
     {
@@ -0,0 +1,10 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * What the send queue does with a new command when it has reached its maximum length.
+ */
+public enum QueueOverflow {
+    Block,          // Wait until the queue has room
+    FailFast,       // Throw an IllegalStateException
+    DropOldest      // Remove the oldest command of the lowest priority lane
+}
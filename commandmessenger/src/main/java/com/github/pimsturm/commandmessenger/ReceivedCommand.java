@@ -1,21 +1,37 @@
 package com.github.pimsturm.commandmessenger;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 /**
  * A command received from CmdMessenger
+ * Commands with a schema are decoded into typed slots straight from the received bytes:
+ * numbers are kept as primitives and the read methods return them without parsing text.
+ * Commands without a schema keep their received text: integers are parsed straight from the bytes,
+ * a String is only created when an argument is read as text.
  */
 public class ReceivedCommand extends Command {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
     private int parameter = -1;    // The parameter
     private boolean dumped = true;  // true if parameter has been dumped
 
+    private ArgumentType[] argTypes;    // Types of the decoded arguments, null for a command with text arguments
+    private long[] argValues;           // Decoded numbers, floating point numbers as raw bits
+    private String[] argStrings;        // String arguments and arguments that could not be decoded
+    private byte[] argText;             // Received text of a command without a schema, null otherwise
+    private int[] argBounds;            // Start and end of each argument in argText
+    private int argCount;
+    private byte[] binBuffer;           // Unescaped bytes of the binary argument being read
+
     private String rawString;
 
     /**
      * Gets the command input.
+     * Commands parsed from the byte stream do not keep their raw line, for those the command string is rebuilt.
      * @return The raw string.
      */
-    public String getRawString() {return rawString;}
+    public String getRawString() {return rawString != null ? rawString : commandString();}
     public void setRawString(String rawString) {
         this.rawString = rawString;}
 
@@ -30,7 +46,9 @@ public class ReceivedCommand extends Command {
     public ReceivedCommand(String[] rawArguments)
     {
         super();
-        setCmdId(rawArguments != null && rawArguments.length !=0 ? Integer.getInteger(rawArguments[0], -1): -1);
+        long cmdId = rawArguments != null && rawArguments.length != 0
+                ? AsciiDecoder.parseInRange(rawArguments[0], Integer.MIN_VALUE, Integer.MAX_VALUE) : AsciiDecoder.INVALID;
+        setCmdId(cmdId != AsciiDecoder.INVALID ? (int) cmdId : -1);
         if (getCmdId() < 0) return;
         if (rawArguments.length > 1)
         {
@@ -40,6 +58,94 @@ public class ReceivedCommand extends Command {
         }
     }
 
+    /**
+     * Constructor for a command whose arguments are kept as received text.
+     * @param text The received text, the command keeps it.
+     * @param fieldBounds Start and end in text of each field, first one is the command ID.
+     * @param fieldCount Number of fields.
+     */
+    public ReceivedCommand(byte[] text, int[] fieldBounds, int fieldCount)
+    {
+        super();
+        long cmdId = fieldCount != 0
+                ? AsciiDecoder.parseInRange(text, fieldBounds[0], fieldBounds[1] - fieldBounds[0], Integer.MIN_VALUE, Integer.MAX_VALUE)
+                : AsciiDecoder.INVALID;
+        setCmdId(cmdId != AsciiDecoder.INVALID ? (int) cmdId : -1);
+        if (getCmdId() < 0) return;
+        argText = text;
+        argCount = fieldCount - 1;
+        argBounds = Arrays.copyOfRange(fieldBounds, 2, 2 * fieldCount);
+        argStrings = new String[argCount];
+    }
+
+    /**
+     * Constructor for a command that is decoded into typed slots.
+     * @param cmdId The command ID.
+     * @param capacity Expected number of arguments.
+     */
+    public ReceivedCommand(int cmdId, int capacity)
+    {
+        super();
+        setCmdId(cmdId);
+        capacity = Math.max(capacity, 1);
+        argTypes = new ArgumentType[capacity];
+        argValues = new long[capacity];
+        argStrings = new String[capacity];
+    }
+
+    /**
+     * Adds a decoded number. Used by the decoder.
+     * @param type The type of the argument.
+     * @param value The value, floating point numbers as raw bits: Float.floatToRawIntBits or Double.doubleToRawLongBits.
+     */
+    public void putArgument(ArgumentType type, long value)
+    {
+        ensureSlot();
+        argTypes[argCount] = type;
+        argValues[argCount] = value;
+        argCount++;
+    }
+
+    /**
+     * Adds a string argument, or the text of an argument that could not be decoded. Used by the decoder.
+     * @param value The text.
+     */
+    public void putArgument(String value)
+    {
+        ensureSlot();
+        argTypes[argCount] = ArgumentType.String;
+        argStrings[argCount] = value;
+        argCount++;
+    }
+
+    @Override
+    public int getArgumentCount()
+    {
+        return argTypes != null || argText != null ? argCount : cmdArgs.size();
+    }
+
+    /**
+     * Gets a command argument. Decoded numbers are returned as decimal text.
+     * @param index Index of the argument.
+     * @return The argument.
+     */
+    @Override
+    public String getArgument(int index)
+    {
+        if (argTypes == null && argText == null) return cmdArgs.get(index);
+        if (index < 0 || index >= argCount) throw new IndexOutOfBoundsException("index");
+        return text(index);
+    }
+
+    @Override
+    public String[] getArguments()
+    {
+        if (argTypes == null && argText == null) return super.getArguments();
+        String[] arguments = new String[argCount];
+        for (int i = 0; i < argCount; i++) arguments[i] = text(i);
+        return arguments;
+    }
+
     /**
      * Fetches the next argument.
      * @return true if it succeeds, false if it fails.
@@ -49,7 +155,7 @@ public class ReceivedCommand extends Command {
         // If this parameter has already been read, see if there is another one
         if (dumped)
         {
-            if (parameter < cmdArgs.size()-1)
+            if (parameter < getArgumentCount()-1)
             {
                 parameter++;
                 dumped = false;
@@ -79,30 +185,42 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            try {
-                short current = Short.parseShort(cmdArgs.get(parameter));
+            if (isNumber(parameter))
+            {
                 dumped = true;
-                return current;
-            } catch (NumberFormatException e){}
+                return (short) longValue(parameter);
+            }
+            long current = parseInRange(parameter, Short.MIN_VALUE, Short.MAX_VALUE);
+            if (current != AsciiDecoder.INVALID)
+            {
+                dumped = true;
+                return (short) current;
+            }
         }
         return 0;
     }
 
     /**
      * Reads the current argument as unsigned short value.
-     * @return The unsigned short value.
+     * @return The unsigned short value, as an int.
      */
-    public UInt16 readUInt16Arg()
+    public int readUInt16Arg()
     {
         if (next())
         {
-            try {
-                UInt16 current = new UInt16(cmdArgs.get(parameter));
+            if (isNumber(parameter))
+            {
                 dumped = true;
-                return current;
-            } catch (NumberFormatException e) {}
+                return (int) longValue(parameter);
+            }
+            long current = parseInRange(parameter, UInt16.MIN_VALUE, UInt16.MAX_VALUE);
+            if (current != AsciiDecoder.INVALID)
+            {
+                dumped = true;
+                return (int) current;
+            }
         }
-        return new UInt16(0);
+        return 0;
     }
 
     /**
@@ -122,31 +240,42 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            try {
-                int current = Integer.parseInt(cmdArgs.get(parameter));
+            if (isNumber(parameter))
+            {
                 dumped = true;
-                return current;
-            } catch (NumberFormatException e){}
+                return (int) longValue(parameter);
+            }
+            long current = parseInRange(parameter, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            if (current != AsciiDecoder.INVALID)
+            {
+                dumped = true;
+                return (int) current;
+            }
         }
         return 0;
     }
 
     /**
      * Reads the current argument as unsigned int value.
-     * @return The unsigned int value.
+     * @return The unsigned int value, as a long.
      */
-    public UInt32 readUInt32Arg()
+    public long readUInt32Arg()
     {
         if (next())
         {
-            try {
-                UInt32 current = new UInt32(cmdArgs.get(parameter));
+            if (isNumber(parameter))
+            {
+                dumped = true;
+                return longValue(parameter);
+            }
+            long current = parseInRange(parameter, UInt32.MIN_VALUE, UInt32.MAX_VALUE);
+            if (current != AsciiDecoder.INVALID)
+            {
                 dumped = true;
                 return current;
-            } catch (NumberFormatException e) {}
-
+            }
         }
-        return new UInt32(0);
+        return 0;
     }
 
     /**
@@ -157,8 +286,13 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
+            if (isNumber(parameter))
+            {
+                dumped = true;
+                return (float) doubleValue(parameter);
+            }
             try {
-                float current = Float.parseFloat(cmdArgs.get(parameter));
+                float current = Float.parseFloat(text(parameter));
                 dumped = true;
                 return current;
             } catch (NumberFormatException e){}
@@ -174,10 +308,15 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
+            if (isNumber(parameter))
+            {
+                dumped = true;
+                return doubleValue(parameter);
+            }
             if (settings.getBoardType() == BoardType.Bit16)
             {
                 try {
-                    float current = Float.parseFloat(cmdArgs.get(parameter));
+                    float current = Float.parseFloat(text(parameter));
                     dumped = true;
                     return (double)current;
                 } catch (NumberFormatException e){}
@@ -186,7 +325,7 @@ public class ReceivedCommand extends Command {
             else
             {
                 try {
-                    double current = Double.parseDouble(cmdArgs.get(parameter));
+                    double current = Double.parseDouble(text(parameter));
                     dumped = true;
                     return current;
                 } catch (NumberFormatException e){}
@@ -198,16 +337,18 @@ public class ReceivedCommand extends Command {
 
     /**
      * Reads the current argument as a string value.
+     * The argument is returned as it was received, escape characters included. An argument that
+     * the Arduino sent escaped, with sendCmdEscArg or as binary, is read with readBinStringArg.
      * @return The string value.
      */
     public String readStringArg()
     {
         if (next())
         {
-            if (cmdArgs.get(parameter) != null)
+            if (text(parameter) != null)
             {
                 dumped = true;
-                return cmdArgs.get(parameter);
+                return text(parameter);
             }
         }
         return "";
@@ -223,11 +364,15 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            Float current = BinaryConverter.toFloat(cmdArgs.get(parameter));
-            if (current != null)
+            if (isNumber(parameter))
+            {
+                dumped = true;
+                return (float) doubleValue(parameter);
+            }
+            if (unescapeBinary(4))
             {
                 dumped = true;
-                return (float) current;
+                return BitConverter.getFloat(binBuffer, 0);
             }
         }
         return 0;
@@ -241,22 +386,25 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
+            if (isNumber(parameter))
+            {
+                dumped = true;
+                return doubleValue(parameter);
+            }
             if (settings.getBoardType() == BoardType.Bit16)
             {
-                Float current = BinaryConverter.toFloat(cmdArgs.get(parameter));
-                if (current != null)
+                if (unescapeBinary(4))
                 {
                     dumped = true;
-                    return (double) current;
+                    return BitConverter.getFloat(binBuffer, 0);
                 }
             }
             else
             {
-                Double current = BinaryConverter.toDouble(cmdArgs.get(parameter));
-                if (current != null)
+                if (unescapeBinary(8))
                 {
                     dumped = true;
-                    return current;
+                    return BitConverter.getDouble(binBuffer, 0);
                 }
             }
         }
@@ -271,11 +419,15 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            Short current = BinaryConverter.toInt16(cmdArgs.get(parameter));
-            if (current != null)
+            if (isNumber(parameter))
             {
                 dumped = true;
-                return current;
+                return (short) longValue(parameter);
+            }
+            if (unescapeBinary(2))
+            {
+                dumped = true;
+                return BitConverter.getInt16(binBuffer, 0);
             }
         }
         return 0;
@@ -283,20 +435,24 @@ public class ReceivedCommand extends Command {
 
     /**
      * Reads the current binary argument as a unsigned short value.
-     * @return The unsigned short value.
+     * @return The unsigned short value, as an int.
      */
-    public UInt16 readBinUInt16Arg()
+    public int readBinUInt16Arg()
     {
         if (next())
         {
-            UInt16 current = BinaryConverter.toUInt16(cmdArgs.get(parameter));
-            if (current != null)
+            if (isNumber(parameter))
             {
                 dumped = true;
-                return current;
+                return (int) longValue(parameter);
+            }
+            if (unescapeBinary(2))
+            {
+                dumped = true;
+                return BitConverter.getUInt16(binBuffer, 0);
             }
         }
-        return new UInt16(0);
+        return 0;
     }
 
     /**
@@ -307,11 +463,15 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            Integer current = BinaryConverter.toInt32(cmdArgs.get(parameter));
-            if (current != null)
+            if (isNumber(parameter))
             {
                 dumped = true;
-                return current;
+                return (int) longValue(parameter);
+            }
+            if (unescapeBinary(4))
+            {
+                dumped = true;
+                return BitConverter.getInt32(binBuffer, 0);
             }
         }
         return 0;
@@ -319,20 +479,24 @@ public class ReceivedCommand extends Command {
 
     /**
      * Reads the current binary argument as an unsigned int value.
-     * @return The unsigned int value.
+     * @return The unsigned int value, as a long.
      */
-    public UInt32 readBinUInt32Arg()
+    public long readBinUInt32Arg()
     {
         if (next())
         {
-            UInt32 current = BinaryConverter.toUInt32(cmdArgs.get(parameter));
-            if (current != null)
+            if (isNumber(parameter))
             {
                 dumped = true;
-                return (UInt32) current;
+                return longValue(parameter);
+            }
+            if (unescapeBinary(4))
+            {
+                dumped = true;
+                return BitConverter.getUInt32(binBuffer, 0);
             }
         }
-        return new UInt32(0);
+        return 0;
     }
 
     /**
@@ -343,10 +507,16 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            if (cmdArgs.get(parameter) != null)
+            if (argTypes != null)
+            {
+                // Decoded strings have already been unescaped
+                dumped = true;
+                return text(parameter);
+            }
+            if (text(parameter) != null)
             {
                 dumped = true;
-                return Escaping.unescape(cmdArgs.get(parameter));
+                return Escaping.unescape(text(parameter));
             }
         }
         return "";
@@ -360,13 +530,112 @@ public class ReceivedCommand extends Command {
     {
         if (next())
         {
-            Byte current = BinaryConverter.toByte(cmdArgs.get(parameter));
-            if (current != null)
+            if (isNumber(parameter))
+            {
+                dumped = true;
+                return longValue(parameter) != 0;
+            }
+            if (unescapeBinary(1))
             {
                 dumped = true;
-                return (current != 0);
+                return BitConverter.getBoolean(binBuffer, 0);
             }
         }
         return false;
     }
+
+    /**
+     * Unescapes the current binary argument into binBuffer.
+     * @param size The number of bytes of the value.
+     * @return true if the argument holds exactly size bytes.
+     */
+    private boolean unescapeBinary(int size)
+    {
+        if (binBuffer == null) binBuffer = new byte[8];
+        if (argText != null)
+        {
+            final int start = argBounds[2 * parameter];
+            return BinaryConverter.unescape(argText, start, argBounds[2 * parameter + 1] - start, binBuffer) == size;
+        }
+        return BinaryConverter.unescape(text(parameter), binBuffer) == size;
+    }
+
+    /**
+     * Parses an argument as a decimal integer, from the received bytes when the command has them.
+     * @return The value, or AsciiDecoder.INVALID.
+     */
+    private long parseInRange(int index, long min, long max)
+    {
+        if (argText == null) return AsciiDecoder.parseInRange(text(index), min, max);
+        final int start = argBounds[2 * index];
+        return AsciiDecoder.parseInRange(argText, start, argBounds[2 * index + 1] - start, min, max);
+    }
+
+    /**
+     * Indicates if an argument has been decoded into a number.
+     */
+    private boolean isNumber(int index)
+    {
+        return argTypes != null && argTypes[index] != ArgumentType.String && argTypes[index] != ArgumentType.BinString;
+    }
+
+    private long longValue(int index)
+    {
+        return argTypes[index].isFloatingPoint() ? (long) doubleValue(index) : argValues[index];
+    }
+
+    private double doubleValue(int index)
+    {
+        long value = argValues[index];
+        switch (argTypes[index])
+        {
+            case Float:
+            case BinFloat:
+                return java.lang.Float.intBitsToFloat((int) value);
+            case Double:
+            case BinDouble:
+                return java.lang.Double.longBitsToDouble(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Gets the text of an argument.
+     */
+    private String text(int index)
+    {
+        if (argText != null)
+        {
+            // Created on first use, most arguments are numbers that are never turned into text
+            if (argStrings[index] == null)
+            {
+                final int start = argBounds[2 * index];
+                argStrings[index] = new String(argText, start, argBounds[2 * index + 1] - start, ISO_8859_1);
+            }
+            return argStrings[index];
+        }
+        if (argTypes == null) return cmdArgs.get(index);
+        if (!isNumber(index)) return argStrings[index];
+        switch (argTypes[index])
+        {
+            case Float:
+            case BinFloat:
+                return java.lang.String.valueOf((float) doubleValue(index));
+            case Double:
+            case BinDouble:
+                return java.lang.String.valueOf(doubleValue(index));
+            default:
+                return java.lang.String.valueOf(argValues[index]);
+        }
+    }
+
+    private void ensureSlot()
+    {
+        if (argCount < argTypes.length) return;
+        int capacity = argTypes.length * 2;
+        argTypes = Arrays.copyOf(argTypes, capacity);
+        argValues = Arrays.copyOf(argValues, capacity);
+        argStrings = Arrays.copyOf(argStrings, capacity);
+    }
 }
@@ -2,65 +2,216 @@ package com.github.pimsturm.commandmessenger;
 
 import android.util.Log;
 
+import java.util.ArrayList;
+
 /**
- * This class will trigger the main thread when a specific command is received on the ReceiveCommandQueue thread
- * this is used when synchronously waiting for an acknowledge command in BlockedTillReply
+ * This class will trigger the waiting threads when a specific command is received on the ReceiveCommandQueue thread
+ * this is used when synchronously waiting for an acknowledge command in BlockedTillReply.
+ * Several commands can wait for their acknowledge at the same time. Pending acknowledges are kept per command ID,
+ * an acknowledge completes the oldest pending request with that ID, or the one with a matching sequence argument.
  */
 public class ReceivedCommandSignal {
     private static final String TAG = "ReceivedCommandSignal";
-    private int cmdIdToMatch;
-    private SendQueue sendQueueState;
-    private ReceivedCommand receivedCommand;
+
+    /**
+     * A request waiting for its acknowledge command.
+     */
+    public static class PendingAck {
+        private final int cmdId;
+        private final String sequence;
+        private final SendQueue sendQueueState;
+        private final CommandFuture future;
+        private ReceivedCommand receivedCommand;
+        private boolean completed;
+
+        private PendingAck(int cmdId, String sequence, SendQueue sendQueueState, CommandFuture future)
+        {
+            this.cmdId = cmdId;
+            this.sequence = sequence;
+            this.sendQueueState = sendQueueState;
+            this.future = future;
+        }
+
+        public int getCmdId() {
+            return cmdId;
+        }
+
+        /**
+         * Indicates if the acknowledge has been received.
+         * @return true if the acknowledge has been received.
+         */
+        public synchronized boolean isCompleted() {
+            return completed;
+        }
+
+        private boolean matches(ReceivedCommand command)
+        {
+            return sequence == null || (command.getArgumentCount() > 0 && sequence.equals(command.getArgument(0)));
+        }
+
+        private void complete(ReceivedCommand command)
+        {
+            synchronized (this)
+            {
+                receivedCommand = command;
+                completed = true;
+                notifyAll();
+            }
+            if (future != null) future.complete(command);
+        }
+    }
+
+    private final IntObjectMap<ArrayList<PendingAck>> pendingAcks = new IntObjectMap<ArrayList<PendingAck>>();
+    private int pendingCount;
+    private int clearingCount;      // Pending requests that drop other commands while waiting
 
     private final Object _lock = new Object();
-    private final EventWaiter eventWaiter = new EventWaiter();
 
     /**
-     * Wait function.
-     * @param timeOut time-out in ms
-     * @param cmdId
-     * @param sendQueueState
-     * @return
+     * Registers a request for an acknowledge. Register before the command is sent,
+     * so an acknowledge that arrives before the wait starts is not lost.
+     * @param cmdId The acknowledge command ID.
+     * @param sequence The sequence value the acknowledge carries as first argument, or null to accept any acknowledge.
+     * @param sendQueueState ClearQueue drops other received commands while waiting.
+     * @return The pending request.
      */
-    public ReceivedCommand waitForCmd(int timeOut, int cmdId, SendQueue sendQueueState)
+    public PendingAck register(int cmdId, String sequence, SendQueue sendQueueState)
     {
+        return register(cmdId, sequence, sendQueueState, null);
+    }
+
+    /**
+     * Registers a request for an acknowledge that completes a future instead of a waiting thread.
+     * @param cmdId The acknowledge command ID.
+     * @param sequence The sequence value the acknowledge carries as first argument, or null to accept any acknowledge.
+     * @param sendQueueState ClearQueue drops other received commands while waiting.
+     * @param future The future to complete with the acknowledge, or null.
+     * @return The pending request.
+     */
+    public PendingAck register(int cmdId, String sequence, SendQueue sendQueueState, CommandFuture future)
+    {
+        PendingAck pendingAck = new PendingAck(cmdId, sequence, sendQueueState, future);
         synchronized (_lock)
         {
-            receivedCommand = null;
-            cmdIdToMatch = cmdId;
-            this.sendQueueState = sendQueueState;
+            ArrayList<PendingAck> list = pendingAcks.get(cmdId);
+            if (list == null)
+            {
+                list = new ArrayList<PendingAck>(2);
+                pendingAcks.put(cmdId, list);
+            }
+            list.add(pendingAck);
+            pendingCount++;
+            if (sendQueueState == SendQueue.ClearQueue) clearingCount++;
         }
+        return pendingAck;
+    }
 
+    /**
+     * Waits for the acknowledge of a registered request. The request is unregistered when the wait ends.
+     * @param pendingAck The pending request.
+     * @param timeOut time-out in ms, zero = infinity.
+     * @return The acknowledge command, or null on time-out.
+     */
+    public ReceivedCommand await(PendingAck pendingAck, int timeOut)
+    {
+        long deadline = System.currentTimeMillis() + timeOut;
         try {
-            if (eventWaiter.waitOne(timeOut) == WaitState.TimeOut) {
-                return null;
+            synchronized (pendingAck)
+            {
+                while (!pendingAck.completed)
+                {
+                    if (timeOut <= 0)
+                    {
+                        pendingAck.wait();
+                        continue;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    pendingAck.wait(remaining);
+                }
             }
         } catch (InterruptedException e) {
             Log.d(TAG, e.getMessage());
-            return null;
         }
 
-        return receivedCommand;
+        cancel(pendingAck);
+        synchronized (pendingAck)
+        {
+            return pendingAck.receivedCommand;
+        }
+    }
+
+    /**
+     * Wait function.
+     * @param timeOut time-out in ms
+     * @param cmdId The acknowledge command ID.
+     * @param sendQueueState ClearQueue drops other received commands while waiting.
+     * @return The acknowledge command, or null on time-out.
+     */
+    public ReceivedCommand waitForCmd(int timeOut, int cmdId, SendQueue sendQueueState)
+    {
+        return await(register(cmdId, null, sendQueueState), timeOut);
+    }
+
+    /**
+     * Unregisters a pending request, if it is still pending.
+     * @param pendingAck The pending request.
+     */
+    public void cancel(PendingAck pendingAck)
+    {
+        synchronized (_lock)
+        {
+            ArrayList<PendingAck> list = pendingAcks.get(pendingAck.cmdId);
+            if (list != null && list.remove(pendingAck)) unregistered(pendingAck, list);
+        }
     }
 
+    /**
+     * Indicates if any request is waiting for an acknowledge.
+     * @return true if a request is pending.
+     */
+    public boolean hasPending()
+    {
+        synchronized (_lock)
+        {
+            return pendingCount > 0;
+        }
+    }
 
     /**
      *  Process command.
-     * @param receivedCommand
-     * @return false if it needs to be sent to the main thread or true if it needs to used in a queue.
+     * @param receivedCommand The received command.
+     * @return false if it completed a pending request or needs to be dropped, true if it needs to used in a queue.
      */
     public boolean processCommand(ReceivedCommand receivedCommand)
     {
+        PendingAck matched = null;
         synchronized (_lock)
         {
-            if (receivedCommand.getCmdId() == cmdIdToMatch)
+            ArrayList<PendingAck> list = pendingAcks.get(receivedCommand.getCmdId());
+            if (list != null)
             {
-                this.receivedCommand = receivedCommand;
-                eventWaiter.set();
-                return false;
+                for (int i = 0; i < list.size(); i++)
+                {
+                    if (list.get(i).matches(receivedCommand))
+                    {
+                        matched = list.remove(i);
+                        unregistered(matched, list);
+                        break;
+                    }
+                }
             }
-
-            return (sendQueueState != SendQueue.ClearQueue);
+            if (matched == null) return clearingCount == 0;
         }
+
+        matched.complete(receivedCommand);
+        return false;
+    }
+
+    private void unregistered(PendingAck pendingAck, ArrayList<PendingAck> list)
+    {
+        if (list.isEmpty()) pendingAcks.remove(pendingAck.cmdId);
+        pendingCount--;
+        if (pendingAck.sendQueueState == SendQueue.ClearQueue) clearingCount--;
     }
 }
@@ -1,16 +1,46 @@
 package com.github.pimsturm.commandmessenger;
 
-import android.util.Log;
+import com.github.pimsturm.commandmessenger.Transport.BinaryFrame;
+import com.github.pimsturm.commandmessenger.Transport.CommandEncoder;
 
-import java.util.ArrayList;
-import java.util.concurrent.Callable;
+import java.util.Arrays;
 
 /**
  * A command to be sent by CmdMessenger
+ * Arguments are kept in primitive slots with a type tag, and are only turned into text when the command is encoded.
+ * Numbers are written straight into the send buffer without creating strings.
+ * Instances for recurring commands can be taken from a pool with obtain, the send queue returns them after sending.
  */
 public class SendCommand extends Command {
     private static final String TAG = "Command";
-    private final ArrayList<Callable<Object>> lazyArguments = new ArrayList<Callable<Object>>();
+
+    // Argument type tags
+    private static final byte ARG_STRING = 0;
+    private static final byte ARG_INT = 1;          // short, int and boolean
+    private static final byte ARG_LONG = 2;         // UInt16 and UInt32
+    private static final byte ARG_FLOAT = 3;
+    private static final byte ARG_DOUBLE = 4;
+    private static final byte ARG_BIN_STRING = 5;
+    private static final byte ARG_BIN_FLOAT = 6;
+    private static final byte ARG_BIN_DOUBLE = 7;
+    private static final byte ARG_BIN_INT16 = 8;
+    private static final byte ARG_BIN_UINT16 = 9;
+    private static final byte ARG_BIN_INT32 = 10;
+    private static final byte ARG_BIN_UINT32 = 11;
+    private static final byte ARG_BIN_BOOL = 12;
+
+    private byte[] argTypes = new byte[4];
+    private long[] argValues = new long[4];         // Numbers, floating point numbers as raw bits
+    private String[] argStrings;                    // String arguments, allocated on first use
+    private int argCount;
+
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object poolLock = new Object();
+    private static SendCommand pool;
+    private static int poolSize;
+    private SendCommand nextInPool;
+    private boolean recyclable;
+
     private Settings settings;
 
     private boolean reqAc;
@@ -39,6 +69,22 @@ public class SendCommand extends Command {
      */
     public int getAckCmdId() {return ackCmdId; }
 
+    private String ackSequence;
+
+    /**
+     * Sets the sequence value the acknowledge command carries as its first argument.
+     * Commands with the same acknowledge command ID can then wait for their acknowledge at the same time,
+     * each acknowledge is matched to its own request. The sequence value must also be added as an argument.
+     * @param ackSequence The sequence value, or null to accept any acknowledge with the acknowledge command ID.
+     */
+    public void setAckSequence(String ackSequence) { this.ackSequence = ackSequence; }
+
+    /**
+     * Gets the sequence value the acknowledge command carries as its first argument.
+     * @return The sequence value, or null if any acknowledge is accepted.
+     */
+    public String getAckSequence() { return ackSequence; }
+
     /// <summary>  </summary>
     /// <value> The timeout on waiting for an acknowledge</value>
     private int timeout;
@@ -56,6 +102,23 @@ public class SendCommand extends Command {
      */
     public int getTimeout() {return timeout;}
 
+    private SendPriority priority = SendPriority.Request;
+
+    /**
+     * Sets the lane of the send queue the command is queued in.
+     * @param priority The priority, Request by default.
+     */
+    public void setPriority(SendPriority priority) {
+        if (priority == null) throw new NullPointerException("priority");
+        this.priority = priority;
+    }
+
+    /**
+     * Gets the lane of the send queue the command is queued in.
+     * @return The priority.
+     */
+    public SendPriority getPriority() {return priority;}
+
     /**
      * Constructor.
      * @param cmdId The command ID.
@@ -292,6 +355,7 @@ public class SendCommand extends Command {
         setCmdId(cmdId);
         this.ackCmdId = ackCmdId;
         this.timeout = timeout;
+        this.priority = SendPriority.Request;
         this.settings = Settings.getInstance();
     }
 
@@ -303,13 +367,7 @@ public class SendCommand extends Command {
      */
     public void addArgument(final String argument)
     {
-        if (argument != null)
-            lazyArguments.add(new Callable<Object>() {
-                @Override
-                public Object call() throws Exception {
-                    return cmdArgs.add(argument);
-                }
-            });
+        if (argument != null) addStringSlot(ARG_STRING, argument);
     }
 
     /**
@@ -319,16 +377,9 @@ public class SendCommand extends Command {
     public void addArguments(final String[] arguments)
     {
         if (arguments != null)
-            lazyArguments.add(new Callable<Object>() {
-                @Override
-                public Object call() throws Exception {
-                    for (String argument: arguments
-                         ) {
-                        cmdArgs.add(argument);
-                    }
-                    return cmdArgs;
-                }
-            });
+            for (String argument : arguments) {
+                addStringSlot(ARG_STRING, argument);
+            }
     }
 
     /**
@@ -337,12 +388,7 @@ public class SendCommand extends Command {
      */
     public void addArgument(final float argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(String.valueOf(argument));
-            }
-        });
+        addSlot(ARG_FLOAT, Float.floatToRawIntBits(argument));
     }
 
     /**
@@ -351,21 +397,7 @@ public class SendCommand extends Command {
      */
     public void addArgument(final Double argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                if (settings.getBoardType() == BoardType.Bit16) {
-                    // Not completely sure if this is needed for plain text sending.
-                    float floatArg = argument.floatValue();
-                    cmdArgs.add(String.valueOf(floatArg));
-                } else {
-                    cmdArgs.add(argument.toString());
-                }
-                return cmdArgs;
-            }
-        });
-
-
+        addSlot(ARG_DOUBLE, Double.doubleToRawLongBits(argument));
     }
 
     /**
@@ -374,13 +406,7 @@ public class SendCommand extends Command {
      */
     public void addArgument(final short argument) //Int16
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(String.valueOf(String.valueOf(argument)));
-            }
-        });
-
+        addSlot(ARG_INT, argument);
     }
 
     /**
@@ -389,13 +415,7 @@ public class SendCommand extends Command {
      */
     public void addArgument(final UInt16 argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(String.valueOf(argument));    //CultureInfo.InvariantCulture
-            }
-        });
-
+        addSlot(ARG_LONG, argument.longValue());
     }
 
     /**
@@ -404,13 +424,7 @@ public class SendCommand extends Command {
      */
     public void addArgument(final int argument)     //Int32 argument
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(String.valueOf(argument));    //CultureInfo.InvariantCulture
-            }
-        });
-
+        addSlot(ARG_INT, argument);
     }
 
     /**
@@ -420,13 +434,7 @@ public class SendCommand extends Command {
     public void addArgument(final UInt32 argument)
     {
         // Make sure the other side can read this: on a 16 processor, read as Long
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(String.valueOf(argument));    //CultureInfo.InvariantCulture
-            }
-        });
-
+        addSlot(ARG_LONG, argument.longValue());
     }
 
     /**
@@ -446,12 +454,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final String argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(Escaping.escape(argument));
-            }
-        });
+        addStringSlot(ARG_BIN_STRING, argument);
     }
 
     /**
@@ -460,12 +463,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final float argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(BinaryConverter.toString(argument));
-            }
-        });
+        addSlot(ARG_BIN_FLOAT, Float.floatToRawIntBits(argument));
     }
 
     /**
@@ -474,15 +472,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final Double argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(settings.getBoardType() == BoardType.Bit16
-                        ? BinaryConverter.toString(argument.floatValue())
-                        : BinaryConverter.toString(argument));
-            }
-        });
-
+        addSlot(ARG_BIN_DOUBLE, Double.doubleToRawLongBits(argument));
     }
 
     /**
@@ -491,12 +481,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final short argument)      //Int16 argument
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(BinaryConverter.toString(argument));
-            }
-        });
+        addSlot(ARG_BIN_INT16, argument);
     }
 
     /**
@@ -505,12 +490,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final UInt16 argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(BinaryConverter.toString(argument));
-            }
-        });
+        addSlot(ARG_BIN_UINT16, argument.longValue());
     }
 
     /**
@@ -519,12 +499,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final int argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(BinaryConverter.toString(argument));
-            }
-        });
+        addSlot(ARG_BIN_INT32, argument);
     }
 
     /**
@@ -533,12 +508,7 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final UInt32 argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(BinaryConverter.toString(argument));
-            }
-        });
+        addSlot(ARG_BIN_UINT32, argument.longValue());
     }
 
     /**
@@ -547,24 +517,436 @@ public class SendCommand extends Command {
      */
     public void addBinArgument(final boolean argument)
     {
-        lazyArguments.add(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return cmdArgs.add(BinaryConverter.toString(argument ? (byte) 1 : (byte) 0));
-            }
-        });
+        addSlot(ARG_BIN_BOOL, argument ? 1 : 0);
+    }
+
+    // ***** Templates **** /
+
+    /**
+     * Overwrites an argument in place, so a prepared command can be sent again with a new value
+     * without allocating. The argument keeps its type: a short, int or boolean argument.
+     * A command that is still on the send queue is sent with the new value.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, int value)
+    {
+        setSlot(index, ARG_INT, value);
+    }
+
+    /**
+     * Overwrites a short, int or boolean argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, short value)
+    {
+        setSlot(index, ARG_INT, value);
+    }
+
+    /**
+     * Overwrites a short, int or boolean argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, boolean value)
+    {
+        setSlot(index, ARG_INT, value ? 1 : 0);
+    }
+
+    /**
+     * Overwrites a UInt16 or UInt32 argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, long value)
+    {
+        setSlot(index, ARG_LONG, value);
+    }
+
+    /**
+     * Overwrites a float argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, float value)
+    {
+        setSlot(index, ARG_FLOAT, Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Overwrites a double argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, double value)
+    {
+        setSlot(index, ARG_DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Overwrites a string argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setArgument(int index, String value)
+    {
+        if (value == null) throw new NullPointerException("value");
+        checkSlot(index, ARG_STRING);
+        argStrings[index] = value;
+    }
+
+    /**
+     * Overwrites a binary Int16 argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setBinArgument(int index, short value)
+    {
+        setSlot(index, ARG_BIN_INT16, value);
+    }
+
+    /**
+     * Overwrites a binary Int32 argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setBinArgument(int index, int value)
+    {
+        setSlot(index, ARG_BIN_INT32, value);
+    }
+
+    /**
+     * Overwrites a binary float argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setBinArgument(int index, float value)
+    {
+        setSlot(index, ARG_BIN_FLOAT, Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Overwrites a binary boolean argument in place.
+     * @param index Index of the argument.
+     * @param value The new value.
+     */
+    public void setBinArgument(int index, boolean value)
+    {
+        setSlot(index, ARG_BIN_BOOL, value ? 1 : 0);
+    }
+
+    /**
+     * Removes all arguments, so the command can be reused. The argument slots are kept.
+     */
+    public void clearArguments()
+    {
+        if (argStrings != null) Arrays.fill(argStrings, 0, argCount, null);
+        argCount = 0;
     }
 
+    /**
+     * Prepares the arguments for sending. Arguments are converted each time the command is encoded,
+     * so nothing needs to be done here and the command can be encoded any number of times.
+     * Kept for compatibility.
+     */
     public void initArguments()
     {
-        cmdArgs.clear();
-        for (Callable<Object> action : lazyArguments)
+    }
+
+    @Override
+    public int getArgumentCount()
+    {
+        return argCount;
+    }
+
+    @Override
+    public String getArgument(int index)
+    {
+        if (index < 0 || index >= argCount) throw new IndexOutOfBoundsException("index");
+        return argumentString(index);
+    }
+
+    @Override
+    public String[] getArguments()
+    {
+        String[] arguments = new String[argCount];
+        for (int i = 0; i < argCount; i++) arguments[i] = argumentString(i);
+        return arguments;
+    }
+
+    /**
+     * Encodes the arguments into the send buffer, each one preceded by the field separator.
+     * Integer arguments and strings are written without creating intermediate strings.
+     * @param encoder The encoder holding the send buffer.
+     */
+    public void encodeArguments(CommandEncoder encoder)
+    {
+        final char fieldSeparator = settings.getFieldSeparator();
+        for (int i = 0; i < argCount; i++)
+        {
+            encoder.appendChar(fieldSeparator);
+            switch (argTypes[i])
+            {
+                case ARG_INT:
+                    encoder.appendInt((int) argValues[i]);
+                    break;
+                case ARG_LONG:
+                    encoder.appendLong(argValues[i]);
+                    break;
+                case ARG_STRING:
+                    encoder.appendString(argStrings[i]);
+                    break;
+                case ARG_BIN_STRING:
+                    encoder.appendEscaped(argStrings[i]);
+                    break;
+                case ARG_BIN_INT16:
+                case ARG_BIN_UINT16:
+                    encoder.appendBinary(argValues[i], 2);
+                    break;
+                case ARG_BIN_INT32:
+                case ARG_BIN_UINT32:
+                case ARG_BIN_FLOAT:
+                    encoder.appendBinary(argValues[i], 4);
+                    break;
+                case ARG_BIN_DOUBLE:
+                    if (settings.getBoardType() == BoardType.Bit16)
+                    {
+                        // A 16 bit board has 4 byte doubles
+                        float binFloat = (float) Double.longBitsToDouble(argValues[i]);
+                        encoder.appendBinary(Float.floatToRawIntBits(binFloat), 4);
+                    }
+                    else
+                    {
+                        encoder.appendBinary(argValues[i], 8);
+                    }
+                    break;
+                case ARG_BIN_BOOL:
+                    encoder.appendBinary(argValues[i], 1);
+                    break;
+                default:
+                    String argument = argumentString(i);
+                    if (argument != null) encoder.appendString(argument);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Writes the arguments as arguments of a binary frame, see BinaryFrame.
+     * @param encoder The encoder.
+     * @return The number of arguments written.
+     */
+    public int encodeFrameArguments(CommandEncoder encoder)
+    {
+        for (int i = 0; i < argCount; i++)
         {
-            try {
-                action.call();
-            } catch (Exception e) {
-                Log.d(TAG, e.getMessage());
+            long value = argValues[i];
+            switch (argTypes[i])
+            {
+                case ARG_STRING:
+                case ARG_BIN_STRING:
+                    encoder.appendFrameString(argStrings[i]);
+                    break;
+                case ARG_INT:
+                case ARG_BIN_INT32:
+                    encoder.appendFrameArgument(BinaryFrame.TYPE_INT32, value);
+                    break;
+                case ARG_LONG:
+                case ARG_BIN_UINT32:
+                    encoder.appendFrameArgument(BinaryFrame.TYPE_UINT32, value);
+                    break;
+                case ARG_BIN_INT16:
+                    encoder.appendFrameArgument(BinaryFrame.TYPE_INT16, value);
+                    break;
+                case ARG_BIN_UINT16:
+                    encoder.appendFrameArgument(BinaryFrame.TYPE_UINT16, value);
+                    break;
+                case ARG_FLOAT:
+                case ARG_BIN_FLOAT:
+                    encoder.appendFrameArgument(BinaryFrame.TYPE_FLOAT, value);
+                    break;
+                case ARG_DOUBLE:
+                case ARG_BIN_DOUBLE:
+                    if (settings.getBoardType() == BoardType.Bit16)
+                    {
+                        // A 16 bit board has 4 byte doubles
+                        float floatArg = (float) Double.longBitsToDouble(value);
+                        encoder.appendFrameArgument(BinaryFrame.TYPE_FLOAT, Float.floatToRawIntBits(floatArg));
+                    }
+                    else
+                    {
+                        encoder.appendFrameArgument(BinaryFrame.TYPE_DOUBLE, value);
+                    }
+                    break;
+                case ARG_BIN_BOOL:
+                    encoder.appendFrameArgument(BinaryFrame.TYPE_BOOL, value);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown argument type.");
             }
         }
+        return argCount;
+    }
+
+    /**
+     * Gets a command from the pool, or creates one if the pool is empty.
+     * The command is returned to the pool by the send queue once it has been sent,
+     * so it must not be used anymore after it has been queued. NewLineSent listeners of the send queue get a copy.
+     * @param cmdId The command ID.
+     * @return A command without arguments.
+     */
+    public static SendCommand obtain(int cmdId)
+    {
+        SendCommand command = null;
+        synchronized (poolLock)
+        {
+            if (pool != null)
+            {
+                command = pool;
+                pool = command.nextInPool;
+                command.nextInPool = null;
+                poolSize--;
+            }
+        }
+        if (command == null) command = new SendCommand(cmdId);
+        else command.init(cmdId, false, 0, 0);
+        command.setTimeStamp(TimeUtils.millis());
+        command.recyclable = true;
+        return command;
+    }
+
+    /**
+     * Indicates if the command was obtained from the pool.
+     * @return true if the command goes back to the pool after sending.
+     */
+    public boolean isRecyclable()
+    {
+        return recyclable;
+    }
+
+    /**
+     * Returns a command obtained from the pool. Commands that were created with new are ignored.
+     */
+    public void recycle()
+    {
+        if (!recyclable) return;
+        recyclable = false;
+        clearArguments();
+        ackSequence = null;
+        synchronized (poolLock)
+        {
+            if (poolSize < MAX_POOL_SIZE)
+            {
+                nextInPool = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of the command that is not pooled, for a listener that may keep it after the
+     * original has gone back to the pool.
+     * @return The copy.
+     */
+    public SendCommand copy()
+    {
+        SendCommand copy = new SendCommand(getCmdId());
+        copy.reqAc = reqAc;
+        copy.ackCmdId = ackCmdId;
+        copy.ackSequence = ackSequence;
+        copy.timeout = timeout;
+        copy.priority = priority;
+        copy.setTimeStamp(getTimeStamp());
+        copy.argTypes = argTypes.clone();
+        copy.argValues = argValues.clone();
+        if (argStrings != null) copy.argStrings = argStrings.clone();
+        copy.argCount = argCount;
+        return copy;
+    }
+
+    private void addSlot(byte type, long value)
+    {
+        ensureSlot();
+        argTypes[argCount] = type;
+        argValues[argCount] = value;
+        argCount++;
+    }
+
+    private void addStringSlot(byte type, String value)
+    {
+        ensureSlot();
+        if (argStrings == null) argStrings = new String[argTypes.length];
+        argTypes[argCount] = type;
+        argStrings[argCount] = value;
+        argCount++;
+    }
+
+    private void setSlot(int index, byte type, long value)
+    {
+        checkSlot(index, type);
+        argValues[index] = value;
+    }
+
+    private void checkSlot(int index, byte type)
+    {
+        if (index < 0 || index >= argCount) throw new IndexOutOfBoundsException("index");
+        if (argTypes[index] != type) throw new IllegalStateException("The argument has a different type.");
+    }
+
+    private void ensureSlot()
+    {
+        if (argCount < argTypes.length) return;
+        int capacity = argTypes.length * 2;
+        argTypes = Arrays.copyOf(argTypes, capacity);
+        argValues = Arrays.copyOf(argValues, capacity);
+        if (argStrings != null) argStrings = Arrays.copyOf(argStrings, capacity);
+    }
+
+    /**
+     * Converts an argument to its text on the wire.
+     */
+    private String argumentString(int index)
+    {
+        long value = argValues[index];
+        switch (argTypes[index])
+        {
+            case ARG_STRING:
+                return argStrings[index];
+            case ARG_INT:
+                return String.valueOf((int) value);
+            case ARG_LONG:
+                return String.valueOf(value);
+            case ARG_FLOAT:
+                return String.valueOf(Float.intBitsToFloat((int) value));
+            case ARG_DOUBLE:
+                double doubleArg = Double.longBitsToDouble(value);
+                // Not completely sure if this is needed for plain text sending.
+                return settings.getBoardType() == BoardType.Bit16
+                        ? String.valueOf((float) doubleArg)
+                        : String.valueOf(doubleArg);
+            case ARG_BIN_STRING:
+                return Escaping.escape(argStrings[index]);
+            case ARG_BIN_FLOAT:
+                return BinaryConverter.toString(Float.intBitsToFloat((int) value));
+            case ARG_BIN_DOUBLE:
+                double binDoubleArg = Double.longBitsToDouble(value);
+                return settings.getBoardType() == BoardType.Bit16
+                        ? BinaryConverter.toString((float) binDoubleArg)
+                        : BinaryConverter.toString(binDoubleArg);
+            case ARG_BIN_INT16:
+                return BinaryConverter.toString((short) value);
+            case ARG_BIN_UINT16:
+                return BinaryConverter.toString(new UInt16((int) value));
+            case ARG_BIN_INT32:
+                return BinaryConverter.toString((int) value);
+            case ARG_BIN_UINT32:
+                return BinaryConverter.toString(new UInt32(value));
+            case ARG_BIN_BOOL:
+                return BinaryConverter.toString((byte) value);
+            default:
+                throw new IllegalStateException("Unknown argument type.");
+        }
     }
 }
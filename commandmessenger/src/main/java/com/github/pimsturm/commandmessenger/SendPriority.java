@@ -0,0 +1,12 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Priority lane of a command on the send queue. Lanes are served in this order, a command is only sent
+ * when the lanes in front of it are empty. Within a lane commands keep their order.
+ */
+public enum SendPriority {
+    Emergency,      // Preempts everything, also the batch being assembled, like an emergency stop
+    Control,        // Control setpoints
+    Request,        // Requests and other commands, the default
+    Bulk            // Large transfers, like settings
+}
@@ -168,6 +168,124 @@ public final class Settings {
         return printLfCr;
     }
 
+    private boolean logWrites;
+
+    /**
+     * Sets whether every write to the connection is reported as progress, for verbose logging.
+     * Off by default, the written bytes are then not turned into a string at all.
+     *
+     * @param logWrites true to report the written data.
+     */
+    public void setLogWrites(boolean logWrites) {
+        this.logWrites = logWrites;
+    }
+
+    public boolean getLogWrites() {
+        return logWrites;
+    }
+
+    private DecodeThread decodeThread;
+
+    /**
+     * Sets the thread on which received data is cut into commands and decoded, by default.
+     * A messenger takes the default when it is created, see CmdMessenger.setDecodeThread.
+     *
+     * @param decodeThread The decode thread.
+     */
+    public void setDecodeThread(DecodeThread decodeThread) {
+        this.decodeThread = decodeThread;
+    }
+
+    public DecodeThread getDecodeThread() {
+        return decodeThread;
+    }
+
+    private boolean callbacksOnMainThread;
+
+    /**
+     * Sets whether the callbacks attached to CmdMessenger are called on the main thread, by default.
+     * When false, they are called on the decode thread.
+     * A messenger takes the default when it is created, see CmdMessenger.setCallbacksOnMainThread.
+     *
+     * @param callbacksOnMainThread true to call the callbacks on the main thread.
+     */
+    public void setCallbacksOnMainThread(boolean callbacksOnMainThread) {
+        this.callbacksOnMainThread = callbacksOnMainThread;
+    }
+
+    public boolean getCallbacksOnMainThread() {
+        return callbacksOnMainThread;
+    }
+
+    private int emptyQueueTimeout;
+
+    /**
+     * Sets how long sendCommand waits for the send or receive queue to drain,
+     * when it is asked to wait for an empty queue.
+     *
+     * @param emptyQueueTimeout time-out in ms, zero = infinity.
+     */
+    public void setEmptyQueueTimeout(int emptyQueueTimeout) {
+        this.emptyQueueTimeout = emptyQueueTimeout;
+    }
+
+    public int getEmptyQueueTimeout() {
+        return emptyQueueTimeout;
+    }
+
+    private FrameMode frameMode;
+
+    /**
+     * Sets how sent commands are framed by default. A messenger takes the default when it is created, use
+     * CmdMessenger.negotiateFrameMode to switch it to binary frames, so the device is known to understand them.
+     * Binary frames are always accepted on receive.
+     *
+     * @param frameMode The frame mode.
+     */
+    public void setFrameMode(FrameMode frameMode) {
+        this.frameMode = frameMode;
+    }
+
+    public FrameMode getFrameMode() {
+        return frameMode;
+    }
+
+    private boolean frameCrc;
+
+    /**
+     * Sets whether sent binary frames carry a CRC by default. A messenger takes the default when it is created,
+     * use CmdMessenger.setFrameCrc to change it per messenger.
+     *
+     * @param frameCrc true to add a CRC to binary frames.
+     */
+    public void setFrameCrc(boolean frameCrc) {
+        this.frameCrc = frameCrc;
+    }
+
+    public boolean getFrameCrc() {
+        return frameCrc;
+    }
+
+    private boolean frameIntegrity;
+
+    /**
+     * Sets whether every command carries a rolling sequence number and a CRC-16, in both directions.
+     * Text commands end with two extra fields, the sequence number and the CRC of the command up to and
+     * including the field separator in front of the CRC. Binary frames get a sequence byte and always a CRC.
+     * Received commands with a bad CRC are dropped. Both sides must have it enabled.
+     * The counters are kept by CmdMessenger.getFrameIntegrity. This is the default a messenger takes when it is
+     * created, use CmdMessenger.setFrameIntegrityEnabled to change it per messenger.
+     *
+     * @param frameIntegrity true to add and check sequence numbers and CRCs.
+     */
+    public void setFrameIntegrity(boolean frameIntegrity) {
+        this.frameIntegrity = frameIntegrity;
+    }
+
+    public boolean getFrameIntegrity() {
+        return frameIntegrity;
+    }
+
     private BoardType boardType;
 
     public void setBoardType(BoardType boardType) {
@@ -213,6 +331,14 @@ public final class Settings {
         commandSeparator = ';';
         escapeCharacter = '/';
         printLfCr = false;
+        logWrites = false;
+
+        decodeThread = DecodeThread.DecoderThread;
+        callbacksOnMainThread = true;
+        emptyQueueTimeout = 0;
+        frameMode = FrameMode.Text;
+        frameCrc = true;
+        frameIntegrity = false;
 
         Escaping.setEscapeChars(fieldSeparator, commandSeparator, escapeCharacter);
 
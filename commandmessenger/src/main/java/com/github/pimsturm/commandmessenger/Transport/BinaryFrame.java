@@ -0,0 +1,124 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.ArgumentType;
+
+/**
+ * Layout of a binary frame, the alternative to separated and escaped text commands.
+ * All numbers are little-endian, like on the Arduino.
+ * <pre>
+ * sync    1 byte   0xA5
+ * flags   1 byte   FLAG_CRC, FLAG_SEQUENCE
+ * length  2 bytes  payload length
+ * seq     1 byte   rolling sequence number, when FLAG_SEQUENCE is set
+ * payload          command ID (2 bytes, 0 to MAX_CMD_ID), argument count (1 byte), arguments
+ * crc     2 bytes  CRC-16/CCITT over flags, length, sequence number and payload, when FLAG_CRC is set
+ * </pre>
+ * An argument is a type byte followed by the value: 1, 2, 4 or 8 bytes for numbers,
+ * a 2 byte length and ISO-8859-1 characters for strings.
+ * The receiver finds the end of a frame from its length, without scanning for separators or escapes.
+ */
+public final class BinaryFrame {
+    public static final byte SYNC = (byte) 0xA5;
+    public static final int FLAG_CRC = 0x01;
+    public static final int FLAG_SEQUENCE = 0x02;
+    public static final int HEADER_LENGTH = 4;
+    public static final int SEQUENCE_LENGTH = 1;
+    public static final int CRC_LENGTH = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 4096;
+    /** Highest command ID of a binary frame, the ID is read back as a signed 16-bit number. */
+    public static final int MAX_CMD_ID = 0x7FFF;
+
+    /** Version of the frame layout, sent when negotiating the frame mode. */
+    public static final int VERSION = 1;
+
+    // Argument type codes
+    public static final int TYPE_INT16 = 1;
+    public static final int TYPE_UINT16 = 2;
+    public static final int TYPE_INT32 = 3;
+    public static final int TYPE_UINT32 = 4;
+    public static final int TYPE_FLOAT = 5;
+    public static final int TYPE_DOUBLE = 6;
+    public static final int TYPE_BOOL = 7;
+    public static final int TYPE_STRING = 8;
+
+    private static final char[] CRC_TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = (char) crc;
+        }
+    }
+
+    private BinaryFrame() {
+    }
+
+    /**
+     * Calculates the CRC-16/CCITT-FALSE of bytes: polynomial 0x1021, initial value 0xFFFF.
+     * @param data The bytes.
+     * @param offset Offset of the first byte.
+     * @param length Number of bytes.
+     * @return The CRC.
+     */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Gets the number of value bytes of an argument type.
+     * @param type The type code.
+     * @return The number of bytes, 0 for strings and -1 for unknown types.
+     */
+    public static int sizeOf(int type) {
+        switch (type) {
+            case TYPE_BOOL:
+                return 1;
+            case TYPE_INT16:
+            case TYPE_UINT16:
+                return 2;
+            case TYPE_INT32:
+            case TYPE_UINT32:
+            case TYPE_FLOAT:
+                return 4;
+            case TYPE_DOUBLE:
+                return 8;
+            case TYPE_STRING:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Gets the argument type a received value is stored as.
+     * @param type The type code.
+     * @return The argument type.
+     */
+    public static ArgumentType argumentTypeOf(int type) {
+        switch (type) {
+            case TYPE_INT16:
+                return ArgumentType.BinInt16;
+            case TYPE_UINT16:
+                return ArgumentType.BinUInt16;
+            case TYPE_INT32:
+                return ArgumentType.BinInt32;
+            case TYPE_UINT32:
+                return ArgumentType.BinUInt32;
+            case TYPE_FLOAT:
+                return ArgumentType.BinFloat;
+            case TYPE_DOUBLE:
+                return ArgumentType.BinDouble;
+            case TYPE_BOOL:
+                return ArgumentType.BinBool;
+            default:
+                return ArgumentType.BinString;
+        }
+    }
+}
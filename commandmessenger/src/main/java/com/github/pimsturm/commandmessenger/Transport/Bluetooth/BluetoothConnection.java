@@ -0,0 +1,82 @@
+package com.github.pimsturm.commandmessenger.Transport.Bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.github.pimsturm.commandmessenger.Transport.StreamIoLoop;
+
+/**
+ * Serial port connection to a Bluetooth device, opened and served by the I/O loop of the connection manager.
+ */
+public class BluetoothConnection implements StreamIoLoop.Connection {
+    private static final String TAG = "BluetoothConnection";
+
+    // SPP UUID service
+    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice mDevice;
+    private volatile BluetoothSocket mBluetoothSocket;
+    private volatile boolean mClosed;
+
+    /**
+     * Constructor
+     *
+     * @param device The device to connect to
+     */
+    public BluetoothConnection(BluetoothDevice device) {
+        if (device == null) throw new NullPointerException("device");
+        mDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void open() throws IOException {
+        // Always cancel discovery because it will slow down a connection
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter != null) adapter.cancelDiscovery();
+
+        BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(MY_UUID);
+        mBluetoothSocket = socket;
+        if (mClosed) {
+            // Closed while the socket was created
+            close();
+            throw new IOException("Connection closed");
+        }
+
+        // This is a blocking call and will only return on a
+        // successful connection or an exception, also when the socket is closed
+        socket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mBluetoothSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mBluetoothSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        BluetoothSocket socket = mBluetoothSocket;
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connect socket failed", e);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.github.pimsturm.commandmessenger.Transport.Bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Bundle;
 import android.os.Message;
 import android.os.Handler;
@@ -12,31 +11,41 @@ import com.github.pimsturm.commandmessenger.CmdMessenger;
 import com.github.pimsturm.commandmessenger.ConnectionManagerProgressEventArgs;
 import com.github.pimsturm.commandmessenger.IEventHandler;
 import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
+import com.github.pimsturm.commandmessenger.LinkThroughput;
 import com.github.pimsturm.commandmessenger.ReceiveQueue;
 import com.github.pimsturm.commandmessenger.ReceivedCommand;
 import com.github.pimsturm.commandmessenger.SendCommand;
 import com.github.pimsturm.commandmessenger.SendQueue;
 import com.github.pimsturm.commandmessenger.TimeUtils;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
 import com.github.pimsturm.commandmessenger.Transport.ITransport;
+import com.github.pimsturm.commandmessenger.Transport.ReceiveBuffer;
+import com.github.pimsturm.commandmessenger.Transport.ReceiveHandler;
+import com.github.pimsturm.commandmessenger.Transport.StreamIoLoop;
 import com.github.pimsturm.commandmessenger.UseQueue;
 import com.github.pimsturm.commandmessenger.deviceStatus;
 import com.github.pimsturm.commandmessenger.Mode;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.Set;
 
 /**
- * Connection manager for Bluetooth devices
+ * Connection manager for Bluetooth devices.
+ * The connections are opened and served by one I/O loop, which keeps its reader and writer thread
+ * across reconnects. The events of the loop are handled on the main looper.
  */
 public class BluetoothConnectionManager implements ITransport {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
     private static final String TAG = "BtConnectionManager";
     // Member fields
     private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private final ReceiveHandler mHandler;
+    private final CommandReceiver mReceiver;
+    private final StreamIoLoop mIoLoop;
+    private BluetoothConnection mConnection;  // The connection being opened or open
+    private volatile int mState;  // Written under the lock of the manager, read without it on the write path
     private Set<BluetoothDevice> mBtDevices;
     private Iterator mBtIterator;
     private boolean mSearchingArduino = false;
@@ -67,7 +76,7 @@ public class BluetoothConnectionManager implements ITransport {
     private int watchdogTries;
 
     /**
-     * The handler for messages from the connect and connected threads
+     * The handler for messages from the I/O loop
      * @return the handler
      */
     public Handler getmHandler() {
@@ -91,6 +100,8 @@ public class BluetoothConnectionManager implements ITransport {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = cmdMessenger.getmReceiveHandler();
+        mReceiver = cmdMessenger.getCommandReceiver();
+        mIoLoop = new StreamIoLoop("BtConnection", new IoListener(), mReceiver.getBufferPool());
 
         this.cmdMessenger = cmdMessenger;
 
@@ -114,7 +125,7 @@ public class BluetoothConnectionManager implements ITransport {
     /**
      * Return the current connection state.
      */
-    public synchronized int getState() {
+    public int getState() {
         return mState;
     }
 
@@ -124,16 +135,10 @@ public class BluetoothConnectionManager implements ITransport {
     public void startConnectionManager() {
         Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Close any connection that is being made or is open
+        synchronized (this) {
+            mConnection = null;
+            mIoLoop.disconnect();
         }
 
         if (cmdMessenger.getSettings().isDeviceScanEnabled()) {
@@ -144,7 +149,7 @@ public class BluetoothConnectionManager implements ITransport {
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Let the I/O loop close the current connection and connect to a remote device.
      *
      * @param device The BluetoothDevice to connect
      */
@@ -152,54 +157,24 @@ public class BluetoothConnectionManager implements ITransport {
         Log.d(TAG, "connect to: " + device);
         Log(1, "connect to: " + device.getName());
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(this, device);
-        mConnectThread.start();
+        // The loop closes the connection that is being made or is open, and opens the new one on its reader thread
+        mConnection = new BluetoothConnection(device);
+        mIoLoop.connect(mConnection);
         setState(STATE_CONNECTING);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Called on the main looper when the I/O loop has opened a connection.
      *
-     * @param socket The BluetoothSocket on which the connection was made
+     * @param connection The connection that was opened
      */
-    public synchronized void connected(BluetoothSocket socket) {
-        Log(1, "Connected to: " + socket.getRemoteDevice().getName());
-
-        // Reset the ConnectThread because we're done
-        synchronized (this) {
-            // Cancel the thread that completed the connection
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(this, socket, mHandler);
-        mConnectedThread.start();
+    protected synchronized void connected(BluetoothConnection connection) {
+        // Ignore a connection that has been replaced or stopped in the meantime
+        if (connection != mConnection) return;
+        Log(1, "Connected to: " + connection.getDevice().getName());
 
         // Successfully connected to Bluetooth device
+        mReceiver.connectionFound();
         invokeEvent(connectionFound, null);
 
         // Check if the identifier of the device matches
@@ -214,57 +189,66 @@ public class BluetoothConnectionManager implements ITransport {
     }
 
     /**
-     * Stop all threads
+     * Close the connection and stop the I/O loop
      */
     public synchronized void stopConnectionManager() {
         Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        mConnection = null;
+        mIoLoop.stop();
 
         setState(STATE_NONE);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a string for the writer thread of the I/O loop
      *
      * @param value The string to write
-     * @see ConnectedThread#write(byte[])
+     * @see StreamIoLoop#write(byte[], int, int)
      */
     public void write(String value) {
-        Log(1, value);
         if (cmdMessenger.getSettings().getPrintLfCr()) {
             value += "\r\n";
         }
-        try {
-            byte[] writeBytes = value.getBytes("ISO-8859-1");
-
-            // Create temporary object
-            ConnectedThread r;
-            // Synchronize a copy of the ConnectedThread
-            synchronized (this) {
-                if (mState != STATE_CONNECTED) return;
-                r = mConnectedThread;
-            }
-            // Perform the write unsynchronized
-            r.write(writeBytes);
-        } catch (UnsupportedEncodingException e) {
-            Log.d(TAG, "Unsupported character set");
-            Log(1, "Unsupported character set");
+        byte[] writeBytes = value.getBytes(ISO_8859_1);
+        write(writeBytes, 0, writeBytes.length);
+    }
+
+    /**
+     * Queue bytes for the writer thread of the I/O loop. Only blocks while the queue of the loop is full.
+     * The loop discards the bytes when the connection is closed or replaced, so a write that races
+     * with a reconnect never reaches the next connection.
+     *
+     * @param data   The bytes to write
+     * @param offset Offset of the first byte in data
+     * @param length Number of bytes to write
+     * @see StreamIoLoop#write(byte[], int, int)
+     */
+    public void write(byte[] data, int offset, int length) {
+        // Only build the string for verbose logging, writes are frequent
+        if (progress != null && cmdMessenger.getSettings().getLogWrites()) {
+            Log(1, new String(data, offset, length, ISO_8859_1));
         }
+
+        // A volatile read, writes must not contend for the lock of the manager
+        if (mState != STATE_CONNECTED) return;
+        mIoLoop.write(data, offset, length);
+    }
+
+    /**
+     * Sets where the writes to the socket are registered, they are measured on the writer thread of the I/O loop.
+     *
+     * @param linkThroughput The link throughput, null to not measure the writes
+     */
+    public void setLinkThroughput(LinkThroughput linkThroughput) {
+        mIoLoop.setLinkThroughput(linkThroughput);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    protected void connectionFailed() {
+    protected synchronized void connectionFailed(BluetoothConnection connection) {
+        if (connection != mConnection) return;
         Log(1, "Unable to connect device");
 
         // Try connecting to the next device
@@ -274,7 +258,10 @@ public class BluetoothConnectionManager implements ITransport {
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    protected void connectionLost() {
+    protected synchronized void connectionLost(BluetoothConnection connection) {
+        if (connection != mConnection) return;
+        setState(STATE_NONE);
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -295,6 +282,48 @@ public class BluetoothConnectionManager implements ITransport {
         invokeEvent(progress, args);
     }
 
+    /**
+     * Hands the events of the I/O loop to the main looper and the received data to the command receiver.
+     */
+    private class IoListener implements StreamIoLoop.Listener {
+        @Override
+        public void onConnected(final StreamIoLoop.Connection connection) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connected((BluetoothConnection) connection);
+                }
+            });
+        }
+
+        @Override
+        public void onConnectFailed(final StreamIoLoop.Connection connection, IOException e) {
+            Log.d(TAG, "Connect exception: " + e.getMessage());
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connectionFailed((BluetoothConnection) connection);
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected(final StreamIoLoop.Connection connection, IOException e) {
+            Log.e(TAG, "disconnected", e);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connectionLost((BluetoothConnection) connection);
+                }
+            });
+        }
+
+        @Override
+        public void onDataReceived(ReceiveBuffer buffer) {
+            mReceiver.dataReceived(buffer);
+        }
+    }
+
     private class onIdentifyResponse implements IMessengerCallbackFunction {
         @Override
         public void handleMessage(ReceivedCommand responseCommand) {
@@ -368,7 +397,7 @@ public class BluetoothConnectionManager implements ITransport {
     private void startWatchDog() {
         if (connectionManagerMode != Mode.Watchdog && mState == STATE_CONNECTED) {
             Log(1, "Starting Watchdog.");
-            lastCheckTime = TimeUtils.millis;
+            lastCheckTime = TimeUtils.millis();
             nextTimeOutCheck = lastCheckTime + cmdMessenger.getSettings().getWatchdogTimeout();
             watchdogTries = 0;
 
@@ -14,7 +14,4 @@ public interface Constants {
     // Key names received from the BluetoothChatService Handler
     String DEVICE_NAME = "device_name";
     String TOAST = "toast";
-
-    // Message types sent from ConnectThread
-    int SOCKET_CONNECTED = 4;
 }
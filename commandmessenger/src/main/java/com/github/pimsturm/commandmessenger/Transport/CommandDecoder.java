@@ -0,0 +1,252 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.ArgumentType;
+import com.github.pimsturm.commandmessenger.AsciiDecoder;
+import com.github.pimsturm.commandmessenger.BitConverter;
+import com.github.pimsturm.commandmessenger.BoardType;
+import com.github.pimsturm.commandmessenger.Escaping;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the fields of a framed command straight into the typed slots of a ReceivedCommand,
+ * using a schema with the type of every argument. Numbers are parsed from the received bytes
+ * without creating a String per argument. Binary arguments are little-endian, as sent by the Arduino.
+ * Arguments that do not match their type, and arguments beyond the schema, are kept as text.
+ * Not thread-safe: use one decoder per framer.
+ */
+public class CommandDecoder {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final double[] DOUBLE_POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final float[] FLOAT_POW10 = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+    private static final long MAX_EXACT_FLOAT = 1L << 24;
+
+    private final Settings settings;
+    private byte[] scratch = new byte[16];  // Unescaped bytes of a binary argument
+    private int scratchLength;
+
+    public CommandDecoder() {
+        settings = Settings.getInstance();
+    }
+
+    /**
+     * Decodes the remaining fields of the current frame of a framer.
+     * @param framer The framer, positioned after the command ID field.
+     * @param cmdId The command ID.
+     * @param schema The types of the arguments.
+     * @return The decoded command.
+     */
+    public ReceivedCommand decode(CommandFramer framer, int cmdId, ArgumentType[] schema) {
+        ReceivedCommand command = new ReceivedCommand(cmdId, schema.length);
+        byte[] buffer = framer.getBuffer();
+        int index = 0;
+        while (framer.nextField()) {
+            int offset = framer.getFieldOffset();
+            int length = framer.getFieldLength();
+            ArgumentType type = index < schema.length ? schema[index] : ArgumentType.String;
+            if (!decodeField(command, type, buffer, offset, length)) {
+                command.putArgument(new String(buffer, offset, length, ISO_8859_1));
+            }
+            index++;
+        }
+        return command;
+    }
+
+    /**
+     * Decodes the payload of a binary frame, see BinaryFrame.
+     * @param buffer The bytes.
+     * @param offset Offset of the payload.
+     * @param length Length of the payload.
+     * @return The decoded command, or null if the payload is malformed.
+     */
+    public ReceivedCommand decodeFrame(byte[] buffer, int offset, int length) {
+        if (length < 3) return null;
+        final int payloadEnd = offset + length;
+        int cmdId = BitConverter.getInt16(buffer, offset);
+        int count = buffer[offset + 2] & 0xFF;
+        int pos = offset + 3;
+
+        ReceivedCommand command = new ReceivedCommand(cmdId, count);
+        for (int i = 0; i < count; i++) {
+            if (pos >= payloadEnd) return null;
+            int type = buffer[pos++] & 0xFF;
+            int size = BinaryFrame.sizeOf(type);
+            if (size < 0) return null;
+            if (type == BinaryFrame.TYPE_STRING) {
+                if (pos + 2 > payloadEnd) return null;
+                int stringLength = BitConverter.getUInt16(buffer, pos);
+                pos += 2;
+                if (pos + stringLength > payloadEnd) return null;
+                command.putArgument(new String(buffer, pos, stringLength, ISO_8859_1));
+                pos += stringLength;
+                continue;
+            }
+            if (pos + size > payloadEnd) return null;
+            long value = BitConverter.getLittleEndian(buffer, pos, size);
+            if (type == BinaryFrame.TYPE_INT16) value = (short) value;
+            if (type == BinaryFrame.TYPE_INT32) value = (int) value;
+            command.putArgument(BinaryFrame.argumentTypeOf(type), value);
+            pos += size;
+        }
+        return pos == payloadEnd ? command : null;
+    }
+
+    private boolean decodeField(ReceivedCommand command, ArgumentType type, byte[] buffer, int offset, int length) {
+        if (type.isBinary()) {
+            unescape(buffer, offset, length);
+            if (type == ArgumentType.BinString) {
+                command.putArgument(new String(scratch, 0, scratchLength, ISO_8859_1));
+                return true;
+            }
+            return decodeBinary(command, type);
+        }
+
+        switch (type) {
+            case Int16:
+                return putInRange(command, type, AsciiDecoder.parseLong(buffer, offset, length), Short.MIN_VALUE, Short.MAX_VALUE);
+            case UInt16:
+                return putInRange(command, type, AsciiDecoder.parseLong(buffer, offset, length), 0, 0xFFFF);
+            case Int32:
+            case Bool:
+                return putInRange(command, type, AsciiDecoder.parseLong(buffer, offset, length), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            case UInt32:
+                return putInRange(command, type, AsciiDecoder.parseLong(buffer, offset, length), 0, 0xFFFFFFFFL);
+            case Float:
+                return putFloat(command, ArgumentType.Float, buffer, offset, length);
+            case Double:
+                if (settings.getBoardType() == BoardType.Bit16) {
+                    // A 16 bit board sends a double as a float
+                    return putFloat(command, ArgumentType.Float, buffer, offset, length);
+                }
+                return putDouble(command, buffer, offset, length);
+            default:
+                return false;
+        }
+    }
+
+    private boolean decodeBinary(ReceivedCommand command, ArgumentType type) {
+        int size = type.getSize();
+        if (type == ArgumentType.BinDouble && settings.getBoardType() == BoardType.Bit16) size = 4;
+        if (scratchLength != size) return false;
+
+        long value = BitConverter.getLittleEndian(scratch, 0, size);
+        switch (type) {
+            case BinInt16:
+                command.putArgument(type, (short) value);
+                break;
+            case BinInt32:
+                command.putArgument(type, (int) value);
+                break;
+            case BinDouble:
+                if (size == 4) {
+                    command.putArgument(ArgumentType.BinFloat, value);
+                } else {
+                    command.putArgument(type, value);
+                }
+                break;
+            default:
+                // Unsigned numbers, floats as raw bits and bools
+                command.putArgument(type, value);
+                break;
+        }
+        return true;
+    }
+
+    private static boolean putInRange(ReceivedCommand command, ArgumentType type, long value, long min, long max) {
+        if (value == AsciiDecoder.INVALID || value < min || value > max) return false;
+        command.putArgument(type, value);
+        return true;
+    }
+
+    private static boolean putFloat(ReceivedCommand command, ArgumentType type, byte[] buffer, int offset, int length) {
+        float value;
+        long mantissa = parseMantissa(buffer, offset, length);
+        int fractionDigits = fractionDigits(buffer, offset, length);
+        if (mantissa != AsciiDecoder.INVALID && Math.abs(mantissa) <= MAX_EXACT_FLOAT && fractionDigits < FLOAT_POW10.length) {
+            // Both operands are exact, so the division is correctly rounded like Float.parseFloat
+            value = mantissa / FLOAT_POW10[fractionDigits];
+        } else {
+            try {
+                value = java.lang.Float.parseFloat(new String(buffer, offset, length, ISO_8859_1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        if (mantissa == 0 && buffer[offset] == '-') value = -0.0f;
+        command.putArgument(type, java.lang.Float.floatToRawIntBits(value));
+        return true;
+    }
+
+    private static boolean putDouble(ReceivedCommand command, byte[] buffer, int offset, int length) {
+        double value;
+        long mantissa = parseMantissa(buffer, offset, length);
+        int fractionDigits = fractionDigits(buffer, offset, length);
+        if (mantissa != AsciiDecoder.INVALID && Math.abs(mantissa) <= MAX_EXACT_DOUBLE && fractionDigits < DOUBLE_POW10.length) {
+            // Both operands are exact, so the division is correctly rounded like Double.parseDouble
+            value = mantissa / DOUBLE_POW10[fractionDigits];
+        } else {
+            try {
+                value = java.lang.Double.parseDouble(new String(buffer, offset, length, ISO_8859_1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        if (mantissa == 0 && buffer[offset] == '-') value = -0.0;
+        command.putArgument(ArgumentType.Double, java.lang.Double.doubleToRawLongBits(value));
+        return true;
+    }
+
+    /**
+     * Parses the digits of a decimal number without exponent, ignoring the decimal point.
+     * @return The digits as integer, or AsciiDecoder.INVALID if the number has an exponent or too many digits.
+     */
+    private static long parseMantissa(byte[] buffer, int offset, int length) {
+        if (length <= 0 || length > 18) return AsciiDecoder.INVALID;
+        int pos = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (buffer[pos] == '-' || buffer[pos] == '+') {
+            negative = buffer[pos] == '-';
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        boolean point = false;
+        for (; pos < end; pos++) {
+            byte b = buffer[pos];
+            if (b == '.' && !point) {
+                point = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) return AsciiDecoder.INVALID;
+            value = value * 10 + digit;
+            digits++;
+        }
+        if (digits == 0) return AsciiDecoder.INVALID;
+        return negative ? -value : value;
+    }
+
+    private static int fractionDigits(byte[] buffer, int offset, int length) {
+        for (int pos = offset; pos < offset + length; pos++) {
+            if (buffer[pos] == '.') return offset + length - pos - 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Removes the escape characters of a field into the scratch buffer.
+     */
+    private void unescape(byte[] buffer, int offset, int length) {
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        scratchLength = Escaping.unescape(buffer, offset, length, scratch, 0);
+    }
+}
@@ -0,0 +1,408 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.BinaryConverter;
+import com.github.pimsturm.commandmessenger.BitConverter;
+import com.github.pimsturm.commandmessenger.Command;
+import com.github.pimsturm.commandmessenger.Escaping;
+import com.github.pimsturm.commandmessenger.FrameMode;
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.Settings;
+
+/**
+ * Serialises commands straight into a reusable byte buffer, the counterpart of CommandFramer.
+ * Several commands can be encoded after each other and written to the transport in one go.
+ * Characters are encoded as ISO-8859-1, characters outside it are written as '?'.
+ * With frame integrity the sequence numbers and the CRCs are filled in by seal, which the writer calls
+ * under its write lock, so the sequence numbers go out on the wire in order.
+ * Not thread-safe.
+ */
+public class CommandEncoder {
+    private static final int SEQUENCE_DIGITS = 3;
+    private static final int CRC_DIGITS = 5;
+
+    private final Settings settings;
+    private FrameIntegrity frameIntegrity;
+    private FrameMode frameMode;
+    private boolean frameIntegrityEnabled;
+    private boolean frameCrc;
+    private byte[] buffer;
+    private int length;
+    private int[] unsealedStarts = new int[8];  // Start of each command whose integrity fields are still empty
+    private int[] unsealedFields = new int[8];  // The sequence field of a text command, the CRC of a binary frame
+    private int unsealedCount;
+
+    /**
+     * Creates an encoder with a 256 byte buffer, the buffer grows when the commands do not fit.
+     */
+    public CommandEncoder() {
+        this(256);
+    }
+
+    /**
+     * Creates an encoder.
+     * @param capacity Initial size of the buffer in bytes.
+     */
+    public CommandEncoder(int capacity) {
+        settings = Settings.getInstance();
+        frameMode = settings.getFrameMode();
+        frameIntegrityEnabled = settings.getFrameIntegrity();
+        frameCrc = settings.getFrameCrc();
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Sets how the next commands are framed, Settings.getFrameMode by default.
+     * @param frameMode The frame mode.
+     */
+    public void setFrameMode(FrameMode frameMode) {
+        if (frameMode == null) throw new NullPointerException("frameMode");
+        this.frameMode = frameMode;
+    }
+
+    public FrameMode getFrameMode() {
+        return frameMode;
+    }
+
+    /**
+     * Sets whether the next commands carry a sequence number and a CRC, Settings.getFrameIntegrity by default.
+     * They are only added when a FrameIntegrity is set as well.
+     * @param frameIntegrityEnabled true to add the sequence numbers and CRCs.
+     */
+    public void setFrameIntegrityEnabled(boolean frameIntegrityEnabled) {
+        this.frameIntegrityEnabled = frameIntegrityEnabled;
+    }
+
+    public boolean isFrameIntegrityEnabled() {
+        return frameIntegrityEnabled;
+    }
+
+    /**
+     * Sets whether the next binary frames carry a CRC, Settings.getFrameCrc by default.
+     * Frames with a sequence number always carry one.
+     * @param frameCrc true to add a CRC to binary frames.
+     */
+    public void setFrameCrc(boolean frameCrc) {
+        this.frameCrc = frameCrc;
+    }
+
+    public boolean getFrameCrc() {
+        return frameCrc;
+    }
+
+    /**
+     * Sets where the sequence numbers of sent commands are taken from, when frame integrity is enabled.
+     * Encoders that write to the same transport must share it.
+     * @param frameIntegrity The sequence numbers and counters, null to leave them out.
+     */
+    public void setFrameIntegrity(FrameIntegrity frameIntegrity) {
+        this.frameIntegrity = frameIntegrity;
+    }
+
+    /**
+     * Appends a command: the command ID, the arguments and the command separator.
+     * When frame integrity is enabled, room for the sequence number and the CRC is left as the last
+     * fields, seal fills them in.
+     * When Settings.getPrintLfCr is set, a line end is added.
+     * When the frame mode is Binary, the command is appended as a binary frame instead.
+     * @param command The command, its arguments must have been initialized.
+     * @throws IllegalArgumentException when the frame mode is Binary and the command ID is outside
+     * 0 to BinaryFrame.MAX_CMD_ID.
+     */
+    public void encode(Command command) {
+        if (frameMode == FrameMode.Binary) {
+            encodeFrame(command);
+            return;
+        }
+        final char fieldSeparator = settings.getFieldSeparator();
+        final int commandStart = length;
+
+        appendInt(command.getCmdId());
+        if (command instanceof SendCommand) {
+            ((SendCommand) command).encodeArguments(this);
+        } else {
+            final int argumentCount = command.getArgumentCount();
+            for (int i = 0; i < argumentCount; i++) {
+                appendChar(fieldSeparator);
+                appendString(command.getArgument(i));
+            }
+        }
+        if (isIntegrityEnabled()) {
+            // Fixed width, so seal can fill them in place
+            ensureCapacity(SEQUENCE_DIGITS + CRC_DIGITS + 2);
+            appendChar(fieldSeparator);
+            addUnsealed(commandStart, length);
+            length += SEQUENCE_DIGITS;
+            appendChar(fieldSeparator);
+            length += CRC_DIGITS;
+        }
+        appendChar(settings.getCommandSeparator());
+        if (settings.getPrintLfCr()) {
+            appendChar('\r');
+            appendChar('\n');
+        }
+    }
+
+    /**
+     * Appends a command as a binary frame, see BinaryFrame.
+     * @param command The command, its arguments must have been initialized.
+     * @throws IllegalArgumentException when the command ID does not fit in a frame.
+     */
+    private void encodeFrame(Command command) {
+        final int cmdId = command.getCmdId();
+        if (cmdId < 0 || cmdId > BinaryFrame.MAX_CMD_ID) throw new IllegalArgumentException("cmdId");
+        final boolean sequence = isIntegrityEnabled();
+        final boolean crc = sequence || frameCrc;
+        final int frameStart = length;
+        ensureCapacity(BinaryFrame.HEADER_LENGTH + BinaryFrame.SEQUENCE_LENGTH);
+        buffer[length++] = BinaryFrame.SYNC;
+        buffer[length++] = (byte) ((crc ? BinaryFrame.FLAG_CRC : 0) | (sequence ? BinaryFrame.FLAG_SEQUENCE : 0));
+        length += 2;    // Payload length, filled in below
+        if (sequence) length++; // Sequence number, filled in by seal
+
+        final int payloadStart = length;
+        appendRaw(cmdId, 2);
+        final int countPosition = length;
+        appendRaw(0, 1);
+        int count;
+        if (command instanceof SendCommand) {
+            count = ((SendCommand) command).encodeFrameArguments(this);
+        } else {
+            count = command.getArgumentCount();
+            for (int i = 0; i < count; i++) appendFrameString(command.getArgument(i));
+        }
+        final int payloadLength = length - payloadStart;
+        if (count > 0xFF || payloadLength > BinaryFrame.MAX_PAYLOAD_LENGTH) {
+            length = frameStart;
+            throw new IllegalStateException("The command does not fit in a binary frame.");
+        }
+        buffer[countPosition] = (byte) count;
+        BitConverter.putLittleEndian(buffer, frameStart + 2, payloadLength, 2);
+        if (sequence) {
+            // The CRC covers the sequence number
+            addUnsealed(frameStart, length);
+            ensureCapacity(BinaryFrame.CRC_LENGTH);
+            length += BinaryFrame.CRC_LENGTH;
+        } else if (crc) {
+            appendRaw(BinaryFrame.crc16(buffer, frameStart + 1, length - frameStart - 1), BinaryFrame.CRC_LENGTH);
+        }
+    }
+
+    private boolean isIntegrityEnabled() {
+        return frameIntegrity != null && frameIntegrityEnabled;
+    }
+
+    private void addUnsealed(int start, int field) {
+        if (unsealedCount == unsealedStarts.length) {
+            int[] grownStarts = new int[unsealedCount * 2];
+            int[] grownFields = new int[unsealedCount * 2];
+            System.arraycopy(unsealedStarts, 0, grownStarts, 0, unsealedCount);
+            System.arraycopy(unsealedFields, 0, grownFields, 0, unsealedCount);
+            unsealedStarts = grownStarts;
+            unsealedFields = grownFields;
+        }
+        unsealedStarts[unsealedCount] = start;
+        unsealedFields[unsealedCount++] = field;
+    }
+
+    /**
+     * Fills in the sequence numbers and the CRCs of the commands encoded since the last seal.
+     * The writer must call it under the same lock as the write, just before writing the buffer.
+     */
+    public void seal() {
+        for (int i = 0; i < unsealedCount; i++) {
+            final int start = unsealedStarts[i];
+            final int field = unsealedFields[i];
+            final int sequence = frameIntegrity.nextSendSequence();
+            if (buffer[start] == BinaryFrame.SYNC) {
+                buffer[start + BinaryFrame.HEADER_LENGTH] = (byte) sequence;
+                BitConverter.putLittleEndian(buffer, field,
+                        BinaryFrame.crc16(buffer, start + 1, field - start - 1), BinaryFrame.CRC_LENGTH);
+            } else {
+                putDigits(field, SEQUENCE_DIGITS, sequence);
+                final int crcField = field + SEQUENCE_DIGITS + 1;
+                putDigits(crcField, CRC_DIGITS, BinaryFrame.crc16(buffer, start, crcField - start));
+            }
+        }
+        unsealedCount = 0;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative integer with leading zeros.
+     */
+    private void putDigits(int position, int digits, int value) {
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Appends a number argument of a binary frame: its type code and its value.
+     * @param type The type code, see BinaryFrame.
+     * @param bits The value, floating point numbers as raw bits.
+     */
+    public void appendFrameArgument(int type, long bits) {
+        appendRaw(type, 1);
+        appendRaw(bits, BinaryFrame.sizeOf(type));
+    }
+
+    /**
+     * Appends a string argument of a binary frame: its type code, its length and its characters.
+     * @param value The string.
+     */
+    public void appendFrameString(String value) {
+        appendRaw(BinaryFrame.TYPE_STRING, 1);
+        appendRaw(value.length(), 2);
+        appendString(value);
+    }
+
+    /**
+     * Appends a value little-endian without escaping.
+     * @param bits The value.
+     * @param size Number of bytes of the value.
+     */
+    private void appendRaw(long bits, int size) {
+        ensureCapacity(size);
+        length = BitConverter.putLittleEndian(buffer, length, bits, size);
+    }
+
+    /**
+     * Appends a string.
+     * @param value The string.
+     */
+    public void appendString(String value) {
+        final int count = value.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            buffer[length++] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+    }
+
+    /**
+     * Appends a string, escaping the escape character, the separators and the null character.
+     * @param value The unescaped string.
+     */
+    public void appendEscaped(String value) {
+        final int count = value.length();
+        ensureCapacity(count * 2);
+        final byte escapeCharacter = (byte) Escaping.getEscapeCharacter();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (Escaping.needsEscape(c)) buffer[length++] = escapeCharacter;
+            buffer[length++] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+    }
+
+    /**
+     * Appends bytes, escaping the escape character, the separators and the null character.
+     * @param data The unescaped bytes.
+     * @param offset Offset of the first byte in data.
+     * @param count Number of bytes.
+     */
+    public void appendEscaped(byte[] data, int offset, int count) {
+        ensureCapacity(count * 2);
+        length += Escaping.escape(data, offset, count, buffer, length);
+    }
+
+    /**
+     * Appends a binary value little-endian, escaping its bytes.
+     * @param bits The value, floating point numbers as raw bits.
+     * @param size Number of bytes of the value.
+     */
+    public void appendBinary(long bits, int size) {
+        ensureCapacity(size * 2);
+        length = BinaryConverter.putEscaped(buffer, length, bits, size);
+    }
+
+    /**
+     * Appends a character.
+     * @param c The character.
+     */
+    public void appendChar(char c) {
+        ensureCapacity(1);
+        buffer[length++] = c <= 0xFF ? (byte) c : (byte) '?';
+    }
+
+    /**
+     * Appends the decimal digits of an integer, without creating a string.
+     * @param value The integer.
+     */
+    public void appendInt(int value) {
+        ensureCapacity(11);
+        if (value == Integer.MIN_VALUE) {
+            appendString("-2147483648");
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) digits++;
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Appends the decimal digits of a long, without creating a string.
+     * @param value The long.
+     */
+    public void appendLong(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            appendInt((int) value);
+            return;
+        }
+        ensureCapacity(20);
+        if (value == Long.MIN_VALUE) {
+            appendString("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Discards the encoded commands, the buffer is kept.
+     */
+    public void clear() {
+        length = 0;
+        unsealedCount = 0;
+    }
+
+    /**
+     * Gets the buffer holding the encoded commands, from offset 0.
+     * @return The buffer.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the number of encoded bytes.
+     * @return The number of bytes.
+     */
+    public int length() {
+        return length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
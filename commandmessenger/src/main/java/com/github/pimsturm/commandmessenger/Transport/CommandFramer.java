@@ -0,0 +1,430 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.AsciiDecoder;
+import com.github.pimsturm.commandmessenger.BitConverter;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser that cuts the received byte stream into commands.
+ * Received bytes are appended to a reusable buffer. Scanning resumes where the previous call stopped,
+ * so every byte is examined once, and escapes are tracked across chunks.
+ * Commands and their fields are handed out as (offset, length) slices of the buffer,
+ * which are valid until the next call to append.
+ * Scanning skips eight bytes at a time while a word holds no separator or escape character,
+ * and classifies the remaining bytes with a lookup table, so large backlogs are framed quickly.
+ * Binary frames (see BinaryFrame) are found from their length prefix, without scanning.
+ * With a FrameIntegrity set, the sequence numbers and CRCs of the commands are checked,
+ * see setFrameIntegrityEnabled.
+ * Not thread-safe: append and the frame and field cursors must be used from one thread.
+ */
+public class CommandFramer {
+    // Byte class flags of the lookup table
+    private static final byte ESCAPE = 1;
+    private static final byte COMMAND_SEPARATOR = 2;
+    private static final byte FIELD_SEPARATOR = 4;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final int INCOMPLETE = -1;
+    private static final int INVALID = -2;
+    private static final long NOT_WAITING = -1;
+
+    private final Settings settings;
+    private FrameIntegrity frameIntegrity;
+    private boolean frameIntegrityEnabled;
+
+    private byte[] buffer;
+    private ByteBuffer words;   // Word view on buffer for the eight byte skips
+    private final byte[] byteClasses = new byte[256];
+    private char tableCommandSeparator;
+    private char tableFieldSeparator;
+    private char tableEscapeCharacter;
+    private int start;          // First byte of the command being scanned
+    private int scan;           // Next byte to scan
+    private int end;            // End of the received data
+    private boolean escaped;    // The last scanned byte is an unescaped escape character
+    private long frameTimeout = 1000000000L;    // ns a binary frame may stay incomplete
+    private long incompleteSince = NOT_WAITING; // When the binary frame at start was found incomplete
+
+    private int frameOffset;
+    private int frameLength;
+    private boolean binaryFrame;    // The current frame is a binary frame
+    private int fieldPosition;  // Next byte of the current frame to split into fields
+    private int fieldOffset;
+    private int fieldLength;
+
+    /**
+     * Creates a framer with a 1 kB buffer, the buffer grows when a command does not fit.
+     */
+    public CommandFramer() {
+        this(1024);
+    }
+
+    /**
+     * Creates a framer.
+     * @param capacity Initial size of the buffer in bytes.
+     */
+    public CommandFramer(int capacity) {
+        settings = Settings.getInstance();
+        frameIntegrityEnabled = settings.getFrameIntegrity();
+        buffer = new byte[Math.max(capacity, 16)];
+        words = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Sets the counters the sequence numbers and CRC failures of received commands are reported to.
+     * Text commands are only checked, and their sequence number and CRC fields removed,
+     * when frame integrity is enabled as well.
+     * @param frameIntegrity The sequence numbers and counters, null to not check the commands.
+     */
+    public void setFrameIntegrity(FrameIntegrity frameIntegrity) {
+        this.frameIntegrity = frameIntegrity;
+    }
+
+    /**
+     * Sets whether received text commands carry a sequence number and a CRC, Settings.getFrameIntegrity by default.
+     * Binary frames tell so in their header.
+     * @param frameIntegrityEnabled true to check and remove the sequence number and CRC fields.
+     */
+    public void setFrameIntegrityEnabled(boolean frameIntegrityEnabled) {
+        this.frameIntegrityEnabled = frameIntegrityEnabled;
+    }
+
+    public boolean isFrameIntegrityEnabled() {
+        return frameIntegrityEnabled;
+    }
+
+    /**
+     * Sets how long the rest of a binary frame may take to arrive. A frame that is still incomplete after
+     * this time is treated as corrupted, so a corrupted length field cannot hold up the frames after it
+     * until the claimed length has been received. The time is checked when more data is framed.
+     * @param frameTimeout Time-out in ms, one second by default.
+     */
+    public void setFrameTimeout(int frameTimeout) {
+        if (frameTimeout < 0) throw new IllegalArgumentException("frameTimeout");
+        this.frameTimeout = frameTimeout * 1000000L;
+    }
+
+    /**
+     * Appends received bytes. Bytes of commands that have already been handed out are discarded first.
+     * @param data The received bytes.
+     * @param offset Offset of the first received byte in data.
+     * @param length Number of received bytes.
+     */
+    public void append(byte[] data, int offset, int length) {
+        if (start > 0) {
+            // Move the incomplete command to the front of the buffer
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            scan -= start;
+            end -= start;
+            start = 0;
+        }
+        if (end + length > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, end + length)];
+            System.arraycopy(buffer, 0, grown, 0, end);
+            buffer = grown;
+            words = ByteBuffer.wrap(buffer);
+        }
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Discards all received data.
+     */
+    public void clear() {
+        start = scan = end = 0;
+        escaped = false;
+        frameLength = 0;
+        fieldPosition = 0;
+        binaryFrame = false;
+        incompleteSince = NOT_WAITING;
+    }
+
+    /**
+     * Finds the next complete command, ended by an unescaped command separator, or the next binary frame.
+     * Line ends between commands are skipped.
+     * A command that starts with BinaryFrame.SYNC is a binary frame, whose end follows from its length.
+     * Binary frames with a bad header or CRC, or that stay incomplete too long, are dropped, and so are
+     * text commands with a bad CRC when frame integrity is checked.
+     * @return true if a command was found, its slice is given by getFrameOffset and getFrameLength.
+     */
+    public boolean nextFrame() {
+        updateTable();
+        final long separatorPattern = ONES * (tableCommandSeparator & 0xFF);
+        final long escapePattern = ONES * (tableEscapeCharacter & 0xFF);
+
+        while (scan < end) {
+            if (scan == start && !escaped) {
+                // At the start of a command: skip line ends and check for a binary frame
+                while (start < end && isLineEnd(buffer[start])) start++;
+                scan = start;
+                if (scan == end) break;
+                if (buffer[start] == BinaryFrame.SYNC) {
+                    int frameEnd = binaryFrameEnd();
+                    if (frameEnd == INCOMPLETE) return false;
+                    if (frameEnd != INVALID) {
+                        boolean sequence = (buffer[start + 1] & BinaryFrame.FLAG_SEQUENCE) != 0;
+                        binaryFrame = true;
+                        frameOffset = start + BinaryFrame.HEADER_LENGTH + (sequence ? BinaryFrame.SEQUENCE_LENGTH : 0);
+                        frameLength = BitConverter.getUInt16(buffer, start + 2);
+                        fieldPosition = frameOffset + frameLength;
+                        start = scan = frameEnd;
+                        return true;
+                    }
+                    continue;
+                }
+            }
+            if (escaped) {
+                escaped = false;
+                scan++;
+                continue;
+            }
+            scan = skipPlain(scan, end, separatorPattern, escapePattern, ESCAPE | COMMAND_SEPARATOR);
+            if (scan == end) break;
+
+            if ((byteClasses[buffer[scan] & 0xFF] & COMMAND_SEPARATOR) != 0) {
+                binaryFrame = false;
+                frameOffset = start;
+                frameLength = scan - start;
+                fieldPosition = frameOffset;
+                start = ++scan;
+                if (frameIntegrity != null && frameIntegrityEnabled && !checkTextIntegrity()) continue;
+                return true;
+            }
+            escaped = true;
+            scan++;
+        }
+        return false;
+    }
+
+    /**
+     * Indicates if the current command is a binary frame. Its slice is then the payload of the frame,
+     * which is not split into fields.
+     * @return true for a binary frame.
+     */
+    public boolean isBinaryFrame() {
+        return binaryFrame;
+    }
+
+    /**
+     * Checks the binary frame at start.
+     * @return The end of the frame, INCOMPLETE if more data is needed,
+     * or INVALID if the frame was dropped and start has been moved past its sync byte.
+     */
+    private int binaryFrameEnd() {
+        if (end - start < BinaryFrame.HEADER_LENGTH) return INCOMPLETE;
+        int flags = buffer[start + 1] & 0xFF;
+        int payloadLength = BitConverter.getUInt16(buffer, start + 2);
+        if ((flags & ~(BinaryFrame.FLAG_CRC | BinaryFrame.FLAG_SEQUENCE)) != 0
+                || payloadLength > BinaryFrame.MAX_PAYLOAD_LENGTH) {
+            // Not a frame header, treat the sync byte as text
+            start++;
+            scan = start;
+            return INVALID;
+        }
+        boolean crc = (flags & BinaryFrame.FLAG_CRC) != 0;
+        boolean sequence = (flags & BinaryFrame.FLAG_SEQUENCE) != 0;
+        int frameEnd = start + BinaryFrame.HEADER_LENGTH + (sequence ? BinaryFrame.SEQUENCE_LENGTH : 0)
+                + payloadLength + (crc ? BinaryFrame.CRC_LENGTH : 0);
+        if (frameEnd > end) {
+            long now = System.nanoTime();
+            if (incompleteSince == NOT_WAITING) {
+                incompleteSince = now;
+            } else if (now - incompleteSince > frameTimeout) {
+                // The length field is probably corrupted
+                resync(end);
+                return INVALID;
+            }
+            return INCOMPLETE;
+        }
+        incompleteSince = NOT_WAITING;
+        if (crc) {
+            int crcOffset = frameEnd - BinaryFrame.CRC_LENGTH;
+            if (BinaryFrame.crc16(buffer, start + 1, crcOffset - start - 1) != BitConverter.getUInt16(buffer, crcOffset)) {
+                resync(frameEnd);
+                return INVALID;
+            }
+        }
+        if (sequence && frameIntegrity != null) {
+            frameIntegrity.frameReceived(buffer[start + BinaryFrame.HEADER_LENGTH] & 0xFF);
+        }
+        return frameEnd;
+    }
+
+    /**
+     * Drops a corrupted binary frame. Its length field cannot be trusted, so only the sync byte is skipped
+     * and the next frame is searched for from there: scanning resumes at the next sync byte, or at the
+     * claimed end of the frame if there is none. The bytes in between are dropped, they belong to the
+     * corrupted frame and would otherwise be scanned as text.
+     * @param claimedEnd The end of the frame according to its length field, at most end.
+     */
+    private void resync(int claimedEnd) {
+        int next = start + 1;
+        while (next < end && buffer[next] != BinaryFrame.SYNC) next++;
+        start = scan = next < end ? next : Math.min(claimedEnd, end);
+        incompleteSince = NOT_WAITING;
+        if (frameIntegrity != null) frameIntegrity.frameCorrupted();
+    }
+
+    /**
+     * Checks the sequence number and CRC fields at the end of the current text command,
+     * and removes them from its slice.
+     * @return true if the CRC matches, false if the command is corrupted and must be dropped.
+     */
+    private boolean checkTextIntegrity() {
+        final int crcSeparator = findTrailingField(frameOffset + frameLength, 5);
+        final int sequenceSeparator = crcSeparator < 0 ? -1 : findTrailingField(crcSeparator, 3);
+        if (sequenceSeparator >= 0) {
+            long crc = AsciiDecoder.parseLong(buffer, crcSeparator + 1, frameOffset + frameLength - crcSeparator - 1);
+            long sequence = AsciiDecoder.parseLong(buffer, sequenceSeparator + 1, crcSeparator - sequenceSeparator - 1);
+            if (crc == BinaryFrame.crc16(buffer, frameOffset, crcSeparator + 1 - frameOffset) && sequence <= 0xFF) {
+                frameLength = sequenceSeparator - frameOffset;
+                frameIntegrity.frameReceived((int) sequence);
+                return true;
+            }
+        }
+        frameIntegrity.frameCorrupted();
+        return false;
+    }
+
+    /**
+     * Finds the unescaped field separator in front of a number field that ends at a position.
+     * @param fieldEnd The end of the field.
+     * @param maxDigits The maximum number of digits of the field.
+     * @return The position of the field separator, or -1 if there is no such field.
+     */
+    private int findTrailingField(int fieldEnd, int maxDigits) {
+        int position = fieldEnd;
+        while (position > frameOffset && fieldEnd - position < maxDigits
+                && buffer[position - 1] >= '0' && buffer[position - 1] <= '9') position--;
+        if (position == fieldEnd || position <= frameOffset) return -1;
+        final int separator = position - 1;
+        if (buffer[separator] != (byte) tableFieldSeparator || isEscapedAt(separator, frameOffset)) return -1;
+        return separator;
+    }
+
+    /**
+     * Finds the next non-empty field of the current command, split on unescaped field separators.
+     * Line feeds and carriage returns around a field are skipped. Escape characters are kept, as the
+     * string split did before: the binary arguments are unescaped by the readers of ReceivedCommand,
+     * unescaping them here as well would unescape them twice.
+     * @return true if a field was found, its slice is given by getFieldOffset and getFieldLength.
+     */
+    public boolean nextField() {
+        updateTable();
+        final long separatorPattern = ONES * (tableFieldSeparator & 0xFF);
+        final long escapePattern = ONES * (tableEscapeCharacter & 0xFF);
+        final int frameEnd = frameOffset + frameLength;
+
+        while (fieldPosition < frameEnd) {
+            int first = fieldPosition;
+            int pos = first;
+            while (pos < frameEnd) {
+                pos = skipPlain(pos, frameEnd, separatorPattern, escapePattern, ESCAPE | FIELD_SEPARATOR);
+                if (pos == frameEnd || (byteClasses[buffer[pos] & 0xFF] & FIELD_SEPARATOR) != 0) break;
+                // Skip the escape character and the escaped byte
+                pos += 2;
+            }
+            if (pos > frameEnd) pos = frameEnd;
+            fieldPosition = pos + 1;
+
+            int last = pos;
+            while (first < last && isLineEnd(buffer[first])) first++;
+            while (last > first && isLineEnd(buffer[last - 1]) && !isEscapedAt(last - 1, first)) last--;
+            if (last > first) {
+                fieldOffset = first;
+                fieldLength = last - first;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the buffer the frame and field slices refer to.
+     * @return The buffer.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    public int getFieldOffset() {
+        return fieldOffset;
+    }
+
+    public int getFieldLength() {
+        return fieldLength;
+    }
+
+    /**
+     * Skips the bytes that are neither the separator nor the escape character: whole words of eight bytes
+     * while they hold neither, the first match in a word follows from its mask. The last bytes before
+     * limit are classified one by one with the lookup table.
+     * @param classes The byte class flags to stop at.
+     * @return The position of the first separator or escape character, or limit.
+     */
+    private int skipPlain(int position, int limit, long separatorPattern, long escapePattern, int classes) {
+        while (position + 8 <= limit) {
+            long word = words.getLong(position);
+            long matches = zeroBytes(word ^ separatorPattern) | zeroBytes(word ^ escapePattern);
+            // The words are big-endian, the first byte in the buffer is the most significant one
+            if (matches != 0) return position + (Long.numberOfLeadingZeros(matches) >>> 3);
+            position += 8;
+        }
+        while (position < limit && (byteClasses[buffer[position] & 0xFF] & classes) == 0) position++;
+        return position;
+    }
+
+    /**
+     * Marks the zero bytes of a word with their high bit. Exact, unlike the borrow trick,
+     * so the leading zeros of the mask give the first zero byte.
+     */
+    private static long zeroBytes(long word) {
+        return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+    }
+
+    /**
+     * Rebuilds the byte class table when the separators or the escape character have been changed.
+     */
+    private void updateTable() {
+        char commandSeparator = settings.getCommandSeparator();
+        char fieldSeparator = settings.getFieldSeparator();
+        char escapeCharacter = settings.getEscapeCharacter();
+        if (commandSeparator == tableCommandSeparator && fieldSeparator == tableFieldSeparator
+                && escapeCharacter == tableEscapeCharacter) return;
+
+        byteClasses[tableCommandSeparator & 0xFF] = 0;
+        byteClasses[tableFieldSeparator & 0xFF] = 0;
+        byteClasses[tableEscapeCharacter & 0xFF] = 0;
+        byteClasses[commandSeparator & 0xFF] |= COMMAND_SEPARATOR;
+        byteClasses[fieldSeparator & 0xFF] |= FIELD_SEPARATOR;
+        byteClasses[escapeCharacter & 0xFF] |= ESCAPE;
+        tableCommandSeparator = commandSeparator;
+        tableFieldSeparator = fieldSeparator;
+        tableEscapeCharacter = escapeCharacter;
+    }
+
+    private static boolean isLineEnd(byte b) {
+        return b == '\r' || b == '\n';
+    }
+
+    /**
+     * Checks if the byte at a position is escaped, by counting the escape characters in front of it.
+     */
+    private boolean isEscapedAt(int position, int first) {
+        final byte escapeCharacter = (byte) settings.getEscapeCharacter();
+        int count = 0;
+        while (position - count - 1 >= first && buffer[position - count - 1] == escapeCharacter) count++;
+        return (count & 1) == 1;
+    }
+}
@@ -0,0 +1,418 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.ArgumentType;
+import com.github.pimsturm.commandmessenger.AsciiDecoder;
+import com.github.pimsturm.commandmessenger.AsyncWorker;
+import com.github.pimsturm.commandmessenger.DecodeThread;
+import com.github.pimsturm.commandmessenger.IAsyncWorkerJob;
+import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
+import com.github.pimsturm.commandmessenger.IntObjectMap;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Queue.ReceiveCommandQueue;
+import com.github.pimsturm.commandmessenger.Settings;
+import com.github.pimsturm.commandmessenger.TimeUtils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Receives the data read by the transports: cuts it into commands, decodes them and calls the
+ * attached callbacks. Received data is decoded on the main thread, on a dedicated decoder thread or
+ * directly on the reader thread, see setDecodeThread. The main thread is only reached through the
+ * executor given to the constructor, so the receiver does not use android classes.
+ */
+public class CommandReceiver implements Executor {
+    private final IntObjectMap<IMessengerCallbackFunction> callbacks = new IntObjectMap<>();  // Callbacks per command ID
+    private IMessengerCallbackFunction defaultCallback;                 // The default callback, guarded by callbacks
+    private final CommandFramer framer = new CommandFramer();           // Cuts the received bytes into commands
+    private int[] fieldBounds = new int[32];                            // Reused start and end of each field of the parsed command
+    private final CommandDecoder commandDecoder = new CommandDecoder(); // Decodes commands with a schema
+    private final IntObjectMap<ArgumentType[]> schemas = new IntObjectMap<>();  // Argument types per command ID, guarded by framer
+    private final ReceiveBufferPool bufferPool = new ReceiveBufferPool();  // Buffers the transports read into
+    private final ArrayDeque<ReceiveBuffer> pendingData = new ArrayDeque<>();  // Received data waiting for the decoder thread
+    private final AsyncWorker decoder;                                  // The decoder thread
+    private final Executor mainThread;                                  // Runs tasks on the main thread
+    private volatile DecodeThread decodeThread;
+    private volatile boolean callbacksOnMainThread;
+    private ReceiveCommandQueue receiveCommandQueue;                    // Queue the decoded commands are put on
+    private volatile IEventHandler connectionFound;                     // Resets the state kept per connection
+
+    /**
+     * Creates a receiver. The decode thread and whether the callbacks run on the main thread
+     * start from the defaults in Settings.
+     *
+     * @param mainThread Runs tasks on the main thread, directly if called on it. Null if there is no
+     *                   main thread, then everything runs on the decode thread.
+     */
+    public CommandReceiver(Executor mainThread) {
+        this.mainThread = mainThread;
+        Settings settings = Settings.getInstance();
+        decodeThread = settings.getDecodeThread();
+        callbacksOnMainThread = settings.getCallbacksOnMainThread();
+        decoder = new AsyncWorker(new DecodeJob(), "CmdMessengerDecoder");
+    }
+
+    /**
+     * Sets the thread on which received data is cut into commands and decoded.
+     *
+     * @param decodeThread The decode thread.
+     */
+    public void setDecodeThread(DecodeThread decodeThread) {
+        if (decodeThread == null) throw new NullPointerException("decodeThread");
+        this.decodeThread = decodeThread;
+    }
+
+    public DecodeThread getDecodeThread() {
+        return decodeThread;
+    }
+
+    /**
+     * Sets whether the attached callbacks and the listeners of command futures are called on the
+     * main thread. When false, they are called on the decode thread.
+     *
+     * @param callbacksOnMainThread true to call the callbacks on the main thread.
+     */
+    public void setCallbacksOnMainThread(boolean callbacksOnMainThread) {
+        this.callbacksOnMainThread = callbacksOnMainThread;
+    }
+
+    public boolean getCallbacksOnMainThread() {
+        return callbacksOnMainThread;
+    }
+
+    /**
+     * Sets the queue the decoded commands are put on. Without a queue, commands are processed directly.
+     *
+     * @param receiveCommandQueue The receive command queue.
+     */
+    public void setReceiveCommandQueue(ReceiveCommandQueue receiveCommandQueue) {
+        this.receiveCommandQueue = receiveCommandQueue;
+    }
+
+    /**
+     * Gets the pool of the buffers the transports read into. Buffers handed to dataReceived are
+     * released to it once they have been decoded.
+     *
+     * @return The buffer pool.
+     */
+    public ReceiveBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Hands received data over for decoding, on the thread selected by setDecodeThread.
+     * The receiver takes ownership of the buffer and releases it after decoding.
+     *
+     * @param buffer The received bytes.
+     */
+    public void dataReceived(final ReceiveBuffer buffer) {
+        switch (decodeThread) {
+            case DecoderThread:
+                synchronized (pendingData) {
+                    pendingData.add(buffer);
+                }
+                startDecoder();
+                decoder.signal();
+                break;
+            case MainThread:
+                if (mainThread != null) {
+                    mainThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            decode(buffer);
+                        }
+                    });
+                    break;
+                }
+                // Without a main thread, decode on the reader thread
+            default:
+                decode(buffer);
+                break;
+        }
+    }
+
+    /**
+     * Hands received data over for decoding. The data is copied into buffers from the pool,
+     * so the caller keeps the array.
+     *
+     * @param data   The received bytes.
+     * @param offset Offset of the first byte in data.
+     * @param length The number of received bytes.
+     */
+    public void dataReceived(byte[] data, int offset, int length) {
+        while (length > 0) {
+            ReceiveBuffer buffer = bufferPool.obtain();
+            int count = Math.min(length, buffer.getData().length);
+            System.arraycopy(data, offset, buffer.getData(), 0, count);
+            buffer.setLength(count);
+            dataReceived(buffer);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Stops the decoder thread.
+     */
+    public void stop() {
+        synchronized (decoder) {
+            if (decoder.isRunning() || decoder.isSuspended()) decoder.stop();
+        }
+        synchronized (pendingData) {
+            while (!pendingData.isEmpty()) pendingData.poll().release();
+        }
+    }
+
+    private void startDecoder() {
+        synchronized (decoder) {
+            if (!decoder.isRunning() && !decoder.isSuspended()) decoder.start();
+        }
+    }
+
+    /**
+     * Decodes the data waiting for the decoder thread.
+     */
+    private class DecodeJob implements IAsyncWorkerJob {
+        @Override
+        public boolean execute() {
+            ReceiveBuffer buffer;
+            synchronized (pendingData) {
+                buffer = pendingData.poll();
+            }
+            if (buffer != null) decode(buffer);
+
+            synchronized (pendingData) {
+                return !pendingData.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * Adds received data to the framer buffer, then parses and processes the complete commands.
+     * The received buffer is released once it has been copied into the framer.
+     *
+     * @param buffer The received bytes.
+     */
+    private void decode(ReceiveBuffer buffer) {
+        synchronized (framer) {
+            framer.append(buffer.getData(), 0, buffer.getLength());
+            buffer.release();
+            parseLines();
+        }
+    }
+
+    /**
+     * Attaches default callback for unsupported commands.
+     *
+     * @param newFunction The callback function.
+     */
+    public void attach(IMessengerCallbackFunction newFunction) {
+        synchronized (callbacks) {
+            defaultCallback = newFunction;
+        }
+    }
+
+    /**
+     * Attaches default callback for certain Message ID.
+     *
+     * @param messageId   Command ID.
+     * @param newFunction The callback function.
+     */
+    public void attach(int messageId, IMessengerCallbackFunction newFunction) {
+        synchronized (callbacks) {
+            callbacks.put(messageId, newFunction);
+        }
+    }
+
+    /**
+     * Process the received command.
+     * When setCallbacksOnMainThread is set, the callback is run on the main thread.
+     *
+     * @param receivedCommand The received command.
+     */
+    public void processCommand(final ReceivedCommand receivedCommand) {
+        if (callbacksOnMainThread && mainThread != null) {
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchCommand(receivedCommand);
+                }
+            });
+        } else {
+            dispatchCommand(receivedCommand);
+        }
+    }
+
+    /**
+     * Runs a callback, such as a listener of a CommandFuture.
+     * When setCallbacksOnMainThread is set, the callback is run on the main thread.
+     *
+     * @param callback The callback.
+     */
+    @Override
+    public void execute(Runnable callback) {
+        if (callbacksOnMainThread && mainThread != null) {
+            mainThread.execute(callback);
+        } else {
+            callback.run();
+        }
+    }
+
+    /**
+     * Process a batch of received commands.
+     * When setCallbacksOnMainThread is set, the whole batch is handed to the main thread at once.
+     *
+     * @param receivedCommands The received commands. The list may be reused after the call.
+     */
+    public void processCommands(List<ReceivedCommand> receivedCommands) {
+        if (callbacksOnMainThread && mainThread != null) {
+            final ReceivedCommand[] batch = receivedCommands.toArray(new ReceivedCommand[receivedCommands.size()]);
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (ReceivedCommand receivedCommand : batch) {
+                        dispatchCommand(receivedCommand);
+                    }
+                }
+            });
+        } else {
+            for (int i = 0; i < receivedCommands.size(); i++) {
+                dispatchCommand(receivedCommands.get(i));
+            }
+        }
+    }
+
+    /**
+     * Calls the callback attached to the command ID of the received command.
+     *
+     * @param receivedCommand The received command.
+     */
+    private void dispatchCommand(ReceivedCommand receivedCommand) {
+        IMessengerCallbackFunction callback = null;
+
+        if (receivedCommand.getOk()) {
+            synchronized (callbacks) {
+                // receivedCommand contains a valid command Id
+                callback = callbacks.get(receivedCommand.getCmdId());
+                if (callback == null) callback = defaultCallback;
+            }
+        }
+
+        if (callback != null) {
+            callback.handleMessage(receivedCommand);
+        }
+    }
+
+    /**
+     * Parses the complete commands in the framer buffer and processes them.
+     */
+    private void parseLines() {
+        while (framer.nextFrame()) {
+            long lastLineTimeStamp = TimeUtils.millis();
+            ReceivedCommand currentReceivedCommand = parseMessage();
+            if (currentReceivedCommand == null) continue;
+
+            // set time stamp
+            currentReceivedCommand.setTimeStamp(lastLineTimeStamp);
+            if (receiveCommandQueue != null) {
+                receiveCommandQueue.QueueCommand(currentReceivedCommand);
+            } else {
+                processCommand(currentReceivedCommand);
+            }
+        }
+    }
+
+    /**
+     * Sets the counters the sequence numbers and CRC failures of received commands are reported to.
+     *
+     * @param frameIntegrity The sequence numbers and counters, null to not check the commands.
+     */
+    public void setFrameIntegrity(FrameIntegrity frameIntegrity) {
+        synchronized (framer) {
+            framer.setFrameIntegrity(frameIntegrity);
+        }
+    }
+
+    /**
+     * Sets whether received text commands carry a sequence number and a CRC.
+     *
+     * @param frameIntegrityEnabled true to check and remove the sequence number and CRC fields.
+     * @see CommandFramer#setFrameIntegrityEnabled(boolean)
+     */
+    public void setFrameIntegrityEnabled(boolean frameIntegrityEnabled) {
+        synchronized (framer) {
+            framer.setFrameIntegrityEnabled(frameIntegrityEnabled);
+        }
+    }
+
+    /**
+     * Sets the handler that resets the state kept per connection, like the sequence numbers.
+     *
+     * @param connectionFound The handler, called on the thread of the transport.
+     */
+    public void setConnectionFound(IEventHandler connectionFound) {
+        this.connectionFound = connectionFound;
+    }
+
+    /**
+     * Called by the transports when a connection has been made or remade, before their own connection
+     * found event, so commands sent from that event already start a new sequence.
+     */
+    public void connectionFound() {
+        IEventHandler handler = connectionFound;
+        if (handler != null) handler.invokeEvent(this, null);
+    }
+
+    /**
+     * Sets the argument types of a received command. Commands with a schema are decoded into typed
+     * arguments without creating a String per argument.
+     *
+     * @param cmdId  The command ID.
+     * @param schema The argument types, or null to decode the command as text again.
+     */
+    public void setSchema(int cmdId, ArgumentType... schema) {
+        synchronized (framer) {
+            if (schema == null) {
+                schemas.remove(cmdId);
+            } else {
+                schemas.put(cmdId, schema.clone());
+            }
+        }
+    }
+
+    /**
+     * Parse message. Splits the current frame of the framer into its arguments.
+     * Without a schema the command keeps a copy of the frame and the bounds of its fields,
+     * no String is created per field. Text arguments keep their escape characters, see ReceivedCommand.readStringArg.
+     *
+     * @return The received command, or null if the frame was empty or malformed.
+     */
+    private ReceivedCommand parseMessage() {
+        byte[] frameBuffer = framer.getBuffer();
+        if (framer.isBinaryFrame()) {
+            return commandDecoder.decodeFrame(frameBuffer, framer.getFrameOffset(), framer.getFrameLength());
+        }
+        if (!framer.nextField()) return null;
+
+        long cmdId = AsciiDecoder.parseLong(frameBuffer, framer.getFieldOffset(), framer.getFieldLength());
+        ArgumentType[] schema = cmdId >= Integer.MIN_VALUE && cmdId <= Integer.MAX_VALUE ? schemas.get((int) cmdId) : null;
+        if (schema != null) {
+            return commandDecoder.decode(framer, (int) cmdId, schema);
+        }
+
+        final int frameOffset = framer.getFrameOffset();
+        byte[] text = Arrays.copyOfRange(frameBuffer, frameOffset, frameOffset + framer.getFrameLength());
+        int fieldCount = 0;
+        do {
+            if (2 * fieldCount == fieldBounds.length) fieldBounds = Arrays.copyOf(fieldBounds, fieldBounds.length * 2);
+            int fieldStart = framer.getFieldOffset() - frameOffset;
+            fieldBounds[2 * fieldCount] = fieldStart;
+            fieldBounds[2 * fieldCount + 1] = fieldStart + framer.getFieldLength();
+            fieldCount++;
+        } while (framer.nextField());
+        return new ReceivedCommand(text, fieldBounds, fieldCount);
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+/**
+ * Rolling sequence numbers and counters for the frame integrity checks, see Settings.setFrameIntegrity.
+ * Sent commands get the next send sequence number. Received commands are checked against the expected
+ * sequence number, gaps are counted as missing frames and frames with a bad CRC as corrupted frames.
+ * Thread-safe.
+ */
+public class FrameIntegrity {
+    private static final int SEQUENCE_MASK = 0xFF;
+
+    private int sendSequence;
+    private int expectedSequence = -1;  // -1 until the first frame has been received
+    private long receivedFrames;
+    private long missingFrames;
+    private long corruptedFrames;
+
+    /**
+     * Takes the sequence number of the next sent frame.
+     * @return The sequence number, 0-255.
+     */
+    public synchronized int nextSendSequence() {
+        int sequence = sendSequence;
+        sendSequence = (sendSequence + 1) & SEQUENCE_MASK;
+        return sequence;
+    }
+
+    /**
+     * Registers a received frame that passed its CRC check.
+     * @param sequence The sequence number of the frame.
+     */
+    public synchronized void frameReceived(int sequence) {
+        receivedFrames++;
+        sequence &= SEQUENCE_MASK;
+        if (expectedSequence >= 0) {
+            int gap = (sequence - expectedSequence) & SEQUENCE_MASK;
+            // Behind the expected number: a duplicate or a late frame, which stays counted as missing
+            if (gap >= 128) return;
+            missingFrames += gap;
+        }
+        expectedSequence = (sequence + 1) & SEQUENCE_MASK;
+    }
+
+    /**
+     * Registers a received frame that failed its CRC check and was dropped.
+     */
+    public synchronized void frameCorrupted() {
+        corruptedFrames++;
+    }
+
+    public synchronized long getReceivedFrames() {
+        return receivedFrames;
+    }
+
+    /**
+     * Gets the number of frames that were not received, from the gaps in the sequence numbers.
+     * @return The number of missing frames.
+     */
+    public synchronized long getMissingFrames() {
+        return missingFrames;
+    }
+
+    /**
+     * Gets the number of received frames that were dropped because of a bad CRC.
+     * @return The number of corrupted frames.
+     */
+    public synchronized long getCorruptedFrames() {
+        return corruptedFrames;
+    }
+
+    /**
+     * Restarts the sequence numbers and clears the counters, for instance after a reconnect.
+     */
+    public synchronized void reset() {
+        sendSequence = 0;
+        expectedSequence = -1;
+        receivedFrames = 0;
+        missingFrames = 0;
+        corruptedFrames = 0;
+    }
+}
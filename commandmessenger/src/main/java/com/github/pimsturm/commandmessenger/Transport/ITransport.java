@@ -1,6 +1,7 @@
 package com.github.pimsturm.commandmessenger.Transport;
 
 import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.LinkThroughput;
 
 /**
  * Interface for transport layer.
@@ -28,6 +29,24 @@ public interface ITransport {
      */
     void write(String value);
 
+    /**
+     * write bytes to the output stream. The bytes are written or copied before the call returns,
+     * so the caller may reuse the array afterwards. A transport that queues the bytes for a writer
+     * thread only blocks while its queue is full.
+     * @param data The bytes to write
+     * @param offset Offset of the first byte in data
+     * @param length Number of bytes to write
+     */
+    void write(byte[] data, int offset, int length);
+
+    /**
+     * Sets where the transport registers how long its writes to the link take, from which the send queue
+     * estimates the link rate. A transport that queues the bytes for a writer thread measures the writes
+     * of that thread, not the queueing.
+     * @param linkThroughput The link throughput, null to not measure the writes
+     */
+    void setLinkThroughput(LinkThroughput linkThroughput);
+
     void setConnectionFound(IEventHandler eventHandler);
 
     void setProgress(IEventHandler eventHandler);
@@ -0,0 +1,15 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.CmdMessenger;
+
+/**
+ * Creates the transport layer of a CmdMessenger.
+ */
+public interface ITransportFactory {
+    /**
+     * Creates the transport. Received data is handed to the command receiver of the messenger.
+     * @param cmdMessenger The messenger the transport is created for.
+     * @return The transport.
+     */
+    ITransport createTransport(CmdMessenger cmdMessenger);
+}
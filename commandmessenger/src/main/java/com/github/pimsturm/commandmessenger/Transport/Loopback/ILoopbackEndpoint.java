@@ -0,0 +1,16 @@
+package com.github.pimsturm.commandmessenger.Transport.Loopback;
+
+/**
+ * The other end of a loopback transport, for example a simulated Arduino.
+ */
+public interface ILoopbackEndpoint {
+    /**
+     * Called for every write to the transport, on the writing thread.
+     * Replies are sent back with LoopbackTransport.receive.
+     * @param transport The transport that was written to.
+     * @param data The written bytes, only valid during the call.
+     * @param offset Offset of the first written byte in data.
+     * @param length Number of written bytes.
+     */
+    void dataWritten(LoopbackTransport transport, byte[] data, int offset, int length);
+}
@@ -0,0 +1,103 @@
+package com.github.pimsturm.commandmessenger.Transport.Loopback;
+
+import com.github.pimsturm.commandmessenger.CmdMessenger;
+import com.github.pimsturm.commandmessenger.LinkThroughput;
+import com.github.pimsturm.commandmessenger.Transport.ITransport;
+import com.github.pimsturm.commandmessenger.Transport.ITransportFactory;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+import com.github.pimsturm.commandmessenger.Transport.TransportBase;
+
+/**
+ * In-process transport. Written data is handed to an endpoint, which can reply through receive.
+ * Without an endpoint, written data is echoed back to the command receiver.
+ * Used to test and measure the queueing and parsing stack without a device.
+ */
+public class LoopbackTransport extends TransportBase {
+    private volatile ILoopbackEndpoint endpoint;
+    private volatile boolean connected;
+    private volatile LinkThroughput linkThroughput;
+
+    /**
+     * Constructor.
+     * @param receiver Receiver that decodes the received data.
+     */
+    public LoopbackTransport(CommandReceiver receiver) {
+        super(receiver);
+    }
+
+    /**
+     * Creates a factory for loopback transports.
+     * @param endpoint The endpoint of the created transports, null to echo written data.
+     * @return The factory.
+     */
+    public static ITransportFactory factory(final ILoopbackEndpoint endpoint) {
+        return new ITransportFactory() {
+            @Override
+            public ITransport createTransport(CmdMessenger cmdMessenger) {
+                LoopbackTransport transport = new LoopbackTransport(cmdMessenger.getCommandReceiver());
+                transport.setEndpoint(endpoint);
+                return transport;
+            }
+        };
+    }
+
+    /**
+     * Sets the other end of the transport.
+     * @param endpoint The endpoint, null to echo written data.
+     */
+    public void setEndpoint(ILoopbackEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Sets where the writes are registered. They are handed to the endpoint directly,
+     * so the time they take is the time the endpoint takes.
+     * @param linkThroughput The link throughput, null to not measure the writes.
+     */
+    @Override
+    public void setLinkThroughput(LinkThroughput linkThroughput) {
+        this.linkThroughput = linkThroughput;
+    }
+
+    @Override
+    public void startConnectionManager() {
+        connected = true;
+        log(1, "Loopback connected");
+        onConnectionFound();
+    }
+
+    @Override
+    public void stopConnectionManager() {
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        if (!connected) return;
+        long start = System.nanoTime();
+        ILoopbackEndpoint target = endpoint;
+        if (target != null) {
+            target.dataWritten(this, data, offset, length);
+        } else {
+            receive(data, offset, length);
+        }
+        LinkThroughput throughput = linkThroughput;
+        if (throughput != null) throughput.recordWrite(length, start, System.nanoTime());
+    }
+
+    /**
+     * Sends bytes from the endpoint to the command receiver, as if they were read from a device.
+     * @param data The bytes, they are copied.
+     * @param offset Offset of the first byte in data.
+     * @param length Number of bytes.
+     */
+    public void receive(byte[] data, int offset, int length) {
+        if (!connected) return;
+        dataReceived(data, offset, length);
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+/**
+ * A buffer of received bytes from a ReceiveBufferPool.
+ * A buffer has one owner at a time: the reader that fills it hands it over to the decoder,
+ * and whoever holds it last returns it to the pool with release. It must not be used after that.
+ */
+public final class ReceiveBuffer {
+    private final ReceiveBufferPool pool;
+    private final byte[] data;
+    private int length;
+    boolean pooled;     // Guarded by the pool
+
+    ReceiveBuffer(ReceiveBufferPool pool, int size) {
+        this.pool = pool;
+        data = new byte[size];
+    }
+
+    /**
+     * Gets the array the bytes are read into.
+     * @return The array, its length is the capacity of the buffer.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Gets the number of received bytes, from the start of the array.
+     * @return The number of bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the number of received bytes.
+     * @param length The number of bytes, from 0 to the capacity.
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > data.length) throw new IllegalArgumentException("length");
+        this.length = length;
+    }
+
+    /**
+     * Returns the buffer to its pool. Ends the ownership of the caller.
+     */
+    public void release() {
+        pool.release(this);
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of the buffers that received bytes are read into, so reading at line rate creates no garbage.
+ * Buffers are created on demand when the pool is empty. Released buffers are kept up to the maximum,
+ * the ones beyond it are left to the garbage collector.
+ * Thread-safe.
+ */
+public class ReceiveBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_MAX_POOLED = 16;
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ReceiveBuffer> buffers = new ArrayDeque<>();
+    private long created;
+
+    /**
+     * Creates a pool of buffers of DEFAULT_BUFFER_SIZE bytes.
+     */
+    public ReceiveBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * Constructor.
+     * @param bufferSize Size of the buffers.
+     * @param maxPooled Maximum number of released buffers that are kept.
+     */
+    public ReceiveBufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize");
+        if (maxPooled < 0) throw new IllegalArgumentException("maxPooled");
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Gets the size of the buffers.
+     * @return The size in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Takes a buffer from the pool, or creates one when the pool is empty.
+     * The caller owns the buffer until it releases it or hands it over.
+     * @return An empty buffer.
+     */
+    public synchronized ReceiveBuffer obtain() {
+        ReceiveBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new ReceiveBuffer(this, bufferSize);
+            created++;
+        }
+        buffer.pooled = false;
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * @param buffer The buffer, it must not be used after the call.
+     */
+    synchronized void release(ReceiveBuffer buffer) {
+        if (buffer.pooled) throw new IllegalStateException("The buffer has already been released.");
+        buffer.pooled = true;
+        if (buffers.size() < maxPooled) buffers.push(buffer);
+    }
+
+    /**
+     * Gets the number of buffers the pool has created, a count that keeps growing means
+     * buffers are not released.
+     * @return The number of buffers.
+     */
+    public synchronized long getCreatedBuffers() {
+        return created;
+    }
+
+    /**
+     * Gets the number of released buffers that are waiting to be reused.
+     * @return The number of buffers.
+     */
+    public synchronized int getPooledBuffers() {
+        return buffers.size();
+    }
+}
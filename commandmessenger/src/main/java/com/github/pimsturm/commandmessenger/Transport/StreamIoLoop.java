@@ -0,0 +1,418 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.LinkThroughput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * I/O loop of a transport that carries the commands over a pair of blocking streams, like a Bluetooth or TCP socket.
+ * <p>
+ * The loop owns one reader and one writer thread, which live as long as the loop: reconnects hand a new
+ * connection to the same threads, so the number of threads stays constant however often the link drops.
+ * The reader thread opens the connection, then reads into buffers from a ReceiveBufferPool and hands each
+ * filled buffer over to the listener without copying. Writes are copied into a bounded queue and return
+ * right away; the writer thread takes everything that has been queued in one go and writes it to the stream
+ * with a single call. A write only blocks while the queue is full, that is while the link does not keep up.
+ * The bytes of one write are never mixed with those of writes from other threads.
+ * <p>
+ * As writes return before their bytes are sent, the time they take says nothing about the link. The writer
+ * thread measures its writes to the stream instead and registers them in the link throughput, when set.
+ * <p>
+ * Bytes that were queued for a connection are discarded when the connection is closed or replaced,
+ * so they never go out over the next one. Thread-safe.
+ */
+public class StreamIoLoop {
+    public static final int DEFAULT_WRITE_QUEUE_SIZE = 256;
+
+    /**
+     * A connection the loop reads from and writes to.
+     */
+    public interface Connection {
+        /**
+         * Opens the connection. Called on the reader thread, may block until connected.
+         * @throws IOException when the connection could not be made.
+         */
+        void open() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Closes the connection. Called from any thread, also while open blocks, which must then fail.
+         */
+        void close();
+    }
+
+    /**
+     * Receives the events of the loop. All methods are called on the reader thread,
+     * and only for the current connection. When onConnected or onDataReceived throws,
+     * the connection is closed and the exception is reported through onDisconnected.
+     */
+    public interface Listener {
+        void onConnected(Connection connection);
+
+        void onConnectFailed(Connection connection, IOException e);
+
+        void onDisconnected(Connection connection, IOException e);
+
+        /**
+         * Hands over received bytes.
+         * @param buffer The buffer holding the bytes, owned by the listener, which must release it.
+         */
+        void onDataReceived(ReceiveBuffer buffer);
+    }
+
+    private final String name;
+    private final Listener listener;
+    private final ReceiveBufferPool bufferPool;
+    private final Object lock = new Object();
+    private final byte[] writeQueue;    // Ring buffer of the bytes waiting for the writer thread
+    private int writeHead;
+    private int writeCount;
+    private boolean writingInParts;     // A write longer than the queue is going through it, other writes wait
+    private Connection pending;         // Connection waiting to be opened by the reader thread
+    private Connection opening;         // Connection being opened
+    private Connection connection;      // Open connection
+    private int generation;             // Changes with every connection, so writes know theirs was closed
+    private volatile LinkThroughput linkThroughput;     // Registers the writes to the stream, may be null
+    private boolean running;
+    private Thread readerThread;
+    private Thread writerThread;
+
+    /**
+     * Constructor.
+     * @param name Name of the loop, the threads are named after it.
+     * @param listener Receives the events and the received data.
+     * @param bufferPool Pool of the buffers that are read into.
+     */
+    public StreamIoLoop(String name, Listener listener, ReceiveBufferPool bufferPool) {
+        this(name, listener, bufferPool, DEFAULT_WRITE_QUEUE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param name Name of the loop, the threads are named after it.
+     * @param listener Receives the events and the received data.
+     * @param bufferPool Pool of the buffers that are read into.
+     * @param writeQueueSize Number of bytes that can be queued before a write blocks.
+     */
+    public StreamIoLoop(String name, Listener listener, ReceiveBufferPool bufferPool, int writeQueueSize) {
+        if (name == null) throw new NullPointerException("name");
+        if (listener == null) throw new NullPointerException("listener");
+        if (bufferPool == null) throw new NullPointerException("bufferPool");
+        if (writeQueueSize <= 0) throw new IllegalArgumentException("writeQueueSize");
+        this.name = name;
+        this.listener = listener;
+        this.bufferPool = bufferPool;
+        writeQueue = new byte[writeQueueSize];
+    }
+
+    /**
+     * Closes the current connection and opens the given one on the reader thread.
+     * Starts the threads if they are not running.
+     * @param newConnection The connection to open.
+     */
+    public void connect(Connection newConnection) {
+        if (newConnection == null) throw new NullPointerException("newConnection");
+        synchronized (lock) {
+            closeConnections();
+            pending = newConnection;
+            if (!running) startThreads();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the current connection, the threads keep running for the next one.
+     */
+    public void disconnect() {
+        synchronized (lock) {
+            closeConnections();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the current connection and ends the threads.
+     */
+    public void stop() {
+        Thread reader;
+        Thread writer;
+        synchronized (lock) {
+            closeConnections();
+            running = false;
+            reader = readerThread;
+            writer = writerThread;
+            readerThread = null;
+            writerThread = null;
+            lock.notifyAll();
+        }
+        join(reader);
+        join(writer);
+    }
+
+    /**
+     * Sets where the writer thread registers how long its writes to the stream take.
+     * @param linkThroughput The link throughput, null to not measure the writes.
+     */
+    public void setLinkThroughput(LinkThroughput linkThroughput) {
+        this.linkThroughput = linkThroughput;
+    }
+
+    /**
+     * Indicates if a connection is open.
+     * @return true if connected.
+     */
+    public boolean isConnected() {
+        synchronized (lock) {
+            return connection != null;
+        }
+    }
+
+    /**
+     * Indicates if a connection is waiting to be opened or being opened.
+     * @return true if connecting.
+     */
+    public boolean isConnecting() {
+        synchronized (lock) {
+            return pending != null || opening != null;
+        }
+    }
+
+    /**
+     * Queues bytes for the writer thread. The bytes are copied, so the caller may reuse the array
+     * after the call. Blocks while the queue is full. Without an open connection the bytes are discarded,
+     * as are the bytes that are still queued when the connection closes.
+     * <p>
+     * Bytes that fit in the queue are queued in one piece once there is room for all of them. When the
+     * thread is interrupted while it waits for that room, nothing is queued. Longer writes go through the
+     * queue in parts, other writes wait until they are done, and an interrupt is only passed on after the
+     * last part, so a command is never cut off halfway.
+     * @param data The bytes to write.
+     * @param offset Offset of the first byte in data.
+     * @param length Number of bytes to write.
+     */
+    public void write(byte[] data, int offset, int length) {
+        boolean interrupted = false;
+        synchronized (lock) {
+            if (connection == null) return;
+            final int writeGeneration = generation;
+            final int firstPart = Math.min(length, writeQueue.length);
+            while (writingInParts || writeQueue.length - writeCount < firstPart) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (generation != writeGeneration) return;
+            }
+            writingInParts = length > writeQueue.length;
+            try {
+                while (length > 0) {
+                    while (writeCount == writeQueue.length) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                        if (generation != writeGeneration) return;
+                    }
+                    int tail = (writeHead + writeCount) % writeQueue.length;
+                    int count = Math.min(length, Math.min(writeQueue.length - writeCount, writeQueue.length - tail));
+                    System.arraycopy(data, offset, writeQueue, tail, count);
+                    writeCount += count;
+                    offset += count;
+                    length -= count;
+                    lock.notifyAll();
+                }
+            } finally {
+                if (writingInParts) {
+                    writingInParts = false;
+                    lock.notifyAll();
+                }
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes waiting for the writer thread.
+     * @return The number of bytes.
+     */
+    public int getQueuedBytes() {
+        synchronized (lock) {
+            return writeCount;
+        }
+    }
+
+    // Must be called while holding the lock
+    private void closeConnections() {
+        if (opening != null) opening.close();
+        if (connection != null) connection.close();
+        pending = null;
+        opening = null;
+        connection = null;
+        writeHead = 0;
+        writeCount = 0;
+        generation++;
+    }
+
+    // Must be called while holding the lock
+    private void startThreads() {
+        running = true;
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, name + "Reader");
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, name + "Writer");
+        readerThread.setDaemon(true);
+        writerThread.setDaemon(true);
+        readerThread.start();
+        writerThread.start();
+    }
+
+    private void join(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Opens the pending connections and reads from them until they close.
+     */
+    private void readLoop() {
+        while (true) {
+            Connection current;
+            synchronized (lock) {
+                while (running && pending == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) return;
+                current = pending;
+                pending = null;
+                opening = current;
+            }
+
+            InputStream inStream;
+            try {
+                current.open();
+                inStream = current.getInputStream();
+            } catch (IOException e) {
+                current.close();
+                synchronized (lock) {
+                    if (opening != current) continue;
+                    opening = null;
+                }
+                listener.onConnectFailed(current, e);
+                continue;
+            }
+
+            synchronized (lock) {
+                if (opening != current) {
+                    // Closed or replaced while it was opening
+                    current.close();
+                    continue;
+                }
+                opening = null;
+                connection = current;
+                writeHead = 0;
+                writeCount = 0;
+                generation++;
+                lock.notifyAll();
+            }
+            IOException cause;
+            ReceiveBuffer buffer = bufferPool.obtain();
+            try {
+                listener.onConnected(current);
+                while (true) {
+                    int bytes = inStream.read(buffer.getData());
+                    if (bytes < 0) throw new IOException("End of stream");
+                    if (bytes == 0) continue;
+                    buffer.setLength(bytes);
+                    // The listener owns the buffer now, the next read goes into another one
+                    ReceiveBuffer received = buffer;
+                    buffer = null;
+                    listener.onDataReceived(received);
+                    buffer = bufferPool.obtain();
+                }
+            } catch (IOException e) {
+                cause = e;
+            } catch (RuntimeException e) {
+                // The reader thread lives on for the next connection, the failure is reported as the cause
+                cause = new IOException("The listener failed", e);
+            } finally {
+                if (buffer != null) buffer.release();
+            }
+
+            current.close();
+            synchronized (lock) {
+                if (connection != current) continue;
+                connection = null;
+                writeHead = 0;
+                writeCount = 0;
+                generation++;
+                lock.notifyAll();
+            }
+            listener.onDisconnected(current, cause);
+        }
+    }
+
+    /**
+     * Writes the queued bytes, all that are queued at once.
+     */
+    private void writeLoop() {
+        byte[] flushBuffer = new byte[writeQueue.length];
+        while (true) {
+            Connection target;
+            int length;
+            synchronized (lock) {
+                while (running && (writeCount == 0 || connection == null)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) return;
+                target = connection;
+                length = writeCount;
+                int first = Math.min(writeCount, writeQueue.length - writeHead);
+                System.arraycopy(writeQueue, writeHead, flushBuffer, 0, first);
+                System.arraycopy(writeQueue, 0, flushBuffer, first, length - first);
+                writeHead = 0;
+                writeCount = 0;
+                // Room for the waiting writes
+                lock.notifyAll();
+            }
+            try {
+                OutputStream outStream = target.getOutputStream();
+                long start = System.nanoTime();
+                outStream.write(flushBuffer, 0, length);
+                outStream.flush();
+                LinkThroughput throughput = linkThroughput;
+                if (throughput != null) throughput.recordWrite(length, start, System.nanoTime());
+            } catch (IOException e) {
+                // The reader thread notices the closed connection and reports it
+                target.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.pimsturm.commandmessenger.Transport.Tcp;
+
+import com.github.pimsturm.commandmessenger.CmdMessenger;
+import com.github.pimsturm.commandmessenger.LinkThroughput;
+import com.github.pimsturm.commandmessenger.Transport.ITransport;
+import com.github.pimsturm.commandmessenger.Transport.ITransportFactory;
+import com.github.pimsturm.commandmessenger.Transport.ReceiveBuffer;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+import com.github.pimsturm.commandmessenger.Transport.StreamIoLoop;
+import com.github.pimsturm.commandmessenger.Transport.TransportBase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over a TCP socket, for example to a simulated Arduino or a serial-to-network bridge.
+ * The socket is connected and served by a StreamIoLoop.
+ */
+public class TcpTransport extends TransportBase {
+    private static final int CONNECT_TIMEOUT = 5000;    // ms
+
+    private final String host;
+    private final int port;
+    private final StreamIoLoop ioLoop;
+
+    /**
+     * Constructor.
+     * @param receiver Receiver that decodes the received data.
+     * @param host Host name or address.
+     * @param port Port number.
+     */
+    public TcpTransport(CommandReceiver receiver, String host, int port) {
+        super(receiver);
+        if (host == null) throw new NullPointerException("host");
+        this.host = host;
+        this.port = port;
+        ioLoop = new StreamIoLoop("TcpTransport", new IoListener(), receiver.getBufferPool());
+    }
+
+    /**
+     * Creates a factory for TCP transports.
+     * @param host Host name or address.
+     * @param port Port number.
+     * @return The factory.
+     */
+    public static ITransportFactory factory(final String host, final int port) {
+        return new ITransportFactory() {
+            @Override
+            public ITransport createTransport(CmdMessenger cmdMessenger) {
+                return new TcpTransport(cmdMessenger.getCommandReceiver(), host, port);
+            }
+        };
+    }
+
+    /**
+     * Connects in the background, the connection found event is raised when connected.
+     */
+    @Override
+    public synchronized void startConnectionManager() {
+        if (ioLoop.isConnected() || ioLoop.isConnecting()) return;
+        ioLoop.connect(new TcpConnection());
+    }
+
+    @Override
+    public void stopConnectionManager() {
+        ioLoop.stop();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return ioLoop.isConnected();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        ioLoop.write(data, offset, length);
+    }
+
+    /**
+     * Sets where the writes to the socket are registered, they are measured on the writer thread of the loop.
+     * @param linkThroughput The link throughput, null to not measure the writes.
+     */
+    @Override
+    public void setLinkThroughput(LinkThroughput linkThroughput) {
+        ioLoop.setLinkThroughput(linkThroughput);
+    }
+
+    /**
+     * A TCP socket to the host and port of the transport.
+     */
+    private class TcpConnection implements StreamIoLoop.Connection {
+        private final Socket socket = new Socket();
+
+        @Override
+        public void open() throws IOException {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log(1, "close() of socket failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private class IoListener implements StreamIoLoop.Listener {
+        @Override
+        public void onConnected(StreamIoLoop.Connection connection) {
+            log(1, "Connected to " + host + ":" + port);
+            onConnectionFound();
+        }
+
+        @Override
+        public void onConnectFailed(StreamIoLoop.Connection connection, IOException e) {
+            log(1, "Unable to connect: " + e.getMessage());
+        }
+
+        @Override
+        public void onDisconnected(StreamIoLoop.Connection connection, IOException e) {
+            log(1, "Disconnected: " + e.getMessage());
+        }
+
+        @Override
+        public void onDataReceived(ReceiveBuffer buffer) {
+            dataReceived(buffer);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.ConnectionManagerProgressEventArgs;
+import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import java.nio.charset.Charset;
+
+/**
+ * Base class for transports that carry the commands as a byte stream.
+ * Handles the connection events and the encoding of written strings.
+ * Received data goes to a CommandReceiver instead of an android Handler, so the transports built on it
+ * do not use android classes themselves and can be tested on a plain JVM.
+ */
+public abstract class TransportBase implements ITransport {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    protected final CommandReceiver receiver;
+    protected final Settings settings;
+    private IEventHandler connectionFound;
+    private IEventHandler progress; //ConnectionManagerProgressEventArgs
+
+    /**
+     * Constructor.
+     * @param receiver Receiver that decodes the received data.
+     */
+    protected TransportBase(CommandReceiver receiver) {
+        if (receiver == null) throw new NullPointerException("receiver");
+        this.receiver = receiver;
+        settings = Settings.getInstance();
+    }
+
+    @Override
+    public void setConnectionFound(IEventHandler connectionFound) {
+        this.connectionFound = connectionFound;
+    }
+
+    @Override
+    public void setProgress(IEventHandler progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Writes a string to the output stream, encoded as ISO-8859-1.
+     * @param value The string to write
+     */
+    @Override
+    public void write(String value) {
+        if (settings.getPrintLfCr()) {
+            value += "\r\n";
+        }
+        byte[] bytes = value.getBytes(ISO_8859_1);
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Hands a received buffer to the command receiver, which takes ownership of it.
+     * @param buffer The received bytes, from the buffer pool of the command receiver.
+     */
+    protected void dataReceived(ReceiveBuffer buffer) {
+        receiver.dataReceived(buffer);
+    }
+
+    /**
+     * Hands received bytes to the command receiver, the bytes are copied.
+     * @param data The received bytes.
+     * @param offset Offset of the first byte in data.
+     * @param length Number of received bytes.
+     */
+    protected void dataReceived(byte[] data, int offset, int length) {
+        receiver.dataReceived(data, offset, length);
+    }
+
+    protected void onConnectionFound() {
+        receiver.connectionFound();
+        if (connectionFound != null) connectionFound.invokeEvent(this, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void log(int level, String logMessage) {
+        if (progress == null) return;
+        ConnectionManagerProgressEventArgs args = new ConnectionManagerProgressEventArgs();
+        args.setLevel(level);
+        args.setDescription(logMessage);
+        progress.invokeEvent(this, args);
+    }
+}
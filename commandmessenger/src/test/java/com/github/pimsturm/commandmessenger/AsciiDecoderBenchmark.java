@@ -0,0 +1,71 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Microbenchmark of AsciiDecoder against Integer.parseInt on substrings, the way the text arguments
+ * used to be parsed. Not a unit test, timings on a shared build machine are too noisy to assert on.
+ * Run the main method and compare the printed times.
+ */
+public class AsciiDecoderBenchmark {
+    static final String LINE = "3,12345,-678,90,2147483647,-1,0,4242;";
+    static final int FIELDS = 7;
+    private static final int ROUNDS = 200000;
+
+    public static void main(String[] args)
+    {
+        int[] starts = new int[FIELDS];
+        int[] ends = new int[FIELDS];
+        findFields(LINE, starts, ends);
+
+        long sink = 0;
+        // Warm up
+        for (int r = 0; r < ROUNDS; r++)
+        {
+            sink += parseIntRound(LINE, starts, ends) - decoderRound(LINE, starts, ends);
+        }
+
+        long t = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) sink += parseIntRound(LINE, starts, ends);
+        long parseIntNanos = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) sink -= decoderRound(LINE, starts, ends);
+        long decoderNanos = System.nanoTime() - t;
+
+        if (sink != 0) throw new IllegalStateException("Both parsers should give the same result.");
+        System.out.println("Integer.parseInt on substrings: " + parseIntNanos / (ROUNDS * (long) FIELDS) + " ns per field, "
+                + "AsciiDecoder: " + decoderNanos / (ROUNDS * (long) FIELDS) + " ns per field");
+    }
+
+    /**
+     * Finds the argument fields of a command line, after the command ID.
+     */
+    static void findFields(String line, int[] starts, int[] ends)
+    {
+        int field = 0;
+        int start = line.indexOf(',') + 1;
+        for (int i = start; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (c == ',' || c == ';')
+            {
+                starts[field] = start;
+                ends[field++] = i;
+                start = i + 1;
+            }
+        }
+    }
+
+    static long parseIntRound(String line, int[] starts, int[] ends)
+    {
+        long sum = 0;
+        for (int i = 0; i < starts.length; i++) sum += Integer.parseInt(line.substring(starts[i], ends[i]));
+        return sum;
+    }
+
+    static long decoderRound(String line, int[] starts, int[] ends)
+    {
+        long sum = 0;
+        for (int i = 0; i < starts.length; i++) sum += AsciiDecoder.parseLong(line, starts[i], ends[i]);
+        return sum;
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsciiDecoderTest {
+    @Test
+    public void parsesLikeLongParseLong()
+    {
+        String[] values = {"0", "7", "-7", "+42", "007", "32767", "-32768", "2147483647", "-2147483648",
+                "4294967295", "9223372036854775807", "-9223372036854775807"};
+        for (String value : values)
+        {
+            Assert.assertEquals(value, Long.parseLong(value), AsciiDecoder.parseLong(value));
+            byte[] bytes = ("," + value + ";").getBytes();
+            Assert.assertEquals(value, Long.parseLong(value), AsciiDecoder.parseLong(bytes, 1, value.length()));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedAndOverflowingText()
+    {
+        String[] values = {"", "-", "+", "1a", " 1", "1 ", "1.5", "--1", "9223372036854775808",
+                "-9223372036854775809", "99999999999999999999"};
+        for (String value : values)
+        {
+            Assert.assertEquals(value, AsciiDecoder.INVALID, AsciiDecoder.parseLong(value));
+        }
+        Assert.assertEquals(AsciiDecoder.INVALID, AsciiDecoder.parseLong(null));
+        Assert.assertEquals(AsciiDecoder.INVALID, AsciiDecoder.parseInRange("32768", Short.MIN_VALUE, Short.MAX_VALUE));
+        Assert.assertEquals(-32768, AsciiDecoder.parseInRange("-32768", Short.MIN_VALUE, Short.MAX_VALUE));
+    }
+
+    @Test
+    public void receivedCommandGetsItsCommandId()
+    {
+        ReceivedCommand command = new ReceivedCommand(new String[] {"12", "-300", "70000", "abc"});
+        Assert.assertEquals(12, command.getCmdId());
+        Assert.assertEquals(-300, command.readInt16Arg());
+        Assert.assertEquals(70000, command.readInt32Arg());
+        Assert.assertEquals(0, command.readInt32Arg());
+        Assert.assertEquals("abc", command.readStringArg());
+
+        Assert.assertEquals(-1, new ReceivedCommand(new String[] {"x1"}).getCmdId());
+    }
+
+    @Test
+    public void unsignedReadersRejectValuesOutOfRange()
+    {
+        ReceivedCommand command = new ReceivedCommand(new String[] {"1", "65536", "-1", "4294967296", "-1"});
+        Assert.assertEquals(0, command.readUInt16Arg());
+        Assert.assertEquals(65536, command.readInt32Arg());
+        Assert.assertEquals(0, command.readUInt16Arg());
+        Assert.assertEquals(-1, command.readInt16Arg());
+        Assert.assertEquals(0, command.readUInt32Arg());
+        Assert.assertEquals("4294967296", command.readStringArg());
+        Assert.assertEquals(0, command.readUInt32Arg());
+    }
+
+    @Test
+    public void agreesWithParseIntOnSubstrings()
+    {
+        String line = AsciiDecoderBenchmark.LINE;
+        int[] starts = new int[AsciiDecoderBenchmark.FIELDS];
+        int[] ends = new int[AsciiDecoderBenchmark.FIELDS];
+        AsciiDecoderBenchmark.findFields(line, starts, ends);
+        Assert.assertEquals(AsciiDecoderBenchmark.parseIntRound(line, starts, ends),
+                AsciiDecoderBenchmark.decoderRound(line, starts, ends));
+    }
+}
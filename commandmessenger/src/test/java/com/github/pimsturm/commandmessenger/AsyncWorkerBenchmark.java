@@ -0,0 +1,43 @@
+package com.github.pimsturm.commandmessenger;
+
+/**
+ * Latency benchmark of the suspend/resume handshake that every acknowledged send performs on the
+ * receive queue. With the old sleep-polling this cost up to 2 x 100 ms per command. Not a unit test,
+ * timings on a shared build machine are too noisy to assert on. Run the main method and check that a
+ * round trip takes a few milliseconds at most.
+ */
+public class AsyncWorkerBenchmark {
+    private static final int WARM_UP_ROUND_TRIPS = 100;
+    private static final int ROUND_TRIPS = 1000;
+
+    public static void main(String[] args)
+    {
+        AsyncWorker worker = new AsyncWorker(new IAsyncWorkerJob()
+        {
+            @Override
+            public boolean execute()
+            {
+                return false;
+            }
+        }, "benchmark");
+        worker.start();
+
+        // Warm up
+        for (int i = 0; i < WARM_UP_ROUND_TRIPS; i++)
+        {
+            worker.suspend();
+            worker.resume();
+        }
+
+        long t = System.nanoTime();
+        for (int i = 0; i < ROUND_TRIPS; i++)
+        {
+            worker.suspend();
+            worker.resume();
+        }
+        double averageMillis = (System.nanoTime() - t) / 1e6 / ROUND_TRIPS;
+        worker.stop();
+
+        System.out.println("AsyncWorker suspend/resume round trip: " + averageMillis + " ms");
+    }
+}
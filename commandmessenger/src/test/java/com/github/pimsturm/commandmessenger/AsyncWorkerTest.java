@@ -0,0 +1,107 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncWorkerTest {
+    private static class CountingJob implements IAsyncWorkerJob {
+        final AtomicInteger executions = new AtomicInteger();
+
+        @Override
+        public boolean execute()
+        {
+            executions.incrementAndGet();
+            return false;
+        }
+    }
+
+    @Test
+    public void suspendWaitsForWorkerAndResumeRestartsIt() throws InterruptedException
+    {
+        CountingJob job = new CountingJob();
+        AsyncWorker worker = new AsyncWorker(job, "test");
+        worker.start();
+
+        worker.suspend();
+        Assert.assertTrue(worker.isSuspended());
+        int executions = job.executions.get();
+        worker.signal();
+        Thread.sleep(20);
+        Assert.assertEquals("A suspended worker should not execute its job", executions, job.executions.get());
+
+        worker.resume();
+        Assert.assertTrue(worker.isRunning());
+        worker.signal();
+        long t = System.currentTimeMillis();
+        while (job.executions.get() == executions && System.currentTimeMillis() - t < 1000) Thread.sleep(1);
+        Assert.assertTrue("A resumed worker should execute its job", job.executions.get() > executions);
+
+        worker.stop();
+        Assert.assertFalse(worker.isRunning());
+    }
+
+    @Test
+    public void suspendWaitsForTheRunningJobWithoutHoldingTheWorker() throws InterruptedException
+    {
+        final CountDownLatch jobStarted = new CountDownLatch(1);
+        final CountDownLatch releaseJob = new CountDownLatch(1);
+        final AsyncWorker worker = new AsyncWorker(new IAsyncWorkerJob()
+        {
+            @Override
+            public boolean execute()
+            {
+                jobStarted.countDown();
+                try
+                {
+                    releaseJob.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        }, "test");
+        worker.start();
+        worker.signal();
+        Assert.assertTrue(jobStarted.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch suspended = new CountDownLatch(1);
+        Thread suspender = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                worker.suspend();
+                suspended.countDown();
+            }
+        });
+        suspender.start();
+        Assert.assertFalse("Suspend should wait for the running job", suspended.await(50, TimeUnit.MILLISECONDS));
+
+        // The waiting suspend must not keep the monitor of the worker, which start and stop take
+        final CountDownLatch monitorTaken = new CountDownLatch(1);
+        Thread other = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (worker)
+                {
+                    monitorTaken.countDown();
+                }
+            }
+        });
+        other.start();
+        Assert.assertTrue(monitorTaken.await(5, TimeUnit.SECONDS));
+
+        releaseJob.countDown();
+        Assert.assertTrue(suspended.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(worker.isSuspended());
+        worker.stop();
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.pimsturm.commandmessenger;
+
+import com.github.pimsturm.commandmessenger.Transport.CommandEncoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryConverterTest {
+    @Test
+    public void putsAndGetsLittleEndian()
+    {
+        byte[] buffer = new byte[32];
+        int offset = BitConverter.putInt16(buffer, 1, (short) 0x1234);
+        offset = BitConverter.putInt32(buffer, offset, -2);
+        offset = BitConverter.putFloat(buffer, offset, 1.5f);
+        offset = BitConverter.putDouble(buffer, offset, -0.25);
+        Assert.assertEquals(1 + 2 + 4 + 4 + 8, offset);
+
+        Assert.assertEquals(0x34, buffer[1]);
+        Assert.assertEquals(0x12, buffer[2]);
+        Assert.assertEquals(0x1234, BitConverter.getInt16(buffer, 1));
+        Assert.assertEquals(-2, BitConverter.getInt32(buffer, 3));
+        Assert.assertEquals(0xFFFFFFFEL, BitConverter.getUInt32(buffer, 3));
+        Assert.assertEquals(1.5f, BitConverter.getFloat(buffer, 7), 0);
+        Assert.assertEquals(-0.25, BitConverter.getDouble(buffer, 11), 0);
+
+        Assert.assertEquals(0x1234, BitConverter.toInt16(BitConverter.getBytes((short) 0x1234), 0));
+        Assert.assertEquals(123456789, BitConverter.toInt32(BitConverter.getBytes(123456789), 0));
+    }
+
+    @Test
+    public void escapesBinaryValuesInline()
+    {
+        // 0x2C2F is a field separator and an escape character
+        String escaped = BinaryConverter.toString((short) 0x2C2F);
+        Assert.assertEquals("///,", escaped);
+        Assert.assertEquals(Short.valueOf((short) 0x2C2F), BinaryConverter.toInt16(escaped));
+
+        float[] floats = {0f, -1.25f, 3.4e38f, Float.intBitsToFloat(0x3B2C2F00)};
+        for (float value : floats)
+        {
+            Assert.assertEquals(value, BinaryConverter.toFloat(BinaryConverter.toString(value)), 0);
+        }
+        Assert.assertEquals(Double.valueOf(Math.PI), BinaryConverter.toDouble(BinaryConverter.toString(Math.PI)));
+        Assert.assertNull("A value with the wrong size should not convert", BinaryConverter.toInt32("ab"));
+    }
+
+    @Test
+    public void binaryArgumentsRoundTrip()
+    {
+        SendCommand sendCommand = new SendCommand(5);
+        sendCommand.addBinArgument((short) -300);
+        sendCommand.addBinArgument(0x2C3B2F00);
+        sendCommand.addBinArgument(2.5f);
+        sendCommand.addBinArgument(true);
+
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.encode(sendCommand);
+        String encoded = new String(encoder.getBuffer(), 0, encoder.length(), java.nio.charset.Charset.forName("ISO-8859-1"));
+        Assert.assertEquals("The encoder should write the same bytes as the argument strings",
+                sendCommand.commandString(), encoded);
+
+        String[] arguments = sendCommand.getArguments();
+        String[] raw = new String[arguments.length + 1];
+        raw[0] = "5";
+        System.arraycopy(arguments, 0, raw, 1, arguments.length);
+        ReceivedCommand receivedCommand = new ReceivedCommand(raw);
+        Assert.assertEquals(-300, receivedCommand.readBinInt16Arg());
+        Assert.assertEquals(0x2C3B2F00, receivedCommand.readBinInt32Arg());
+        Assert.assertEquals(2.5f, receivedCommand.readBinFloatArg(), 0);
+        Assert.assertTrue(receivedCommand.readBinBoolArg());
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CommandFutureTest {
+    private static ReceivedCommand command(int cmdId)
+    {
+        ReceivedCommand command = new ReceivedCommand();
+        command.setCmdId(cmdId);
+        return command;
+    }
+
+    @Test
+    public void listenersAreCalledOnce() throws Exception
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        ICommandFutureListener listener = new ICommandFutureListener() {
+            @Override
+            public void onComplete(CommandFuture future) {
+                calls.incrementAndGet();
+            }
+        };
+        CommandFuture future = new CommandFuture(null);
+        future.addListener(listener);
+        ReceivedCommand ack = command(1);
+
+        Assert.assertTrue(future.complete(ack));
+        Assert.assertFalse(future.timeOut());
+        future.addListener(listener);
+
+        Assert.assertEquals(2, calls.get());
+        Assert.assertSame(ack, future.get(0, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void thenSendsNextCommandAfterAcknowledge() throws Exception
+    {
+        final CommandFuture first = new CommandFuture(null);
+        final CommandFuture second = new CommandFuture(null);
+        CommandFuture chained = first.then(new ICommandContinuation() {
+            @Override
+            public CommandFuture continueWith(ReceivedCommand receivedCommand) {
+                Assert.assertEquals(1, receivedCommand.getCmdId());
+                return second;
+            }
+        });
+
+        first.complete(command(1));
+        Assert.assertFalse(chained.isDone());
+        second.complete(command(2));
+        Assert.assertEquals(2, chained.get().getCmdId());
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelReachesPendingStep() throws Exception
+    {
+        final AtomicInteger cancelled = new AtomicInteger();
+        CommandFuture first = new CommandFuture(null);
+        first.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        });
+        CommandFuture chained = first.then(new ICommandContinuation() {
+            @Override
+            public CommandFuture continueWith(ReceivedCommand receivedCommand) {
+                throw new AssertionError("A cancelled request should not continue");
+            }
+        });
+
+        Assert.assertTrue(chained.cancel(false));
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertEquals(1, cancelled.get());
+        chained.get();
+    }
+
+    @Test
+    public void completionCancelsTheTimeoutTask()
+    {
+        FutureTask<Void> acknowledged = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {}
+        }, null);
+        CommandFuture future = new CommandFuture(null);
+        future.setTimeoutTask(acknowledged);
+        future.complete(command(1));
+        Assert.assertTrue(acknowledged.isCancelled());
+
+        FutureTask<Void> cancelled = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {}
+        }, null);
+        future = new CommandFuture(null);
+        future.setTimeoutTask(cancelled);
+        future.cancel(false);
+        Assert.assertTrue(cancelled.isCancelled());
+
+        // Set after the completion
+        FutureTask<Void> late = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {}
+        }, null);
+        future.setTimeoutTask(late);
+        Assert.assertTrue(late.isCancelled());
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class EscapingTest {
+    @Test
+    public void escapesSeparatorsAndRoundTrips()
+    {
+        String input = "a,b;c/d\0e";
+        String escaped = Escaping.escape(input);
+        Assert.assertEquals("a/,b/;c//d/\0e", escaped);
+        Assert.assertEquals(input, Escaping.unescape(escaped));
+
+        // Nothing to escape or unescape returns the input itself
+        String plain = "plain text";
+        Assert.assertSame(plain, Escaping.escape(plain));
+        Assert.assertSame(plain, Escaping.unescape(plain));
+    }
+
+    @Test
+    public void escapesBytesIntoABuffer()
+    {
+        byte[] input = {1, ',', 2, '/', 0};
+        byte[] output = new byte[input.length * 2];
+        int length = Escaping.escape(input, 0, input.length, output, 0);
+        Assert.assertArrayEquals(new byte[] {1, '/', ',', 2, '/', '/', '/', 0}, Arrays.copyOf(output, length));
+
+        // Unescape in place
+        length = Escaping.unescape(output, 0, length, output, 0);
+        Assert.assertArrayEquals(input, Arrays.copyOf(output, length));
+    }
+
+    @Test
+    public void removesAndSplitsUnlessEscaped()
+    {
+        Assert.assertEquals("ab/\ncd", Escaping.remove("a\nb/\nc\nd", '\n', '/'));
+        Assert.assertEquals("a//b", Escaping.remove("a//\nb", '\n', '/'));
+
+        Assert.assertArrayEquals(new String[] {"1", "a/,b", "", "c"},
+                Escaping.split("1,a/,b,,c", ',', '/', false));
+        Assert.assertArrayEquals(new String[] {"1", "a/,b", "c"},
+                Escaping.split("1,a/,b,,c,", ',', '/', true));
+        Assert.assertArrayEquals(new String[] {""}, Escaping.split("", ',', '/', false));
+    }
+
+    @Test
+    public void handlesLongInputs()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200000; i++) builder.append(i % 10 == 0 ? ',' : 'x');
+        String input = builder.toString();
+
+        String escaped = Escaping.escape(input);
+        String unescaped = Escaping.unescape(escaped);
+        String[] words = Escaping.split(input, ',', '/', true);
+        String removed = Escaping.remove(input, ',', '/');
+
+        // Every separator gets an escape character
+        Assert.assertEquals(220000, escaped.length());
+        Assert.assertTrue(escaped.startsWith("/,xxxxxxxxx/,"));
+        Assert.assertEquals(input, unescaped);
+        Assert.assertEquals(20000, words.length);
+        for (String word : words) Assert.assertEquals("xxxxxxxxx", word);
+        Assert.assertEquals(180000, removed.length());
+        Assert.assertEquals(-1, removed.indexOf(','));
+    }
+}
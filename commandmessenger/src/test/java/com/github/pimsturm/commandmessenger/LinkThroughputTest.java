@@ -0,0 +1,81 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LinkThroughputTest {
+    private static final long MS = 1000000L;
+
+    /**
+     * Writes batches to a simulated link, each write blocks for the time the link takes to drain it.
+     * @return The time after the last write.
+     */
+    private static long writeSaturated(LinkThroughput throughput, long now, int bytesPerSecond, int batch, int writes)
+    {
+        for (int i = 0; i < writes; i++)
+        {
+            long blocked = batch * 1000L * MS / bytesPerSecond;
+            throughput.recordWrite(batch, now, now + blocked);
+            now += blocked;
+        }
+        return now;
+    }
+
+    @Test
+    public void unknownRateIsNotPaced()
+    {
+        LinkThroughput throughput = new LinkThroughput();
+        throughput.recordWrite(100, 0, MS);
+        Assert.assertEquals(0, throughput.getBytesPerSecond(), 0);
+        Assert.assertEquals(0, throughput.getPacingDelay(MS));
+        Assert.assertEquals(255, throughput.getBatchSize(255));
+    }
+
+    @Test
+    public void estimatesSaturatedLink()
+    {
+        LinkThroughput throughput = new LinkThroughput();
+        long now = writeSaturated(throughput, 0, 1000, 100, 10);
+
+        Assert.assertTrue(throughput.isSaturated());
+        Assert.assertEquals(1000, throughput.getBytesPerSecond(), 50);
+        Assert.assertEquals("A batch holds 50 ms of the link", 50, throughput.getBatchSize(255));
+
+        // The next write waits until the link has drained the last one, at 90% of the rate
+        long delay = throughput.getPacingDelay(now);
+        Assert.assertTrue("delay " + delay, delay > 0 && delay <= 112 * MS);
+    }
+
+    @Test
+    public void followsSlowerLink()
+    {
+        LinkThroughput throughput = new LinkThroughput();
+        long now = writeSaturated(throughput, 0, 4000, 100, 20);
+        Assert.assertEquals(4000, throughput.getBytesPerSecond(), 200);
+
+        now = writeSaturated(throughput, now, 500, 50, 30);
+        Assert.assertEquals(500, throughput.getBytesPerSecond(), 100);
+        Assert.assertEquals(32, throughput.getBatchSize(255));
+    }
+
+    @Test
+    public void probesForCapacityWhenPacedWithoutBlocking()
+    {
+        LinkThroughput throughput = new LinkThroughput();
+        long now = writeSaturated(throughput, 0, 1000, 100, 10);
+        double estimate = throughput.getBytesPerSecond();
+
+        // The link got faster: the paced writes no longer block
+        for (int i = 0; i < 10; i++)
+        {
+            now += throughput.getPacingDelay(now);
+            throughput.recordWrite(50, now, now + MS);
+            now += MS;
+        }
+        Assert.assertFalse(throughput.isSaturated());
+        Assert.assertTrue(throughput.getBytesPerSecond() > estimate);
+
+        throughput.reset();
+        Assert.assertEquals(0, throughput.getBytesPerSecond(), 0);
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.SendCommand;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CollapseCommandStrategyTest {
+    private static final int LEFT_MOTOR = 0;
+    private static final int RIGHT_MOTOR = 1;
+
+    private static void enqueue(CommandStrategyQueue queue, CommandStrategy commandStrategy)
+    {
+        commandStrategy.setCommandQueue(queue);
+        commandStrategy.Enqueue();
+    }
+
+    @Test
+    public void collapsesIntoQueuedCommand()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        SendCommand latest = new SendCommand(LEFT_MOTOR, 3);
+
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(LEFT_MOTOR, 1)));
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(RIGHT_MOTOR, 1)));
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(LEFT_MOTOR, 2)));
+        enqueue(queue, new CollapseCommandStrategy(latest));
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertSame(latest, queue.get(0).getCommand());
+        Assert.assertEquals(RIGHT_MOTOR, queue.get(1).getCommand().getCmdId());
+    }
+
+    @Test
+    public void indexFollowsDequeue()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(LEFT_MOTOR, 1)));
+        queue.Peek().DeQueue();
+        Assert.assertNull(queue.GetCollapsible(LEFT_MOTOR));
+
+        // A new command must be queued again instead of collapsing into the sent one
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(LEFT_MOTOR, 2)));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertSame(queue.get(0), queue.GetCollapsible(LEFT_MOTOR));
+    }
+
+    @Test
+    public void indexFollowsClear()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(LEFT_MOTOR, 1)));
+        enqueue(queue, new CollapseCommandStrategy(new SendCommand(RIGHT_MOTOR, 1)));
+        queue.clear();
+        Assert.assertNull(queue.GetCollapsible(LEFT_MOTOR));
+        Assert.assertNull(queue.GetCollapsible(RIGHT_MOTOR));
+    }
+
+    @Test
+    public void indexFollowsStaleRemoval()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        SendCommand stale = new SendCommand(LEFT_MOTOR, 1);
+        stale.setTimeStamp(stale.getTimeStamp() - 1000);
+        enqueue(queue, new CollapseCommandStrategy(stale));
+        enqueue(queue, new CommandStrategy(new SendCommand(RIGHT_MOTOR, 1)));
+
+        StaleGeneralStrategy staleStrategy = new StaleGeneralStrategy(100);
+        staleStrategy.setCommandQueue(queue);
+        staleStrategy.OnDequeue();
+
+        Assert.assertEquals(1, queue.size());
+        Assert.assertNull(queue.GetCollapsible(LEFT_MOTOR));
+    }
+
+    @Test
+    public void recyclesTheCommandItCollapsesOver()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        SendCommand replaced = SendCommand.obtain(LEFT_MOTOR);
+        SendCommand latest = SendCommand.obtain(LEFT_MOTOR);
+
+        enqueue(queue, new CollapseCommandStrategy(replaced));
+        enqueue(queue, new CollapseCommandStrategy(latest));
+        Assert.assertFalse(replaced.isRecyclable());
+        Assert.assertTrue(latest.isRecyclable());
+
+        // Queuing the same command again does not recycle it
+        enqueue(queue, new CollapseCommandStrategy(latest));
+        Assert.assertTrue(latest.isRecyclable());
+        latest.recycle();
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.SendPriority;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandStrategyQueueTest {
+    private static SendCommand command(int cmdId, SendPriority priority)
+    {
+        SendCommand command = new SendCommand(cmdId);
+        command.setPriority(priority);
+        return command;
+    }
+
+    private static void enqueue(CommandStrategyQueue queue, CommandStrategy commandStrategy)
+    {
+        commandStrategy.setCommandQueue(queue);
+        commandStrategy.Enqueue();
+    }
+
+    private static void assertCmdIds(CommandStrategyQueue queue, int... cmdIds)
+    {
+        Assert.assertEquals(cmdIds.length, queue.size());
+        for (int i = 0; i < cmdIds.length; i++) Assert.assertEquals(cmdIds[i], queue.get(i).getCommand().getCmdId());
+    }
+
+    @Test
+    public void servesLanesInPriorityOrder()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        enqueue(queue, new CommandStrategy(command(1, SendPriority.Bulk)));
+        enqueue(queue, new CommandStrategy(command(2, SendPriority.Request)));
+        enqueue(queue, new CommandStrategy(command(3, SendPriority.Control)));
+        enqueue(queue, new CommandStrategy(command(4, SendPriority.Request)));
+        enqueue(queue, new CommandStrategy(command(5, SendPriority.Emergency)));
+        enqueue(queue, new TopCommandStrategy(command(6, SendPriority.Request)));
+
+        assertCmdIds(queue, 5, 3, 6, 2, 4, 1);
+        Assert.assertEquals(3, queue.LaneCount(SendPriority.Request));
+        Assert.assertEquals(2, queue.LaneStart(SendPriority.Request));
+    }
+
+    @Test
+    public void emergencyGoesAheadOfBacklog()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        for (int i = 0; i < 1000; i++) enqueue(queue, new CommandStrategy(command(10, SendPriority.Control)));
+        enqueue(queue, new CommandStrategy(command(6, SendPriority.Emergency)));
+        Assert.assertEquals(6, queue.Dequeue().getCommand().getCmdId());
+        Assert.assertEquals(0, queue.LaneCount(SendPriority.Emergency));
+    }
+
+    @Test
+    public void collapsedCommandKeepsItsLane()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        enqueue(queue, new CollapseCommandStrategy(command(1, SendPriority.Control)));
+        enqueue(queue, new CommandStrategy(command(2, SendPriority.Request)));
+        enqueue(queue, new CollapseCommandStrategy(command(1, SendPriority.Control)));
+        assertCmdIds(queue, 1, 2);
+        Assert.assertEquals(1, queue.LaneCount(SendPriority.Control));
+    }
+
+    @Test
+    public void dropsFromLowestLane()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        CommandStrategy first = new CollapseCommandStrategy(command(1, SendPriority.Control));
+        enqueue(queue, first);
+        enqueue(queue, new CommandStrategy(command(2, SendPriority.Bulk)));
+        enqueue(queue, new CommandStrategy(command(3, SendPriority.Bulk)));
+        enqueue(queue, new CommandStrategy(command(4, SendPriority.Control)));
+
+        CommandStrategy lowest = queue.PeekLowest();
+        Assert.assertEquals(2, lowest.getCommand().getCmdId());
+        lowest.DeQueue();
+        first.DeQueue();
+        assertCmdIds(queue, 4, 3);
+        Assert.assertEquals(1, queue.LaneCount(SendPriority.Control));
+        Assert.assertNull(queue.GetCollapsible(1));
+
+        queue.clear();
+        Assert.assertEquals(0, queue.LaneCount(SendPriority.Bulk));
+        Assert.assertNull(queue.PeekLowest());
+    }
+}
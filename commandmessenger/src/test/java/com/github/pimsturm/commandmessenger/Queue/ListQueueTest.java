@@ -0,0 +1,87 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ListQueueTest {
+    @Test
+    public void dequeuesInOrderAcrossWrapAround()
+    {
+        ListQueue<Integer> queue = new ListQueue<Integer>(4);
+        for (int i = 0; i < 100; i++)
+        {
+            queue.Enqueue(i);
+            queue.Enqueue(i + 1000);
+            Assert.assertEquals(i, (int) queue.Dequeue());
+            Assert.assertEquals(i + 1000, (int) queue.Dequeue());
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void enqueueFrontPutsItemAtFront()
+    {
+        ListQueue<Integer> queue = new ListQueue<Integer>();
+        queue.Enqueue(1);
+        queue.Enqueue(2);
+        queue.EnqueueFront(0);
+        Assert.assertEquals(0, (int) queue.Peek());
+        Assert.assertEquals(0, (int) queue.Dequeue());
+        Assert.assertEquals(1, (int) queue.Dequeue());
+        Assert.assertEquals(2, (int) queue.Dequeue());
+    }
+
+    @Test
+    public void growsUpToMaxLength()
+    {
+        ListQueue<Integer> queue = new ListQueue<Integer>(40);
+        for (int i = 0; i < 40; i++) queue.Enqueue(i);
+        Assert.assertTrue(queue.isFull());
+        for (int i = 0; i < 40; i++) Assert.assertEquals(i, (int) queue.get(i));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void enqueueOnFullQueueFails()
+    {
+        ListQueue<Integer> queue = new ListQueue<Integer>(2);
+        queue.Enqueue(1);
+        queue.Enqueue(2);
+        queue.Enqueue(3);
+    }
+
+    @Test
+    public void removeFromMiddleKeepsOrder()
+    {
+        ListQueue<Integer> queue = new ListQueue<Integer>(8);
+        // Move the head so the items wrap around the end of the ring
+        for (int i = 0; i < 6; i++) queue.Enqueue(-1);
+        for (int i = 0; i < 6; i++) queue.Dequeue();
+        for (int i = 0; i < 7; i++) queue.Enqueue(i);
+
+        Assert.assertEquals(2, (int) queue.remove(2));
+        Assert.assertEquals(5, (int) queue.remove(4));
+        Assert.assertTrue(queue.remove((Object) queue.get(0)));
+
+        int[] expected = {1, 3, 4, 6};
+        Assert.assertEquals(expected.length, queue.size());
+        for (int i = 0; i < expected.length; i++) Assert.assertEquals(expected[i], (int) queue.get(i));
+    }
+
+    @Test
+    public void insertKeepsOrderAcrossWrapAround()
+    {
+        ListQueue<Integer> queue = new ListQueue<Integer>(8);
+        for (int i = 0; i < 5; i++) queue.Enqueue(-1);
+        for (int i = 0; i < 5; i++) queue.Dequeue();
+        for (int i = 0; i < 6; i += 2) queue.Enqueue(i);
+
+        queue.insert(1, 1);
+        queue.insert(3, 3);
+        queue.insert(0, -1);
+        queue.insert(queue.size(), 5);
+
+        int[] expected = {-1, 0, 1, 2, 3, 4, 5};
+        Assert.assertEquals(expected.length, queue.size());
+        for (int i = 0; i < expected.length; i++) Assert.assertEquals(expected[i], (int) queue.get(i));
+    }
+}
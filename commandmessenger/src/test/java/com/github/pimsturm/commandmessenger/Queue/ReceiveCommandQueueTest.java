@@ -0,0 +1,152 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ReceiveCommandQueueTest {
+    private final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+    private final ArrayList<String> received = new ArrayList<String>();
+    private CommandReceiver receiver;
+    private ReceiveCommandQueue queue;
+
+    @Before
+    public void createQueue()
+    {
+        receiver = new CommandReceiver(null)
+        {
+            @Override
+            public void processCommands(List<ReceivedCommand> receivedCommands)
+            {
+                synchronized (batchSizes)
+                {
+                    batchSizes.add(receivedCommands.size());
+                }
+                super.processCommands(receivedCommands);
+            }
+        };
+        receiver.setCallbacksOnMainThread(false);
+        receiver.attach(new IMessengerCallbackFunction()
+        {
+            @Override
+            public void handleMessage(ReceivedCommand receivedCommand)
+            {
+                synchronized (received)
+                {
+                    received.add(receivedCommand.getCmdId() + "," + receivedCommand.readInt16Arg());
+                }
+            }
+        });
+        queue = new ReceiveCommandQueue(receiver);
+    }
+
+    @After
+    public void stopQueue()
+    {
+        if (queue.getIsRunning()) queue.Stop();
+    }
+
+    private static ReceivedCommand command(int cmdId, int value)
+    {
+        return new ReceivedCommand(new String[] { String.valueOf(cmdId), String.valueOf(value) });
+    }
+
+    @Test
+    public void dispatchesSeveralCommandsPerWakeUp()
+    {
+        // Queued before the worker starts, so the worker finds them all at its first wake-up
+        for (int i = 0; i < 40; i++) queue.QueueCommand(command(3, i));
+        queue.Start();
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+
+        Assert.assertEquals(40, received.size());
+        Assert.assertEquals("3,0", received.get(0));
+        Assert.assertEquals("3,39", received.get(39));
+        Assert.assertEquals(2, batchSizes.size());
+        Assert.assertEquals(32, (int) batchSizes.get(0));
+        Assert.assertEquals(8, (int) batchSizes.get(1));
+    }
+
+    @Test
+    public void burstOfCollapsibleCommandsRunsOneCallback()
+    {
+        queue.AddCollapsibleCommand(9);
+        queue.QueueCommand(command(9, 1));
+        queue.QueueCommand(command(4, 1));
+        queue.QueueCommand(command(9, 2));
+        queue.QueueCommand(command(9, 3));
+        Assert.assertEquals(2, queue.getCount());
+
+        queue.Start();
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals(2, received.size());
+        // The collapsed command keeps its place and carries the latest value
+        Assert.assertEquals("9,3", received.get(0));
+        Assert.assertEquals("4,1", received.get(1));
+    }
+
+    @Test
+    public void suspendFromACallbackDoesNotDeadlock() throws InterruptedException
+    {
+        final CountDownLatch inCallback = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final CountDownLatch callbackDone = new CountDownLatch(1);
+        receiver.attach(8, new IMessengerCallbackFunction()
+        {
+            @Override
+            public void handleMessage(ReceivedCommand receivedCommand)
+            {
+                inCallback.countDown();
+                try
+                {
+                    proceed.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                // Like an acknowledged send from a callback
+                queue.Suspend();
+                queue.Resume();
+                callbackDone.countDown();
+            }
+        });
+        queue.Start();
+        queue.QueueCommand(command(8, 1));
+        Assert.assertTrue(inCallback.await(5, TimeUnit.SECONDS));
+
+        // Suspend while the callback runs, it waits for the callback to finish
+        Thread suspender = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queue.Suspend();
+            }
+        });
+        suspender.start();
+        while (suspender.getState() != Thread.State.WAITING && suspender.getState() != Thread.State.TERMINATED)
+        {
+            Thread.sleep(1);
+        }
+        proceed.countDown();
+
+        Assert.assertTrue(callbackDone.await(5, TimeUnit.SECONDS));
+        suspender.join(5000);
+        Assert.assertFalse(suspender.isAlive());
+        Assert.assertTrue(queue.getIsSuspended());
+
+        queue.Resume();
+        Assert.assertTrue(queue.getIsRunning());
+    }
+}
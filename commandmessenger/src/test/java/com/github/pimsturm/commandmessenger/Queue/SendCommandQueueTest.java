@@ -0,0 +1,276 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.CommandEventArgs;
+import com.github.pimsturm.commandmessenger.CommunicationManager;
+import com.github.pimsturm.commandmessenger.FrameMode;
+import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.LinkThroughput;
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.SendPriority;
+import com.github.pimsturm.commandmessenger.Settings;
+import com.github.pimsturm.commandmessenger.TimeUtils;
+import com.github.pimsturm.commandmessenger.Transport.BinaryFrame;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+import com.github.pimsturm.commandmessenger.Transport.ITransport;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SendCommandQueueTest {
+    private GateTransport transport;
+    private ReceiveCommandQueue receiveQueue;
+    private CommunicationManager communicationManager;
+    private SendCommandQueue queue;
+
+    /**
+     * Records the written bytes. Writes block until the gate is opened.
+     */
+    private static class GateTransport implements ITransport
+    {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        @Override
+        public void write(byte[] data, int offset, int length)
+        {
+            writing.countDown();
+            try
+            {
+                gate.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (written)
+            {
+                written.write(data, offset, length);
+            }
+        }
+
+        String getWritten()
+        {
+            synchronized (written)
+            {
+                return written.toString();
+            }
+        }
+
+        byte[] getWrittenBytes()
+        {
+            synchronized (written)
+            {
+                return written.toByteArray();
+            }
+        }
+
+        @Override public void startConnectionManager() {}
+        @Override public void stopConnectionManager() {}
+        @Override public boolean isConnected() { return true; }
+        @Override public void write(String value) { byte[] data = value.getBytes(); write(data, 0, data.length); }
+        @Override public void setLinkThroughput(LinkThroughput linkThroughput) {}
+        @Override public void setConnectionFound(IEventHandler eventHandler) {}
+        @Override public void setProgress(IEventHandler eventHandler) {}
+    }
+
+    @Before
+    public void createQueue()
+    {
+        transport = new GateTransport();
+        receiveQueue = new ReceiveCommandQueue(new CommandReceiver(null));
+        communicationManager = new CommunicationManager(transport, receiveQueue);
+        queue = new SendCommandQueue(communicationManager, 62);
+    }
+
+    @After
+    public void stopQueue()
+    {
+        transport.gate.countDown();
+        if (queue.getIsRunning()) queue.Stop();
+    }
+
+    @Test
+    public void drainsOnlyAfterTheWrite() throws InterruptedException
+    {
+        queue.QueueCommand(new SendCommand(4, 1));
+        queue.Start();
+        Assert.assertTrue(transport.writing.await(5, TimeUnit.SECONDS));
+
+        // Taken off the queue, but not written yet
+        Assert.assertTrue(queue.getIsEmpty());
+        Assert.assertFalse(queue.WaitForEmpty(50));
+
+        transport.gate.countDown();
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals("4,1;", transport.getWritten());
+    }
+
+    @Test
+    public void producersAreNotBlockedByTheWrite() throws InterruptedException
+    {
+        SendCommand stop = new SendCommand(9);
+        stop.setPriority(SendPriority.Emergency);
+        queue.QueueCommand(stop);
+        queue.Start();
+        Assert.assertTrue(transport.writing.await(5, TimeUnit.SECONDS));
+
+        // The worker is writing the emergency command on its own, the queue lock is free
+        final CountDownLatch queued = new CountDownLatch(1);
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queue.QueueCommand(new SendCommand(4, 1));
+                queued.countDown();
+            }
+        }).start();
+        Assert.assertTrue(queued.await(5, TimeUnit.SECONDS));
+
+        transport.gate.countDown();
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals("9;4,1;", transport.getWritten());
+    }
+
+    @Test
+    public void emergencyCommandFollowsTheBatchItInterrupts()
+    {
+        final SendCommand stop = new SendCommand(9);
+        stop.setPriority(SendPriority.Emergency);
+        queue.NewLineSent = new IEventHandler<CommandEventArgs>()
+        {
+            @Override
+            public void invokeEvent(Object sender, CommandEventArgs e)
+            {
+                // Queued while the batch is being assembled
+                if (e.getCommand().getCmdId() == 4) queue.QueueCommand(stop);
+            }
+        };
+        queue.QueueCommand(new SendCommand(4, 1));
+        queue.QueueCommand(new SendCommand(5, 2));
+        transport.gate.countDown();
+        queue.Start();
+
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals("4,1;9;5,2;", transport.getWritten());
+    }
+
+    @Test
+    public void clearLaneDropsLikeAnExpiredCommand()
+    {
+        final int[] dequeued = new int[1];
+        queue.AddGeneralStrategy(new GeneralStrategy()
+        {
+            @Override
+            public void OnDequeue()
+            {
+                dequeued[0]++;
+            }
+        });
+        SendCommand setpoint = SendCommand.obtain(4);
+        setpoint.setPriority(SendPriority.Control);
+        queue.QueueCommand(setpoint);
+        queue.QueueCommand(new SendCommand(5, 2));
+
+        queue.ClearLane(SendPriority.Control);
+        Assert.assertEquals(1, dequeued[0]);
+        Assert.assertFalse("Recycled", setpoint.isRecyclable());
+
+        transport.gate.countDown();
+        queue.Start();
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals("5,2;", transport.getWritten());
+    }
+
+    private static SendCommand command(int cmdId, SendPriority priority, long age)
+    {
+        SendCommand command = SendCommand.obtain(cmdId);
+        command.addArgument(1);
+        command.setPriority(priority);
+        command.setTimeStamp(TimeUtils.millis() - age);
+        return command;
+    }
+
+    @Test
+    public void staleCommandsAreDroppedFromEveryLane()
+    {
+        queue.AddGeneralStrategy(new StaleGeneralStrategy(500));
+        SendCommand staleControl = command(4, SendPriority.Control, 1000);
+        SendCommand staleRequest = command(3, SendPriority.Request, 1000);
+        queue.QueueCommand(command(1, SendPriority.Control, 0));
+        queue.QueueCommand(staleControl);
+        queue.QueueCommand(staleRequest);
+        // Put in front of the stale command of its lane
+        queue.SendCommand(command(2, SendPriority.Request, 0));
+
+        transport.gate.countDown();
+        queue.Start();
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals("1,1;2,1;", transport.getWritten());
+        Assert.assertFalse("Recycled", staleControl.isRecyclable());
+        Assert.assertFalse("Recycled", staleRequest.isRecyclable());
+    }
+
+    @Test
+    public void emptyQueueHasDrained()
+    {
+        queue.Start();
+        Assert.assertTrue(queue.WaitForEmpty(50));
+    }
+
+    @Test
+    public void sentListenersMayKeepPooledCommands()
+    {
+        final ArrayList<SendCommand> sent = new ArrayList<SendCommand>();
+        queue.NewLineSent = new IEventHandler<CommandEventArgs>()
+        {
+            @Override
+            public void invokeEvent(Object sender, CommandEventArgs e)
+            {
+                sent.add((SendCommand) e.getCommand());
+            }
+        };
+        transport.gate.countDown();
+        queue.Start();
+
+        SendCommand first = SendCommand.obtain(4);
+        first.addArgument(1);
+        queue.QueueCommand(first);
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        // Likely the recycled first command
+        SendCommand second = SendCommand.obtain(5);
+        second.addArgument(2);
+        queue.QueueCommand(second);
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+
+        Assert.assertEquals("4,1;5,2;", transport.getWritten());
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(4, sent.get(0).getCmdId());
+        Assert.assertEquals("1", sent.get(0).getArgument(0));
+        Assert.assertEquals(5, sent.get(1).getCmdId());
+        Assert.assertEquals("2", sent.get(1).getArgument(0));
+    }
+
+    @Test
+    public void framesWithTheModeOfItsMessenger()
+    {
+        Assert.assertEquals(FrameMode.Text, Settings.getInstance().getFrameMode());
+        communicationManager.setFrameMode(FrameMode.Binary);
+        transport.gate.countDown();
+        queue.Start();
+
+        queue.QueueCommand(new SendCommand(4, 1));
+        Assert.assertTrue(queue.WaitForEmpty(5000));
+        Assert.assertEquals(BinaryFrame.SYNC, transport.getWrittenBytes()[0]);
+        // Other messengers keep the default
+        Assert.assertEquals(FrameMode.Text, Settings.getInstance().getFrameMode());
+    }
+}
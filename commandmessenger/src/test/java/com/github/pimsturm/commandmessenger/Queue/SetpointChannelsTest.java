@@ -0,0 +1,140 @@
+package com.github.pimsturm.commandmessenger.Queue;
+
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.TimeUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class SetpointChannelsTest {
+    private static final int LEFT_MOTOR = 0;
+    private static final int RIGHT_MOTOR = 1;
+
+    private final SetpointChannels channels = new SetpointChannels(null, 50, 200);
+    private final SetpointChannels.Channel left = channels.AddChannel(LEFT_MOTOR);
+    private final SetpointChannels.Channel right = channels.AddChannel(RIGHT_MOTOR);
+
+    private static String argument(CommandStrategy commandStrategy)
+    {
+        SendCommand command = (SendCommand) commandStrategy.getCommand();
+        command.initArguments();
+        return command.getArguments()[0];
+    }
+
+    @Test
+    public void flushesOnlyTheLatestSetpoints()
+    {
+        left.Set(10);
+        left.Set(20);
+        right.Set(-30);
+        left.Set(40);
+
+        ArrayList<CommandStrategy> flushed = new ArrayList<CommandStrategy>();
+        channels.Collect(TimeUtils.millis(), flushed);
+        Assert.assertEquals(2, flushed.size());
+        Assert.assertEquals(LEFT_MOTOR, flushed.get(0).getCommand().getCmdId());
+        Assert.assertEquals("40", argument(flushed.get(0)));
+        Assert.assertEquals("-30", argument(flushed.get(1)));
+
+        // Unchanged channels are not sent again
+        flushed.clear();
+        right.Set(5);
+        channels.Collect(TimeUtils.millis(), flushed);
+        Assert.assertEquals(1, flushed.size());
+        Assert.assertEquals(RIGHT_MOTOR, flushed.get(0).getCommand().getCmdId());
+    }
+
+    @Test
+    public void dropsSetpointsPastTheDeadline()
+    {
+        left.Set(10);
+        ArrayList<CommandStrategy> flushed = new ArrayList<CommandStrategy>();
+        channels.Collect(TimeUtils.millis() + 1000, flushed);
+        Assert.assertTrue(flushed.isEmpty());
+        Assert.assertEquals(1, channels.getDroppedSetpoints());
+
+        right.Set(10);
+        channels.Collect(TimeUtils.millis(), flushed);
+        CommandStrategy queued = flushed.get(0);
+        Assert.assertFalse(queued.IsExpired(TimeUtils.millis()));
+        Assert.assertTrue("A queued setpoint expires at the deadline", queued.IsExpired(TimeUtils.millis() + 1000));
+        queued.OnExpired();
+        Assert.assertEquals(2, channels.getDroppedSetpoints());
+    }
+
+    @Test
+    public void expiredNewestSetpointIsNotSentAgain()
+    {
+        left.Set(10);
+        ArrayList<CommandStrategy> flushed = new ArrayList<CommandStrategy>();
+        channels.Collect(TimeUtils.millis(), flushed);
+        CommandStrategy queued = flushed.remove(0);
+        long timeStamp = queued.getCommand().getTimeStamp();
+
+        // Still the newest setpoint of its channel, but too old to send
+        queued.OnExpired();
+        Assert.assertEquals(1, channels.getDroppedSetpoints());
+        channels.Collect(TimeUtils.millis() + 1000, flushed);
+        Assert.assertTrue(flushed.isEmpty());
+        Assert.assertEquals("Not counted twice", 1, channels.getDroppedSetpoints());
+
+        // Only the next Set sends the channel again
+        left.Set(20);
+        channels.Collect(TimeUtils.millis(), flushed);
+        Assert.assertEquals(1, flushed.size());
+        Assert.assertEquals("20", argument(flushed.get(0)));
+        Assert.assertTrue(flushed.get(0).getCommand().getTimeStamp() >= timeStamp);
+    }
+
+    @Test
+    public void recyclesTheSetpointItCollapsesOver()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        ArrayList<CommandStrategy> flushed = new ArrayList<CommandStrategy>();
+        left.Set(1);
+        channels.Collect(TimeUtils.millis(), flushed);
+        left.Set(2);
+        channels.Collect(TimeUtils.millis(), flushed);
+        SendCommand replaced = (SendCommand) flushed.get(0).getCommand();
+        for (CommandStrategy commandStrategy : flushed)
+        {
+            commandStrategy.setCommandQueue(queue);
+            commandStrategy.Enqueue();
+        }
+        Assert.assertFalse("The collapsed over command went back to the pool", replaced.isRecyclable());
+        Assert.assertEquals("2", argument(queue.get(0)));
+    }
+
+    @Test
+    public void queuedSetpointCollapsesIntoItsChannel()
+    {
+        CommandStrategyQueue queue = new CommandStrategyQueue();
+        for (int setpoint = 1; setpoint <= 3; setpoint++)
+        {
+            left.Set(setpoint);
+            right.Set(-setpoint);
+            ArrayList<CommandStrategy> flushed = new ArrayList<CommandStrategy>();
+            channels.Collect(TimeUtils.millis(), flushed);
+            for (CommandStrategy commandStrategy : flushed)
+            {
+                commandStrategy.setCommandQueue(queue);
+                commandStrategy.Enqueue();
+            }
+        }
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals("3", argument(queue.get(0)));
+        Assert.assertEquals("-3", argument(queue.get(1)));
+    }
+
+    @Test
+    public void clearDiscardsPendingSetpoints()
+    {
+        left.Set(10);
+        channels.Clear();
+        ArrayList<CommandStrategy> flushed = new ArrayList<CommandStrategy>();
+        channels.Collect(TimeUtils.millis(), flushed);
+        Assert.assertTrue(flushed.isEmpty());
+    }
+}
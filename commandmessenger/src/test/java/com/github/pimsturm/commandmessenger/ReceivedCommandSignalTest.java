@@ -0,0 +1,71 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReceivedCommandSignalTest {
+    private static final int ACK = 5;
+
+    private static ReceivedCommand ack(String sequence)
+    {
+        ReceivedCommand command = new ReceivedCommand();
+        command.setCmdId(ACK);
+        if (sequence != null) command.cmdArgs.add(sequence);
+        return command;
+    }
+
+    @Test
+    public void ackArrivingBeforeWaitIsNotLost()
+    {
+        ReceivedCommandSignal signal = new ReceivedCommandSignal();
+        ReceivedCommandSignal.PendingAck pendingAck = signal.register(ACK, null, SendQueue.Default);
+        ReceivedCommand ack = ack(null);
+
+        Assert.assertFalse(signal.processCommand(ack));
+        Assert.assertSame(ack, signal.await(pendingAck, 100));
+        Assert.assertFalse(signal.hasPending());
+    }
+
+    @Test
+    public void acksCompleteTheirOwnRequests() throws InterruptedException
+    {
+        final ReceivedCommandSignal signal = new ReceivedCommandSignal();
+        final ReceivedCommandSignal.PendingAck first = signal.register(ACK, "1", SendQueue.Default);
+        final ReceivedCommandSignal.PendingAck second = signal.register(ACK, "2", SendQueue.Default);
+        final ReceivedCommand[] results = new ReceivedCommand[2];
+
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = signal.await(first, 1000);
+            }
+        });
+        waiter.start();
+
+        // Acknowledges arrive out of order
+        ReceivedCommand secondAck = ack("2");
+        ReceivedCommand firstAck = ack("1");
+        Assert.assertFalse(signal.processCommand(secondAck));
+        Assert.assertTrue(second.isCompleted());
+        Assert.assertFalse(first.isCompleted());
+        results[1] = signal.await(second, 1000);
+        Assert.assertFalse(signal.processCommand(firstAck));
+        waiter.join();
+
+        Assert.assertSame(firstAck, results[0]);
+        Assert.assertSame(secondAck, results[1]);
+        Assert.assertFalse(signal.hasPending());
+    }
+
+    @Test
+    public void timedOutRequestIsUnregistered()
+    {
+        ReceivedCommandSignal signal = new ReceivedCommandSignal();
+        ReceivedCommandSignal.PendingAck pendingAck = signal.register(ACK, null, SendQueue.ClearQueue);
+
+        Assert.assertNull(signal.await(pendingAck, 10));
+        Assert.assertFalse(signal.hasPending());
+        // A late acknowledge goes to the queue like any other command
+        Assert.assertTrue(signal.processCommand(ack(null)));
+    }
+}
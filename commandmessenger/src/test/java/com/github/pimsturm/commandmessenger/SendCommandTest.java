@@ -0,0 +1,68 @@
+package com.github.pimsturm.commandmessenger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SendCommandTest {
+    @Test
+    public void argumentsKeepTheirTextForm()
+    {
+        SendCommand command = new SendCommand(7);
+        command.addArgument("text");
+        command.addArgument((short) -3);
+        command.addArgument(42);
+        command.addArgument(true);
+        command.addArgument(new UInt16(65535));
+        command.addArgument(new UInt32(4294967295L));
+        command.addArgument(1.5f);
+
+        Assert.assertArrayEquals(new String[] {"text", "-3", "42", "1", "65535", "4294967295", "1.5"},
+                command.getArguments());
+        Assert.assertEquals("7,text,-3,42,1,65535,4294967295,1.5;", command.commandString());
+    }
+
+    @Test
+    public void templateIsOverwrittenInPlaceAndEncodedAgain()
+    {
+        SendCommand template = new SendCommand(0, 0);
+        template.addArgument(1.5f);
+        template.initArguments();
+        template.initArguments();
+        Assert.assertEquals("0,0,1.5;", template.commandString());
+
+        template.setArgument(0, -255);
+        template.setArgument(1, 2.5f);
+        template.initArguments();
+        Assert.assertEquals("0,-255,2.5;", template.commandString());
+        Assert.assertEquals("0,-255,2.5;", template.commandString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void templateKeepsItsSchema()
+    {
+        SendCommand template = new SendCommand(0, 0);
+        template.setArgument(0, "text");
+    }
+
+    @Test
+    public void pooledCommandsAreReused()
+    {
+        SendCommand command = SendCommand.obtain(1);
+        command.addArgument(100);
+        command.setReqAc(true);
+        Assert.assertTrue(command.isRecyclable());
+        command.recycle();
+
+        SendCommand reused = SendCommand.obtain(2);
+        Assert.assertSame(command, reused);
+        Assert.assertEquals(2, reused.getCmdId());
+        Assert.assertEquals(0, reused.getArgumentCount());
+        Assert.assertFalse(reused.getReqAc());
+
+        // Commands created with new stay out of the pool
+        SendCommand created = new SendCommand(3);
+        created.recycle();
+        Assert.assertFalse(created.isRecyclable());
+        Assert.assertNotSame(created, SendCommand.obtain(3));
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.BitConverter;
+import com.github.pimsturm.commandmessenger.BoardType;
+import com.github.pimsturm.commandmessenger.FrameMode;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class BinaryFrameTest {
+    private final Settings settings = Settings.getInstance();
+    private BoardType boardType;
+
+    @Before
+    public void setUp()
+    {
+        boardType = settings.getBoardType();
+        settings.setBoardType(BoardType.Bit32);
+        settings.setFrameMode(FrameMode.Binary);
+    }
+
+    @After
+    public void tearDown()
+    {
+        settings.setFrameMode(FrameMode.Text);
+        settings.setFrameCrc(true);
+        settings.setBoardType(boardType);
+    }
+
+    private static SendCommand motorCommand()
+    {
+        SendCommand command = new SendCommand(9);
+        command.addArgument(-120);
+        command.addBinArgument((short) 300);
+        command.addArgument(2.5f);
+        command.addArgument(0.1);
+        command.addArgument("a;b,c/");
+        command.addBinArgument(true);
+        return command;
+    }
+
+    private static void assertMotorCommand(ReceivedCommand command)
+    {
+        Assert.assertNotNull(command);
+        Assert.assertEquals(9, command.getCmdId());
+        Assert.assertEquals(6, command.getArgumentCount());
+        Assert.assertEquals(-120, command.readInt32Arg());
+        Assert.assertEquals(300, command.readInt16Arg());
+        Assert.assertEquals(2.5f, command.readFloatArg(), 0);
+        Assert.assertEquals(0.1, command.readDoubleArg(), 0);
+        Assert.assertEquals("a;b,c/", command.readStringArg());
+        Assert.assertTrue(command.readBinBoolArg());
+    }
+
+    private static ReceivedCommand nextCommand(CommandFramer framer)
+    {
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertTrue(framer.isBinaryFrame());
+        return new CommandDecoder().decodeFrame(framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+    }
+
+    @Test
+    public void framesRoundTripBetweenTextCommands()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.encode(motorCommand());
+        byte[] frame = Arrays.copyOf(encoder.getBuffer(), encoder.length());
+        Assert.assertEquals(BinaryFrame.SYNC, frame[0]);
+
+        CommandFramer framer = new CommandFramer(16);
+        byte[] text = "4,x;\r\n".getBytes();
+        framer.append(text, 0, text.length);
+        // The frame arrives byte by byte
+        for (int i = 0; i < frame.length; i++)
+        {
+            if (i == 0)
+            {
+                Assert.assertTrue(framer.nextFrame());
+                Assert.assertFalse(framer.isBinaryFrame());
+            }
+            Assert.assertFalse(framer.nextFrame());
+            framer.append(frame, i, 1);
+        }
+        framer.append(text, 0, text.length);
+
+        assertMotorCommand(nextCommand(framer));
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertFalse(framer.isBinaryFrame());
+        Assert.assertFalse(framer.nextFrame());
+    }
+
+    @Test
+    public void rejectsCommandIdsThatDoNotFitInAFrame()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        SendCommand highest = new SendCommand(BinaryFrame.MAX_CMD_ID);
+        highest.initArguments();
+        encoder.encode(highest);
+        int length = encoder.length();
+        for (int cmdId : new int[] { BinaryFrame.MAX_CMD_ID + 1, 0x10000, -1 })
+        {
+            SendCommand command = new SendCommand(cmdId);
+            command.initArguments();
+            try
+            {
+                encoder.encode(command);
+                Assert.fail("Command ID " + cmdId + " should be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                Assert.assertEquals("Nothing is appended", length, encoder.length());
+            }
+        }
+
+        CommandFramer framer = new CommandFramer();
+        framer.append(encoder.getBuffer(), 0, encoder.length());
+        Assert.assertEquals(BinaryFrame.MAX_CMD_ID, nextCommand(framer).getCmdId());
+        Assert.assertFalse(framer.nextFrame());
+    }
+
+    @Test
+    public void dropsCorruptedFrames()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.encode(motorCommand());
+        encoder.encode(motorCommand());
+        byte[] frames = Arrays.copyOf(encoder.getBuffer(), encoder.length());
+        frames[8] ^= 0x10;
+
+        CommandFramer framer = new CommandFramer();
+        framer.append(frames, 0, frames.length);
+        assertMotorCommand(nextCommand(framer));
+        Assert.assertFalse(framer.nextFrame());
+    }
+
+    @Test
+    public void resyncsAfterACorruptedLengthField()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.encode(motorCommand());
+        encoder.encode(motorCommand());
+        byte[] frames = Arrays.copyOf(encoder.getBuffer(), encoder.length());
+        // The first frame claims to run into the second one
+        frames[2] += 10;
+        Assert.assertTrue(BitConverter.getUInt16(frames, 2) + BinaryFrame.HEADER_LENGTH + BinaryFrame.CRC_LENGTH < frames.length);
+
+        FrameIntegrity frameIntegrity = new FrameIntegrity();
+        CommandFramer framer = new CommandFramer();
+        framer.setFrameIntegrity(frameIntegrity);
+        framer.append(frames, 0, frames.length);
+        assertMotorCommand(nextCommand(framer));
+        Assert.assertFalse(framer.nextFrame());
+        Assert.assertEquals(1, frameIntegrity.getCorruptedFrames());
+    }
+
+    @Test
+    public void dropsFramesThatStayIncomplete() throws InterruptedException
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.encode(motorCommand());
+        encoder.encode(motorCommand());
+        byte[] frames = Arrays.copyOf(encoder.getBuffer(), encoder.length());
+        // The first frame claims more data than will ever arrive
+        BitConverter.putLittleEndian(frames, 2, 4000, 2);
+
+        CommandFramer framer = new CommandFramer();
+        framer.setFrameTimeout(0);
+        framer.append(frames, 0, frames.length);
+        Assert.assertFalse(framer.nextFrame());
+        Thread.sleep(1);
+        assertMotorCommand(nextCommand(framer));
+        Assert.assertFalse(framer.nextFrame());
+    }
+
+    @Test
+    public void framesWithoutCrc()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.setFrameCrc(false);
+        encoder.encode(motorCommand());
+
+        CommandFramer framer = new CommandFramer();
+        framer.append(encoder.getBuffer(), 0, encoder.length());
+        assertMotorCommand(nextCommand(framer));
+    }
+
+    @Test
+    public void calculatesCcittCrc()
+    {
+        byte[] check = "123456789".getBytes();
+        Assert.assertEquals(0x29B1, BinaryFrame.crc16(check, 0, check.length));
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.ArgumentType;
+import com.github.pimsturm.commandmessenger.AsciiDecoder;
+import com.github.pimsturm.commandmessenger.BoardType;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandDecoderTest {
+    private static ReceivedCommand decode(byte[] data, ArgumentType... schema)
+    {
+        CommandFramer framer = new CommandFramer();
+        framer.append(data, 0, data.length);
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertTrue(framer.nextField());
+        int cmdId = (int) AsciiDecoder.parseLong(framer.getBuffer(), framer.getFieldOffset(), framer.getFieldLength());
+        return new CommandDecoder().decode(framer, cmdId, schema);
+    }
+
+    private static ReceivedCommand decode(String data, ArgumentType... schema)
+    {
+        return decode(data.getBytes(), schema);
+    }
+
+    @Test
+    public void decodesTextArguments()
+    {
+        ReceivedCommand command = decode("7,-12,65535,123456,4000000000,1,2.5,-0.125;",
+                ArgumentType.Int16, ArgumentType.UInt16, ArgumentType.Int32, ArgumentType.UInt32,
+                ArgumentType.Bool, ArgumentType.Float, ArgumentType.Double);
+
+        Assert.assertEquals(7, command.getCmdId());
+        Assert.assertEquals(7, command.getArgumentCount());
+        Assert.assertEquals(-12, command.readInt16Arg());
+        Assert.assertEquals(65535, command.readUInt16Arg());
+        Assert.assertEquals(123456, command.readInt32Arg());
+        Assert.assertEquals(4000000000L, command.readUInt32Arg());
+        Assert.assertTrue(command.readBoolArg());
+        Assert.assertEquals(2.5f, command.readFloatArg(), 0);
+        Assert.assertEquals(-0.125, command.readDoubleArg(), 0);
+        Assert.assertEquals("123456", command.getArgument(2));
+    }
+
+    @Test
+    public void readsUnsignedTextArgumentsWithoutSchema()
+    {
+        ReceivedCommand command = new ReceivedCommand(new String[] {"7", "65535", "4000000000"});
+
+        Assert.assertEquals(65535, command.readUInt16Arg());
+        Assert.assertEquals(4000000000L, command.readUInt32Arg());
+    }
+
+    @Test
+    public void decodesFloatsLikeParseFloat()
+    {
+        BoardType boardType = Settings.getInstance().getBoardType();
+        String[] values = {"0.1", "3.14159", "-273.15", "1e3", "16777217", "0.000001", "-0.0"};
+        try {
+            for (BoardType board : new BoardType[] {BoardType.Bit16, BoardType.Bit32})
+            {
+                Settings.getInstance().setBoardType(board);
+                for (String value : values)
+                {
+                    ReceivedCommand command = decode("1," + value + "," + value + ";", ArgumentType.Float, ArgumentType.Double);
+                    double expected = board == BoardType.Bit16 ? Float.parseFloat(value) : Double.parseDouble(value);
+                    Assert.assertEquals(value, Float.floatToRawIntBits(Float.parseFloat(value)),
+                            Float.floatToRawIntBits(command.readFloatArg()));
+                    Assert.assertEquals(value, Double.doubleToRawLongBits(expected),
+                            Double.doubleToRawLongBits(command.readDoubleArg()));
+                }
+            }
+        } finally {
+            Settings.getInstance().setBoardType(boardType);
+        }
+    }
+
+    @Test
+    public void keepsMismatchesAndExtraArgumentsAsText()
+    {
+        ReceivedCommand command = decode("2,abc,70000,extra;", ArgumentType.Int32, ArgumentType.Int16);
+        Assert.assertEquals(3, command.getArgumentCount());
+        Assert.assertEquals("abc", command.getArgument(0));
+        Assert.assertEquals("70000", command.getArgument(1));
+        command.readStringArg();
+        command.readStringArg();
+        Assert.assertEquals("extra", command.readStringArg());
+    }
+
+    @Test
+    public void decodesLittleEndianBinaryArguments()
+    {
+        // 0x1234 as Int16, -2 as Int32 and an escaped field separator (0x2C) in a 16 bit value
+        byte[] data = {'3', ',', 0x34, 0x12, ',', (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                ',', '/', ',', 0x00, ',', 'h', 'i', '/', ';', ';'};
+        ReceivedCommand command = decode(data, ArgumentType.BinInt16, ArgumentType.BinInt32,
+                ArgumentType.BinUInt16, ArgumentType.BinString);
+
+        Assert.assertEquals(0x1234, command.readBinInt16Arg());
+        Assert.assertEquals(-2, command.readBinInt32Arg());
+        Assert.assertEquals(0x2C, command.readBinUInt16Arg());
+        Assert.assertEquals("hi;", command.readBinStringArg());
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.SendCommand;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandEncoderTest {
+    private static String encoded(CommandEncoder encoder)
+    {
+        return new String(encoder.getBuffer(), 0, encoder.length());
+    }
+
+    @Test
+    public void encodesLikeCommandString()
+    {
+        CommandEncoder encoder = new CommandEncoder(16);
+        SendCommand[] commands = {
+                new SendCommand(3, new String[] {"abc", "-12"}),
+                new SendCommand(12),
+                new SendCommand(-5, "x"),
+        };
+        StringBuilder expected = new StringBuilder();
+        for (SendCommand command : commands)
+        {
+            command.initArguments();
+            encoder.encode(command);
+            expected.append(command.commandString());
+        }
+        Assert.assertEquals(expected.toString(), encoded(encoder));
+    }
+
+    @Test
+    public void appendsIntegersWithoutStrings()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        int[] values = {0, 7, 10, -1, 123456789, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values)
+        {
+            encoder.clear();
+            encoder.appendInt(value);
+            Assert.assertEquals(Integer.toString(value), encoded(encoder));
+        }
+        long[] longValues = {4294967295L, -4294967296L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : longValues)
+        {
+            encoder.clear();
+            encoder.appendLong(value);
+            Assert.assertEquals(Long.toString(value), encoded(encoder));
+        }
+    }
+}
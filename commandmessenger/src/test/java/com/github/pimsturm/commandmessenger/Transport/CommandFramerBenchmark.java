@@ -0,0 +1,72 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.Settings;
+
+/**
+ * Benchmark for framing a reconnect backlog, against the byte by byte reference scanner.
+ * Not a unit test, timings on a shared build machine are too noisy to assert on.
+ * Run the main method and compare the printed times.
+ */
+public class CommandFramerBenchmark {
+    private static final int ROUNDS = 100;
+    private static final int TRIALS = 20;
+
+    public static void main(String[] args)
+    {
+        byte[] data = backlog();
+        CommandFramer framer = new CommandFramer(data.length);
+
+        long referenceNanos = Long.MAX_VALUE;
+        long framerNanos = Long.MAX_VALUE;
+        // Best of several trials, the first ones warm up the JIT
+        for (int trial = 0; trial < TRIALS; trial++)
+        {
+            int frames = 0;
+            long t = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) frames += referenceFrameCount(data);
+            referenceNanos = Math.min(referenceNanos, System.nanoTime() - t);
+
+            t = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) frames -= frameAll(framer, data);
+            framerNanos = Math.min(framerNanos, System.nanoTime() - t);
+            if (frames != 0) throw new IllegalStateException("Both scanners should find the same frames.");
+        }
+
+        System.out.println("Framing 64 kB: byte by byte " + referenceNanos / ROUNDS / 1000 + " us, CommandFramer "
+                + framerNanos / ROUNDS / 1000 + " us");
+    }
+
+    /**
+     * Builds a backlog of 64 kB of text commands, like the data waiting after a reconnect.
+     */
+    static byte[] backlog()
+    {
+        StringBuilder backlog = new StringBuilder();
+        while (backlog.length() < 64 * 1024) backlog.append("12,Battery voltage and motor currents,1234,5678;\r\n");
+        return backlog.toString().getBytes();
+    }
+
+    static int frameAll(CommandFramer framer, byte[] data)
+    {
+        framer.clear();
+        framer.append(data, 0, data.length);
+        int count = 0;
+        while (framer.nextFrame()) count++;
+        return count;
+    }
+
+    static int referenceFrameCount(byte[] data)
+    {
+        Settings settings = Settings.getInstance();
+        int count = 0;
+        boolean escaped = false;
+        for (int i = 0; i < data.length; i++)
+        {
+            // The settings getters were called per byte
+            if (escaped) escaped = false;
+            else if (data[i] == (byte) settings.getEscapeCharacter()) escaped = true;
+            else if (data[i] == (byte) settings.getCommandSeparator()) count++;
+        }
+        return count;
+    }
+}
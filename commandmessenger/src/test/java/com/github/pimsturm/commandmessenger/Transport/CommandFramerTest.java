@@ -0,0 +1,160 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class CommandFramerTest {
+    private static void append(CommandFramer framer, String data)
+    {
+        byte[] bytes = data.getBytes();
+        framer.append(bytes, 0, bytes.length);
+    }
+
+    private static String frame(CommandFramer framer)
+    {
+        return new String(framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+    }
+
+    private static ArrayList<String> fields(CommandFramer framer)
+    {
+        ArrayList<String> fields = new ArrayList<String>();
+        while (framer.nextField())
+        {
+            fields.add(new String(framer.getBuffer(), framer.getFieldOffset(), framer.getFieldLength()));
+        }
+        return fields;
+    }
+
+    @Test
+    public void framesCommandsSplitOverChunks()
+    {
+        CommandFramer framer = new CommandFramer(16);
+        append(framer, "1,2");
+        Assert.assertFalse(framer.nextFrame());
+        append(framer, "0;2,");
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertEquals("1,20", frame(framer));
+        Assert.assertFalse(framer.nextFrame());
+        append(framer, "abcdefghijklmnopqrstuvwxyz;3;");
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertEquals("2,abcdefghijklmnopqrstuvwxyz", frame(framer));
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertEquals("3", frame(framer));
+        Assert.assertFalse(framer.nextFrame());
+    }
+
+    @Test
+    public void escapedSeparatorsDoNotSplit()
+    {
+        CommandFramer framer = new CommandFramer();
+        // The escape character arrives at the end of a chunk
+        append(framer, "4,a/");
+        append(framer, ";b/,c//;");
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertEquals("4,a/;b/,c//", frame(framer));
+
+        ArrayList<String> fields = fields(framer);
+        Assert.assertEquals(2, fields.size());
+        Assert.assertEquals("4", fields.get(0));
+        Assert.assertEquals("a/;b/,c//", fields.get(1));
+    }
+
+    @Test
+    public void fieldsKeepEscapesForTheArgumentReaders()
+    {
+        CommandFramer framer = new CommandFramer();
+        append(framer, "7,a/,b//c;");
+        Assert.assertTrue(framer.nextFrame());
+        ArrayList<String> fields = fields(framer);
+        Assert.assertEquals("a/,b//c", fields.get(1));
+
+        ReceivedCommand command = new ReceivedCommand(fields.toArray(new String[fields.size()]));
+        Assert.assertEquals("a/,b//c", command.readStringArg());
+        command = new ReceivedCommand(fields.toArray(new String[fields.size()]));
+        Assert.assertEquals("a,b/c", command.readBinStringArg());
+    }
+
+    @Test
+    public void skipsLineEndsAndEmptyFields()
+    {
+        CommandFramer framer = new CommandFramer();
+        append(framer, "\r\n5,,6\r\n;\r\n;");
+        Assert.assertTrue(framer.nextFrame());
+        ArrayList<String> fields = fields(framer);
+        Assert.assertEquals(2, fields.size());
+        Assert.assertEquals("5", fields.get(0));
+        Assert.assertEquals("6", fields.get(1));
+
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertTrue(fields(framer).isEmpty());
+    }
+
+    /**
+     * Byte by byte reference scanner, the way commands were framed before.
+     */
+    private static ArrayList<String> referenceFrames(byte[] data)
+    {
+        ArrayList<String> frames = new ArrayList<String>();
+        boolean escaped = false;
+        int start = 0;
+        for (int i = 0; i < data.length; i++)
+        {
+            // Line ends between commands are skipped
+            if (i == start && (data[i] == '\r' || data[i] == '\n')) start++;
+            else if (escaped) escaped = false;
+            else if (data[i] == '/') escaped = true;
+            else if (data[i] == ';')
+            {
+                frames.add(new String(data, start, i - start));
+                start = i + 1;
+            }
+        }
+        return frames;
+    }
+
+    private static byte[] randomBacklog(Random random, int length)
+    {
+        byte[] alphabet = "abc0123456789,;/\r\n".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            // Mostly plain text with the occasional separator, like a real backlog
+            data[i] = random.nextInt(8) == 0 ? alphabet[random.nextInt(alphabet.length)] : (byte) ('a' + random.nextInt(26));
+        }
+        return data;
+    }
+
+    @Test
+    public void framesLikeByteByByteScanning()
+    {
+        Random random = new Random(17);
+        for (int round = 0; round < 50; round++)
+        {
+            byte[] data = randomBacklog(random, 2000);
+            CommandFramer framer = new CommandFramer(16);
+            ArrayList<String> frames = new ArrayList<String>();
+            int chunk = 1 + random.nextInt(100);
+            for (int offset = 0; offset < data.length; offset += chunk)
+            {
+                framer.append(data, offset, Math.min(chunk, data.length - offset));
+                while (framer.nextFrame()) frames.add(frame(framer));
+            }
+            Assert.assertEquals(referenceFrames(data), frames);
+        }
+    }
+
+    @Test
+    public void framesBacklogLikeByteByByte()
+    {
+        byte[] data = CommandFramerBenchmark.backlog();
+        CommandFramer framer = new CommandFramer(data.length);
+        Assert.assertEquals(CommandFramerBenchmark.referenceFrameCount(data), CommandFramerBenchmark.frameAll(framer, data));
+        // The framer can be reused
+        Assert.assertEquals(CommandFramerBenchmark.referenceFrameCount(data), CommandFramerBenchmark.frameAll(framer, data));
+    }
+}
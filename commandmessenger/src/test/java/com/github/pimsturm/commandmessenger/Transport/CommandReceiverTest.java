@@ -0,0 +1,175 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.DecodeThread;
+import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class CommandReceiverTest {
+    private final ArrayList<CommandReceiver> receivers = new ArrayList<CommandReceiver>();
+
+    /**
+     * Stands in for the main looper: tasks wait until the test runs them.
+     */
+    private static class QueuedExecutor implements Executor {
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task)
+        {
+            tasks.add(task);
+        }
+
+        synchronized void runAll()
+        {
+            for (Runnable task : tasks) task.run();
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Records the received commands and the threads they were dispatched on.
+     */
+    private static class RecordingCallback implements IMessengerCallbackFunction {
+        final BlockingQueue<ReceivedCommand> commands = new ArrayBlockingQueue<ReceivedCommand>(16);
+        final BlockingQueue<Thread> threads = new ArrayBlockingQueue<Thread>(16);
+
+        @Override
+        public void handleMessage(ReceivedCommand receivedCommand)
+        {
+            // The thread last, the tests wait for it
+            commands.add(receivedCommand);
+            threads.add(Thread.currentThread());
+        }
+    }
+
+    private CommandReceiver receiver(Executor mainThread)
+    {
+        CommandReceiver receiver = new CommandReceiver(mainThread);
+        receivers.add(receiver);
+        return receiver;
+    }
+
+    private static void receive(CommandReceiver receiver, String data)
+    {
+        byte[] bytes = data.getBytes();
+        receiver.dataReceived(bytes, 0, bytes.length);
+    }
+
+    @After
+    public void stopReceivers()
+    {
+        for (CommandReceiver receiver : receivers) receiver.stop();
+    }
+
+    @Test
+    public void readerThreadDecodesOnTheCallingThread()
+    {
+        CommandReceiver receiver = receiver(null);
+        receiver.setDecodeThread(DecodeThread.ReaderThread);
+        RecordingCallback callback = new RecordingCallback();
+        receiver.attach(5, callback);
+
+        receive(receiver, "5,12;");
+        Assert.assertEquals(Thread.currentThread(), callback.threads.poll());
+        Assert.assertEquals(12, callback.commands.poll().readInt16Arg());
+    }
+
+    @Test
+    public void readsTextArgumentsFromTheReceivedBytes()
+    {
+        CommandReceiver receiver = receiver(null);
+        receiver.setDecodeThread(DecodeThread.ReaderThread);
+        RecordingCallback callback = new RecordingCallback();
+        receiver.attach(5, callback);
+
+        receive(receiver, "5,-12,70000,a/,b,1.5,BA;5,7");
+        // The framer reuses its buffer, the first command must not change with it
+        receive(receiver, ";");
+        ReceivedCommand command = callback.commands.poll();
+        Assert.assertEquals(5, command.getArgumentCount());
+        Assert.assertEquals(-12, command.readInt16Arg());
+        Assert.assertEquals(70000, command.readUInt32Arg());
+        Assert.assertEquals("a/,b", command.readStringArg());
+        Assert.assertEquals(1.5f, command.readFloatArg(), 0);
+        Assert.assertEquals(0x4142, command.readBinInt16Arg());
+        Assert.assertEquals("5,-12,70000,a/,b,1.5,BA;", command.getRawString());
+        Assert.assertEquals(7, callback.commands.poll().readInt32Arg());
+    }
+
+    @Test
+    public void decoderThreadDecodesInTheBackground() throws InterruptedException
+    {
+        CommandReceiver receiver = receiver(null);
+        receiver.setDecodeThread(DecodeThread.DecoderThread);
+        RecordingCallback callback = new RecordingCallback();
+        receiver.attach(callback);
+
+        receive(receiver, "7,a;");
+        Thread thread = callback.threads.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(thread);
+        Assert.assertNotSame(Thread.currentThread(), thread);
+        Assert.assertEquals(7, callback.commands.poll().getCmdId());
+    }
+
+    @Test
+    public void marshalsCallbacksToTheMainThread()
+    {
+        QueuedExecutor mainThread = new QueuedExecutor();
+        CommandReceiver receiver = receiver(mainThread);
+        receiver.setDecodeThread(DecodeThread.ReaderThread);
+        receiver.setCallbacksOnMainThread(true);
+        RecordingCallback callback = new RecordingCallback();
+        receiver.attach(5, callback);
+
+        receive(receiver, "5,1;");
+        Assert.assertTrue(callback.commands.isEmpty());
+        mainThread.runAll();
+        Assert.assertEquals(1, callback.commands.size());
+
+        receiver.setCallbacksOnMainThread(false);
+        receive(receiver, "5,2;");
+        Assert.assertEquals(2, callback.commands.size());
+        Assert.assertTrue(mainThread.tasks.isEmpty());
+    }
+
+    @Test
+    public void decodesOnTheMainThread()
+    {
+        QueuedExecutor mainThread = new QueuedExecutor();
+        CommandReceiver receiver = receiver(mainThread);
+        receiver.setDecodeThread(DecodeThread.MainThread);
+        receiver.setCallbacksOnMainThread(false);
+        RecordingCallback callback = new RecordingCallback();
+        receiver.attach(5, callback);
+
+        receive(receiver, "5,1;");
+        Assert.assertTrue(callback.commands.isEmpty());
+        mainThread.runAll();
+        Assert.assertEquals(1, callback.commands.size());
+    }
+
+    @Test
+    public void settingsArePerReceiver()
+    {
+        Settings settings = Settings.getInstance();
+        CommandReceiver first = receiver(null);
+        CommandReceiver second = receiver(null);
+        first.setDecodeThread(DecodeThread.ReaderThread);
+        first.setCallbacksOnMainThread(!settings.getCallbacksOnMainThread());
+
+        Assert.assertEquals(settings.getDecodeThread(), second.getDecodeThread());
+        Assert.assertEquals(settings.getCallbacksOnMainThread(), second.getCallbacksOnMainThread());
+        Assert.assertTrue(first.getCallbacksOnMainThread() != second.getCallbacksOnMainThread());
+    }
+}
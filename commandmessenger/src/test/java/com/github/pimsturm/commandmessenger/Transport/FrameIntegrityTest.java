@@ -0,0 +1,174 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.FrameMode;
+import com.github.pimsturm.commandmessenger.SendCommand;
+import com.github.pimsturm.commandmessenger.Settings;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+public class FrameIntegrityTest {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private final Settings settings = Settings.getInstance();
+    private final FrameIntegrity sent = new FrameIntegrity();
+    private final FrameIntegrity received = new FrameIntegrity();
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final CommandFramer framer = new CommandFramer();
+
+    @Before
+    public void setUp()
+    {
+        encoder.setFrameIntegrityEnabled(true);
+        encoder.setFrameIntegrity(sent);
+        framer.setFrameIntegrityEnabled(true);
+        framer.setFrameIntegrity(received);
+    }
+
+    private static SendCommand command(int cmdId, String argument)
+    {
+        SendCommand command = new SendCommand(cmdId);
+        command.addArgument(argument);
+        command.initArguments();
+        return command;
+    }
+
+    private String nextFrameText()
+    {
+        Assert.assertTrue(framer.nextFrame());
+        return new String(framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength(), ISO_8859_1);
+    }
+
+    @Test
+    public void addsSequenceAndCrcToTextCommands()
+    {
+        encoder.encode(command(4, "ab"));
+        encoder.encode(command(4, "cd"));
+        encoder.seal();
+        String encoded = new String(encoder.getBuffer(), 0, encoder.length(), ISO_8859_1);
+        int crc = BinaryFrame.crc16("4,ab,000,".getBytes(ISO_8859_1), 0, 9);
+        Assert.assertTrue(encoded, encoded.startsWith("4,ab,000," + String.format("%05d", crc) + ";4,cd,001,"));
+
+        framer.append(encoder.getBuffer(), 0, encoder.length());
+        Assert.assertEquals("4,ab", nextFrameText());
+        Assert.assertEquals("4,cd", nextFrameText());
+        Assert.assertFalse(framer.nextFrame());
+        Assert.assertEquals(2, received.getReceivedFrames());
+        Assert.assertEquals(0, received.getMissingFrames());
+        Assert.assertEquals(0, received.getCorruptedFrames());
+    }
+
+    @Test
+    public void dropsCorruptedAndCountsMissingCommands()
+    {
+        for (int i = 0; i < 5; i++) encoder.encode(command(7, "x" + i));
+        encoder.seal();
+        byte[] data = new byte[encoder.length()];
+        System.arraycopy(encoder.getBuffer(), 0, data, 0, data.length);
+        String encoded = new String(data, ISO_8859_1);
+
+        // Corrupt the second command, leave out the fourth
+        data[encoded.indexOf("x1") + 1] = '9';
+        int fourth = encoded.indexOf("7,x3");
+        int fifth = encoded.indexOf("7,x4");
+        framer.append(data, 0, fourth);
+        framer.append(data, fifth, data.length - fifth);
+
+        Assert.assertEquals("7,x0", nextFrameText());
+        Assert.assertEquals("7,x2", nextFrameText());
+        Assert.assertEquals("7,x4", nextFrameText());
+        Assert.assertFalse(framer.nextFrame());
+        Assert.assertEquals(1, received.getCorruptedFrames());
+        Assert.assertEquals("The corrupted and the left out command", 2, received.getMissingFrames());
+    }
+
+    @Test
+    public void dropsTextCommandsWithoutIntegrityFields()
+    {
+        byte[] data = "5,1,2;".getBytes(ISO_8859_1);
+        framer.append(data, 0, data.length);
+        Assert.assertFalse(framer.nextFrame());
+        Assert.assertEquals(1, received.getCorruptedFrames());
+    }
+
+    @Test
+    public void addsSequenceToBinaryFrames()
+    {
+        encoder.setFrameMode(FrameMode.Binary);
+        encoder.setFrameCrc(false);
+        encoder.encode(command(3, "a"));
+        encoder.encode(command(3, "b"));
+        encoder.seal();
+        byte[] data = encoder.getBuffer();
+        Assert.assertEquals("A sequence number implies a CRC",
+                BinaryFrame.FLAG_CRC | BinaryFrame.FLAG_SEQUENCE, data[1]);
+        Assert.assertEquals(0, data[BinaryFrame.HEADER_LENGTH]);
+
+        framer.append(data, 0, encoder.length());
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertTrue(framer.isBinaryFrame());
+        Assert.assertEquals(BinaryFrame.HEADER_LENGTH + BinaryFrame.SEQUENCE_LENGTH, framer.getFrameOffset());
+        Assert.assertTrue(framer.nextFrame());
+        Assert.assertEquals(2, received.getReceivedFrames());
+        Assert.assertEquals(0, received.getMissingFrames());
+    }
+
+    @Test
+    public void numbersCommandsInTheOrderTheyAreSealed()
+    {
+        CommandEncoder other = new CommandEncoder();
+        other.setFrameIntegrityEnabled(true);
+        other.setFrameIntegrity(sent);
+        encoder.encode(command(4, "ab"));
+        other.encode(command(5, "cd"));
+
+        // The other batch is written first
+        other.seal();
+        framer.append(other.getBuffer(), 0, other.length());
+        encoder.seal();
+        framer.append(encoder.getBuffer(), 0, encoder.length());
+
+        Assert.assertEquals("5,cd", nextFrameText());
+        Assert.assertEquals("4,ab", nextFrameText());
+        Assert.assertEquals(0, received.getMissingFrames());
+        Assert.assertEquals(0, received.getCorruptedFrames());
+    }
+
+    @Test
+    public void integrityIsNotTakenFromTheGlobalSettings()
+    {
+        // Another messenger may be created with other defaults meanwhile
+        Assert.assertFalse(settings.getFrameIntegrity());
+        encoder.encode(command(4, "ab"));
+        encoder.seal();
+        framer.append(encoder.getBuffer(), 0, encoder.length());
+        Assert.assertEquals("4,ab", nextFrameText());
+        Assert.assertEquals(1, received.getReceivedFrames());
+
+        CommandEncoder plain = new CommandEncoder();
+        plain.setFrameIntegrity(sent);
+        plain.encode(command(4, "cd"));
+        plain.seal();
+        Assert.assertEquals("4,cd;", new String(plain.getBuffer(), 0, plain.length(), ISO_8859_1));
+    }
+
+    @Test
+    public void ignoresLateAndDuplicateFrames()
+    {
+        received.frameReceived(254);
+        received.frameReceived(1);      // Wraps around, 255 and 0 are missing
+        Assert.assertEquals(2, received.getMissingFrames());
+        received.frameReceived(0);
+        received.frameReceived(1);
+        Assert.assertEquals(2, received.getMissingFrames());
+        received.frameReceived(2);
+        Assert.assertEquals(2, received.getMissingFrames());
+        Assert.assertEquals(5, received.getReceivedFrames());
+
+        received.reset();
+        Assert.assertEquals(0, received.getMissingFrames());
+        Assert.assertEquals(0, sent.nextSendSequence());
+    }
+}
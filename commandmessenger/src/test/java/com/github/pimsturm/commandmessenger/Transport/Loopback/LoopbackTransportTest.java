@@ -0,0 +1,132 @@
+package com.github.pimsturm.commandmessenger.Transport.Loopback;
+
+import com.github.pimsturm.commandmessenger.DecodeThread;
+import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class LoopbackTransportTest {
+    private final ArrayList<String> received = new ArrayList<String>();
+    private CommandReceiver receiver;
+    private LoopbackTransport transport;
+
+    @Before
+    public void createTransport()
+    {
+        receiver = new CommandReceiver(null);
+        receiver.setDecodeThread(DecodeThread.ReaderThread);
+        receiver.setCallbacksOnMainThread(false);
+        receiver.attach(new IMessengerCallbackFunction()
+        {
+            @Override
+            public void handleMessage(ReceivedCommand receivedCommand)
+            {
+                received.add(receivedCommand.getCmdId() + "," + receivedCommand.readInt16Arg());
+            }
+        });
+        transport = new LoopbackTransport(receiver);
+    }
+
+    @After
+    public void stopReceiver()
+    {
+        receiver.stop();
+    }
+
+    private void write(String data)
+    {
+        byte[] bytes = data.getBytes();
+        transport.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void echoesWrittenCommands()
+    {
+        final int[] found = new int[1];
+        transport.setConnectionFound(new IEventHandler<Object>()
+        {
+            @Override
+            public void invokeEvent(Object sender, Object e)
+            {
+                found[0]++;
+            }
+        });
+        transport.startConnectionManager();
+        Assert.assertEquals(1, found[0]);
+        Assert.assertTrue(transport.isConnected());
+
+        write("5,12;6,");
+        write("3;");
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("5,12", received.get(0));
+        Assert.assertEquals("6,3", received.get(1));
+    }
+
+    @Test
+    public void resetsTheConnectionStateBeforeTheConnectionFoundEvent()
+    {
+        final StringBuilder events = new StringBuilder();
+        receiver.setConnectionFound(new IEventHandler<Object>()
+        {
+            @Override
+            public void invokeEvent(Object sender, Object e)
+            {
+                events.append("reset,");
+            }
+        });
+        transport.setConnectionFound(new IEventHandler<Object>()
+        {
+            @Override
+            public void invokeEvent(Object sender, Object e)
+            {
+                events.append("found,");
+            }
+        });
+        transport.startConnectionManager();
+        Assert.assertEquals("reset,found,", events.toString());
+    }
+
+    @Test
+    public void endpointRepliesThroughReceive()
+    {
+        final StringBuilder written = new StringBuilder();
+        transport.setEndpoint(new ILoopbackEndpoint()
+        {
+            @Override
+            public void dataWritten(LoopbackTransport transport, byte[] data, int offset, int length)
+            {
+                written.append(new String(data, offset, length));
+                byte[] reply = "2,1;".getBytes();
+                transport.receive(reply, 0, reply.length);
+            }
+        });
+        transport.startConnectionManager();
+
+        write("4,9;");
+        Assert.assertEquals("4,9;", written.toString());
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals("2,1", received.get(0));
+    }
+
+    @Test
+    public void dropsDataWhenNotConnected()
+    {
+        write("5,1;");
+        transport.startConnectionManager();
+        transport.stopConnectionManager();
+        write("5,2;");
+        byte[] reply = "5,3;".getBytes();
+        transport.receive(reply, 0, reply.length);
+
+        Assert.assertFalse(transport.isConnected());
+        Assert.assertTrue(received.isEmpty());
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReceiveBufferPoolTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        ReceiveBufferPool pool = new ReceiveBufferPool(16, 2);
+        ReceiveBuffer buffer = pool.obtain();
+        Assert.assertEquals(16, buffer.getData().length);
+        buffer.setLength(5);
+        buffer.release();
+
+        ReceiveBuffer reused = pool.obtain();
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.getLength());
+        Assert.assertEquals(1, pool.getCreatedBuffers());
+    }
+
+    @Test
+    public void keepsAtMostTheMaximum() {
+        ReceiveBufferPool pool = new ReceiveBufferPool(16, 2);
+        ReceiveBuffer[] buffers = new ReceiveBuffer[4];
+        for (int i = 0; i < buffers.length; i++) buffers[i] = pool.obtain();
+        for (ReceiveBuffer buffer : buffers) buffer.release();
+        Assert.assertEquals(2, pool.getPooledBuffers());
+        Assert.assertEquals(4, pool.getCreatedBuffers());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releaseEndsTheOwnership() {
+        ReceiveBuffer buffer = new ReceiveBufferPool().obtain();
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lengthIsWithinTheCapacity() {
+        new ReceiveBufferPool(16, 2).obtain().setLength(17);
+    }
+}
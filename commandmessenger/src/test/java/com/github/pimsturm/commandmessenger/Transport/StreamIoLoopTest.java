@@ -0,0 +1,382 @@
+package com.github.pimsturm.commandmessenger.Transport;
+
+import com.github.pimsturm.commandmessenger.LinkThroughput;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class StreamIoLoopTest {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] END = new byte[0];
+
+    /**
+     * In-memory connection. Received data is fed through receive, written data is collected.
+     */
+    private static class FakeConnection implements StreamIoLoop.Connection {
+        final BlockingQueue<byte[]> incoming = new LinkedBlockingQueue<byte[]>();
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final CountDownLatch writeGate;
+        volatile boolean closed;
+
+        FakeConnection(boolean blockWrites) {
+            writeGate = new CountDownLatch(blockWrites ? 1 : 0);
+        }
+
+        void receive(String data) {
+            incoming.add(data.getBytes(ISO_8859_1));
+        }
+
+        String getWritten() {
+            synchronized (written) {
+                return new String(written.toByteArray(), ISO_8859_1);
+            }
+        }
+
+        @Override
+        public void open() throws IOException {
+            if (closed) throw new IOException("closed");
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    byte[] data;
+                    try {
+                        data = incoming.take();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    if (data == END) return -1;
+                    System.arraycopy(data, 0, buffer, offset, data.length);
+                    return data.length;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    try {
+                        writeGate.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    if (closed) throw new IOException("closed");
+                    synchronized (written) {
+                        written.write(data, offset, length);
+                        written.notifyAll();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            writeGate.countDown();
+            incoming.add(END);
+        }
+    }
+
+    private static class RecordingListener implements StreamIoLoop.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        String next() throws InterruptedException {
+            String event = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("No event", event);
+            return event;
+        }
+
+        @Override
+        public void onConnected(StreamIoLoop.Connection connection) {
+            events.add("connected");
+        }
+
+        @Override
+        public void onConnectFailed(StreamIoLoop.Connection connection, IOException e) {
+            events.add("failed");
+        }
+
+        @Override
+        public void onDisconnected(StreamIoLoop.Connection connection, IOException e) {
+            events.add("disconnected");
+        }
+
+        @Override
+        public void onDataReceived(ReceiveBuffer buffer) {
+            events.add(new String(buffer.getData(), 0, buffer.getLength(), ISO_8859_1));
+            buffer.release();
+        }
+    }
+
+    private final RecordingListener listener = new RecordingListener();
+    private final ReceiveBufferPool bufferPool = new ReceiveBufferPool(64, 4);
+    private final StreamIoLoop loop = new StreamIoLoop("StreamIoLoopTest", listener, bufferPool, 16);
+
+    @After
+    public void stopLoop() {
+        loop.stop();
+    }
+
+    private static void awaitWritten(FakeConnection connection, String expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        synchronized (connection.written) {
+            while (!connection.getWritten().equals(expected) && System.currentTimeMillis() < end) {
+                connection.written.wait(100);
+            }
+        }
+        Assert.assertEquals(expected, connection.getWritten());
+    }
+
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void writesAndReadsThroughTheConnection() throws InterruptedException {
+        FakeConnection connection = new FakeConnection(false);
+        loop.connect(connection);
+        Assert.assertEquals("connected", listener.next());
+
+        byte[] command = "1,2;".getBytes(ISO_8859_1);
+        for (int i = 0; i < 10; i++) loop.write(command, 0, command.length);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) expected.append("1,2;");
+        awaitWritten(connection, expected.toString());
+
+        // The released buffers are read into again
+        for (int i = 0; i < 100; i++) {
+            connection.receive("3," + i + ";");
+            Assert.assertEquals("3," + i + ";", listener.next());
+        }
+        Assert.assertTrue(bufferPool.getCreatedBuffers() <= 2);
+
+        connection.incoming.add(END);
+        Assert.assertEquals("disconnected", listener.next());
+        Assert.assertFalse(loop.isConnected());
+    }
+
+    @Test
+    public void writeBlocksOnlyWhileTheQueueIsFull() throws InterruptedException {
+        final FakeConnection connection = new FakeConnection(true);
+        loop.connect(connection);
+        Assert.assertEquals("connected", listener.next());
+
+        // Fits in the queue and the write in progress, returns although the stream blocks
+        byte[] data = "0123456789abcdef".getBytes(ISO_8859_1);
+        loop.write(data, 0, data.length);
+
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] more = "0123456789abcdefXYZ".getBytes(ISO_8859_1);
+                loop.write(more, 0, more.length);
+                loop.write(more, 0, more.length);
+                written.countDown();
+            }
+        });
+        writer.start();
+        Assert.assertFalse("The queue is full", written.await(200, TimeUnit.MILLISECONDS));
+
+        // Closing the connection releases the blocked write and discards what was queued
+        loop.disconnect();
+        Assert.assertTrue(written.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, loop.getQueuedBytes());
+        writer.join();
+    }
+
+    @Test
+    public void measuresTheWritesToTheStream() throws InterruptedException {
+        final BlockingQueue<long[]> writes = new LinkedBlockingQueue<long[]>();
+        loop.setLinkThroughput(new LinkThroughput() {
+            @Override
+            public synchronized void recordWrite(int bytes, long startNanos, long endNanos) {
+                writes.add(new long[] { bytes, endNanos - startNanos });
+            }
+        });
+        FakeConnection connection = new FakeConnection(true);
+        loop.connect(connection);
+        Assert.assertEquals("connected", listener.next());
+
+        // The write returns at once, the stream takes as long as the gate stays shut
+        byte[] data = "1,2;".getBytes(ISO_8859_1);
+        loop.write(data, 0, data.length);
+        Thread.sleep(50);
+        Assert.assertTrue("Nothing is sent yet", writes.isEmpty());
+        connection.writeGate.countDown();
+
+        long[] write = writes.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(write);
+        Assert.assertEquals(4, write[0]);
+        Assert.assertTrue("The time the stream blocked is measured", write[1] >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < end) Thread.sleep(5);
+        Assert.assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    private Thread startWrite(final String data) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = data.getBytes(ISO_8859_1);
+                loop.write(bytes, 0, bytes.length);
+            }
+        });
+        thread.start();
+        awaitWaiting(thread);
+        return thread;
+    }
+
+    /**
+     * Blocks the stream with a full write in progress, and leaves the given bytes in the queue.
+     */
+    private FakeConnection connectBlocked(String queued) throws InterruptedException {
+        FakeConnection connection = new FakeConnection(true);
+        loop.connect(connection);
+        Assert.assertEquals("connected", listener.next());
+        byte[] inProgress = "0123456789abcdef".getBytes(ISO_8859_1);
+        loop.write(inProgress, 0, inProgress.length);
+        long end = System.currentTimeMillis() + 5000;
+        while (loop.getQueuedBytes() > 0 && System.currentTimeMillis() < end) Thread.sleep(5);
+        byte[] bytes = queued.getBytes(ISO_8859_1);
+        loop.write(bytes, 0, bytes.length);
+        return connection;
+    }
+
+    @Test
+    public void writesFromOtherThreadsDoNotInterleave() throws InterruptedException {
+        FakeConnection connection = connectBlocked("ccccccccccccc;");
+
+        // Neither fits in the room that is left
+        Thread first = startWrite("aaaaaaaaa;");
+        Thread second = startWrite("bb;");
+        Assert.assertEquals("Nothing is queued in part", 14, loop.getQueuedBytes());
+
+        connection.writeGate.countDown();
+        first.join();
+        second.join();
+        long end = System.currentTimeMillis() + 5000;
+        while (connection.getWritten().length() < 43 && System.currentTimeMillis() < end) Thread.sleep(5);
+        String written = connection.getWritten();
+        Assert.assertTrue(written, written.endsWith("ccccccccccccc;aaaaaaaaa;bb;")
+                || written.endsWith("ccccccccccccc;bb;aaaaaaaaa;"));
+    }
+
+    @Test
+    public void interruptedWriteQueuesNothing() throws InterruptedException {
+        connectBlocked("0123456789abcdef");
+
+        final boolean[] interrupted = new boolean[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = "1,2;".getBytes(ISO_8859_1);
+                loop.write(bytes, 0, bytes.length);
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        writer.start();
+        awaitWaiting(writer);
+        writer.interrupt();
+        writer.join();
+
+        Assert.assertTrue("The interrupt is kept", interrupted[0]);
+        Assert.assertEquals(16, loop.getQueuedBytes());
+    }
+
+    @Test
+    public void failingListenerOnlyClosesTheConnection() throws InterruptedException {
+        final RecordingListener failing = new RecordingListener() {
+            @Override
+            public void onDisconnected(StreamIoLoop.Connection connection, IOException e) {
+                events.add("disconnected: " + e.getMessage());
+            }
+
+            @Override
+            public void onDataReceived(ReceiveBuffer buffer) {
+                String data = new String(buffer.getData(), 0, buffer.getLength(), ISO_8859_1);
+                buffer.release();
+                if (data.equals("boom")) throw new IllegalStateException(data);
+                events.add(data);
+            }
+        };
+        StreamIoLoop failingLoop = new StreamIoLoop("StreamIoLoopFailing", failing, bufferPool, 16);
+        try {
+            FakeConnection connection = new FakeConnection(false);
+            failingLoop.connect(connection);
+            Assert.assertEquals("connected", failing.next());
+            connection.receive("boom");
+            Assert.assertEquals("disconnected: The listener failed", failing.next());
+            Assert.assertTrue(connection.closed);
+
+            // The reader thread is still there for the next connection
+            FakeConnection next = new FakeConnection(false);
+            failingLoop.connect(next);
+            Assert.assertEquals("connected", failing.next());
+            next.receive("5,1;");
+            Assert.assertEquals("5,1;", failing.next());
+        } finally {
+            failingLoop.stop();
+        }
+    }
+
+    @Test
+    public void reconnectsWithTheSameThreads() throws InterruptedException {
+        FakeConnection[] connections = new FakeConnection[20];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new FakeConnection(false);
+            loop.connect(connections[i]);
+            Assert.assertEquals("connected", listener.next());
+            loop.write(new byte[] {(byte) ('a' + i)}, 0, 1);
+        }
+        Assert.assertEquals(2, countThreads("StreamIoLoopTest"));
+
+        // Data written before a reconnect never goes out over the next connection
+        for (int i = 0; i < connections.length; i++) {
+            String written = connections[i].getWritten();
+            Assert.assertTrue(written, written.isEmpty() || written.equals(String.valueOf((char) ('a' + i))));
+        }
+
+        FakeConnection failing = new FakeConnection(false);
+        failing.closed = true;
+        loop.connect(failing);
+        Assert.assertEquals("failed", listener.next());
+        Assert.assertEquals(2, countThreads("StreamIoLoopTest"));
+
+        loop.write(new byte[] {1}, 0, 1);
+        Assert.assertEquals(0, loop.getQueuedBytes());
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.pimsturm.commandmessenger.Transport.Tcp;
+
+import com.github.pimsturm.commandmessenger.DecodeThread;
+import com.github.pimsturm.commandmessenger.IEventHandler;
+import com.github.pimsturm.commandmessenger.IMessengerCallbackFunction;
+import com.github.pimsturm.commandmessenger.ReceivedCommand;
+import com.github.pimsturm.commandmessenger.Transport.CommandReceiver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TcpTransportTest {
+    private final BlockingQueue<String> received = new ArrayBlockingQueue<String>(16);
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private ServerSocket server;
+    private Socket device;
+    private CommandReceiver receiver;
+    private TcpTransport transport;
+
+    @Before
+    public void connect() throws IOException, InterruptedException
+    {
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+
+        receiver = new CommandReceiver(null);
+        receiver.setDecodeThread(DecodeThread.ReaderThread);
+        receiver.setCallbacksOnMainThread(false);
+        receiver.attach(new IMessengerCallbackFunction()
+        {
+            @Override
+            public void handleMessage(ReceivedCommand receivedCommand)
+            {
+                received.add(receivedCommand.getCmdId() + "," + receivedCommand.readInt16Arg());
+            }
+        });
+        transport = new TcpTransport(receiver, "127.0.0.1", server.getLocalPort());
+        transport.setConnectionFound(new IEventHandler<Object>()
+        {
+            @Override
+            public void invokeEvent(Object sender, Object e)
+            {
+                connected.countDown();
+            }
+        });
+
+        transport.startConnectionManager();
+        device = server.accept();
+        device.setSoTimeout(5000);
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void disconnect() throws IOException
+    {
+        transport.stopConnectionManager();
+        receiver.stop();
+        if (device != null) device.close();
+        server.close();
+    }
+
+    @Test
+    public void receivesCommandsFromTheSocket() throws IOException, InterruptedException
+    {
+        Assert.assertTrue(transport.isConnected());
+        OutputStream output = device.getOutputStream();
+        output.write("5,12;6,".getBytes());
+        output.flush();
+        output.write("3;".getBytes());
+        output.flush();
+
+        Assert.assertEquals("5,12", received.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals("6,3", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writesCommandsToTheSocket() throws IOException
+    {
+        byte[] command = "4,9;".getBytes();
+        transport.write(command, 0, command.length);
+
+        InputStream input = device.getInputStream();
+        byte[] data = new byte[command.length];
+        int length = 0;
+        while (length < data.length)
+        {
+            int read = input.read(data, length, data.length - length);
+            Assert.assertTrue(read > 0);
+            length += read;
+        }
+        Assert.assertEquals("4,9;", new String(data));
+    }
+
+    @Test
+    public void stopClosesTheConnection() throws IOException
+    {
+        transport.stopConnectionManager();
+        Assert.assertFalse(transport.isConnected());
+        // The device sees the end of the stream
+        Assert.assertEquals(-1, device.getInputStream().read());
+    }
+}